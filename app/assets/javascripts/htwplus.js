@@ -133,6 +133,58 @@ function markdownPostContent() {
     });
 }
 
+/**
+ * Polls a stream for posts which are new or were updated since the newest known post (see BaseController.streamSince).
+ * The first poll only returns the current position as ETag, an unchanged stream is answered with 304.
+ * New posts are put on top, updated posts replace their old version. If more posts changed
+ * than fit into one page, the server sends X-Stream-Reload and the page is reloaded.
+ */
+function pollStream(container) {
+    var url = container.data('stream-since');
+    var since = '';
+
+    var poll = function () {
+        if (document.hidden) {
+            window.setTimeout(poll, 30000);
+            return;
+        }
+        $.ajax({
+            url: url + (url.indexOf('?') < 0 ? '?' : '&') + 'since=' + encodeURIComponent(since),
+            type: "GET",
+            // no loading indicator for background polls
+            beforeSend: $.noop,
+            success: function (data, status, xhr) {
+                if (status === 'notmodified') {
+                    return;
+                }
+                if (xhr.getResponseHeader('X-Stream-Reload')) {
+                    window.location.reload();
+                    return;
+                }
+                if (since && data) {
+                    var posts = $($.parseHTML(data)).filter('.hp-pagination-element');
+                    posts.each(function () {
+                        var known = document.getElementById($(this).find('.hp-post').attr('id'));
+                        if (known) {
+                            $(known).closest('.hp-pagination-element').remove();
+                        }
+                    });
+                    container.prepend(posts);
+                    markdownPostContent();
+                    autolinkUrls();
+                    linkOlderComments();
+                }
+                var etag = (xhr.getResponseHeader('ETag') || '').replace(/"/g, '');
+                since = etag === 'empty' ? '' : etag;
+            },
+            complete: function () {
+                window.setTimeout(poll, 30000);
+            }
+        });
+    };
+    poll();
+}
+
 /*
  *  Options Menu
  */
@@ -463,6 +515,13 @@ $(document).ready(function () {
         });
     }
 
+    /*
+     * Poll streams for new posts
+     */
+    $('.hp-pagination-container[data-stream-since]').each(function () {
+        pollStream($(this));
+    });
+
     /*
      * Show 'Back to top'-link (src: http://jsfiddle.net/panman8201/mkzrm/10/)
      */
@@ -508,6 +567,7 @@ $(document).ready(function () {
     /*
      * SEARCH: AutoSuggestion
      */
+    var autoSuggestQuery = '';
     var autoSuggestResult = new Bloodhound({
         datumTokenizer: Bloodhound.tokenizers.obj.whitespace('value'),
         queryTokenizer: Bloodhound.tokenizers.whitespace,
@@ -516,48 +576,31 @@ $(document).ready(function () {
             url: '/suggestions?query=',
             rateLimitWait: 0,
             replace: function(url, uriEncodedQuery) {
+                autoSuggestQuery = decodeURIComponent(uriEncodedQuery);
                 return url + uriEncodedQuery.toLowerCase();
             },
             filter: function(parsedResponse) {
+                var words = autoSuggestQuery.toLowerCase().split(/[^0-9a-zA-Z\u00C0-\u024F]+/).filter(function(word) { return word.length > 0; });
                 var result = [];
-                $.map(parsedResponse.hits.hits, function(item) {
-                    var label = '';
-                    var hLabel = '';
-                    var groupType = '';
+                $.map(parsedResponse, function(item) {
                     var icon = '';
-                    var custom_avatar = false;
-                    if(item._type === 'user') {
-                        label = item._source.name;
-                        hLabel = item.highlight.name[0].replace(/\[startStrong\]/g, '<strong>').replace(/\[endStrong\]/g, '</strong>');
-                        if(item._source.avatar === 'custom') {custom_avatar = true;}
-                    }
-                    if(item._type === 'group') {
-                        label = item._source.title;
-                        hLabel = item.highlight.title[0].replace(/\[startStrong\]/g, '<strong>').replace(/\[endStrong\]/g, '</strong>');
-                        groupType = item._source.grouptype;
-                        if(item._source.avatar) {
-                            custom_avatar = true;
-                        } else {
-                            if(groupType === 'open') icon = 'globe';
-                            if(groupType === 'close') icon = 'lock';
-                            if(groupType === 'course') icon = 'briefcase';
-                        }
+                    if(item.type === 'group' && !item.customAvatar) {
+                        if(item.groupType === 'open') icon = 'globe';
+                        if(item.groupType === 'close') icon = 'lock';
+                        if(item.groupType === 'course') icon = 'briefcase';
                     }
-                    if(item._type === 'medium') {
-                        label = item._source.filename;
-                        hLabel = item.highlight.filename[0].replace(/\[startStrong\]/g, '<strong>').replace(/\[endStrong\]/g, '</strong>');
-                        groupType = item._source.grouptype;
+                    if(item.type === 'medium') {
                         icon = 'file';
                     }
                     result.push({
-                        label: label,
-                        hLabel: hLabel,
-                        initial: item._source.initial,
-                        custom_avatar: custom_avatar,
-                        id: item._id,
-                        type: item._type,
-                        avatar: item._source.avatar,
-                        groupType: groupType,
+                        label: item.label,
+                        hLabel: highlightSuggestion(item.label, words),
+                        initial: item.initial,
+                        custom_avatar: item.customAvatar,
+                        id: item.id,
+                        type: item.type,
+                        avatar: item.avatar,
+                        groupType: item.groupType,
                         icon: icon
                     });
                 });
@@ -566,6 +609,21 @@ $(document).ready(function () {
         }
     });
 
+    /*
+     * Escapes a suggestion label and marks the beginnings of its words which match the query
+     */
+    function highlightSuggestion(label, words) {
+        return $.map(label.split(/(\s+)/), function(part) {
+            var lower = part.toLowerCase();
+            var length = 0;
+            $.each(words, function(index, word) {
+                if (lower.indexOf(word) === 0 && word.length > length) length = word.length;
+            });
+            var escaped = $('<div/>').text(part.substring(length)).html();
+            return length > 0 ? '<strong>' + $('<div/>').text(part.substring(0, length)).html() + '</strong>' + escaped : escaped;
+        }).join('');
+    }
+
     autoSuggestResult.initialize();
 
     $('.hp-search-form .form-control').typeahead(
@@ -6,8 +6,11 @@ import models.Folder;
 import models.Post;
 import models.enums.AccountRole;
 import models.services.ElasticsearchService;
-import org.elasticsearch.client.transport.NoNodeAvailableException;
-import org.elasticsearch.index.IndexNotFoundException;
+import models.services.FragmentCache;
+import models.services.IndexOutbox;
+import models.services.NotificationService;
+import models.services.ReindexService;
+import models.services.SearchCache;
 import play.Logger;
 import play.api.i18n.Lang;
 import play.data.DynamicForm;
@@ -21,7 +24,6 @@ import play.mvc.With;
 import views.html.Admin.*;
 
 import javax.inject.Inject;
-import java.io.IOException;
 
 @Security.Authenticated(Secured.class)
 @With(AdminAction.class)
@@ -33,6 +35,12 @@ public class AdminController extends BaseController {
     private final PostManager postManager;
     private final AccountManager accountManager;
     private final FolderManager folderManager;
+    private final TimelineManager timelineManager;
+    private final FragmentCache fragmentCache;
+    private final ReindexService reindexService;
+    private final IndexOutbox indexOutbox;
+    private final SearchCache searchCache;
+    private final NotificationService notificationService;
     private final MessagesApi messagesApi;
     private final FormFactory formFactory;
     private final Form<Account> accountForm;
@@ -45,6 +53,12 @@ public class AdminController extends BaseController {
                            PostManager postManager,
                            AccountManager accountManager,
                            FolderManager folderManager,
+                           TimelineManager timelineManager,
+                           FragmentCache fragmentCache,
+                           ReindexService reindexService,
+                           IndexOutbox indexOutbox,
+                           SearchCache searchCache,
+                           NotificationService notificationService,
                            FormFactory formFactory,
                            MessagesApi messagesApi) {
         this.elasticsearchService = elasticsearchService;
@@ -53,6 +67,12 @@ public class AdminController extends BaseController {
         this.postManager = postManager;
         this.accountManager = accountManager;
         this.folderManager = folderManager;
+        this.timelineManager = timelineManager;
+        this.fragmentCache = fragmentCache;
+        this.reindexService = reindexService;
+        this.indexOutbox = indexOutbox;
+        this.searchCache = searchCache;
+        this.notificationService = notificationService;
         this.messagesApi = messagesApi;
         this.formFactory = formFactory;
         this.accountForm = formFactory.form(Account.class);
@@ -134,64 +154,40 @@ public class AdminController extends BaseController {
     }
 
     public Result indexing() {
-        return ok(indexing.render());
+        return ok(indexing.render(reindexService));
     }
 
-    public Result indexDelete() {
-        try {
-            elasticsearchService.deleteIndex();
-            flash("info", "index gelöscht");
-        } catch (NoNodeAvailableException nna) {
-            flash("error", nna.getMessage());
-        } catch (IndexNotFoundException infe) {
-            flash("error", infe.getMessage());
+    /**
+     * Starts a rebuild of the search index into a new index, searches use the current one until it is complete.
+     */
+    public Result indexRebuild() {
+        if (!elasticsearchService.isClientAvailable()) {
+            flash("error", "Elasticsearch nicht erreichbar!");
+        } else if (reindexService.start() == null) {
+            flash("error", "Es läuft bereits eine Indexierung");
+        } else {
+            flash("info", "Der Index wird im Hintergrund neu aufgebaut");
         }
-
-        return ok(indexing.render());
+        return redirect(routes.AdminController.indexing());
     }
 
-    public Result indexSettings() throws IOException {
-        if (elasticsearchService.isClientAvailable()) {
-            if (!elasticsearchService.isIndexExists()) {
-                elasticsearchService.createAnalyzer();
-                elasticsearchService.createMapping();
-                flash("success", "Mapping und Anazyler erfolgreich erstellt!");
-            } else {
-                flash("error", "Index bereits vorhanden.");
-            }
+    public Result indexCancel() {
+        if (reindexService.cancel()) {
+            flash("info", "Indexierung wird abgebrochen, der bisherige Index bleibt aktiv");
         } else {
-            flash("error", "Elasticsearch nicht erreichbar!");
+            flash("error", "Es läuft keine Indexierung");
         }
-
-        return ok(indexing.render());
-    }
-
-    public Result indexAccounts() throws IOException {
-        long time = accountManager.indexAllAccounts();
-        String out = "Alle Accounts indexiert (" + Long.toString(time) + " Sekunden)";
-        flash("info", out);
-        return ok(indexing.render());
+        return redirect(routes.AdminController.indexing());
     }
 
-    public Result indexGroups() throws IOException {
-        long time = groupManager.indexAllGroups();
-        String out = "Alle Gruppen indexiert (" + Long.toString(time) + " Sekunden)";
-        flash("info", out);
-        return ok(indexing.render());
-    }
-
-    public Result indexPosts() throws IOException {
-        long time = postManager.indexAllPosts();
-        String out = "Alle Posts indexiert (" + Long.toString(time) + " Sekunden)";
-        flash("info", out);
-        return ok(indexing.render());
-    }
-
-    public Result indexMedia() throws IOException {
-        long time = mediaManager.indexAllMedia();
-        String out = "Alle Media indexiert (" + Long.toString(time) + " Sekunden)";
-        flash("info", out);
-        return ok(indexing.render());
+    public Result rebuildTimelines() {
+        // one transaction per account, so it runs outside of the request
+        if (timelineManager.startRebuildAll()) {
+            flash("info", "Stream-Timelines werden im Hintergrund neu aufgebaut");
+        } else {
+            flash("error", "Die Stream-Timelines werden bereits neu aufgebaut");
+        }
+        return redirect(routes.AdminController.indexing());
     }
 
     public Result viewMediaTemp() {
@@ -207,6 +203,10 @@ public class AdminController extends BaseController {
         return viewMediaTemp();
     }
 
+    public Result metrics() {
+        return ok(metrics.render(elasticsearchService, fragmentCache, reindexService, indexOutbox, searchCache, notificationService));
+    }
+
     public Result listAccounts() {
         return ok(listAccounts.render(accountManager.all()));
     }
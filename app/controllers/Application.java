@@ -4,14 +4,18 @@ import controllers.Navigation.Level;
 import managers.AccountManager;
 import managers.GroupManager;
 import managers.PostManager;
+import managers.SearchResultAssembler;
+import managers.StreamCursor;
+import managers.StreamPageAssembler;
 import models.Account;
 import models.Group;
 import models.Post;
 import models.services.ElasticsearchResponse;
 import models.services.ElasticsearchService;
+import models.services.SearchPage;
+import models.services.SuggestionIndex;
 import org.apache.commons.lang3.StringUtils;
-import org.elasticsearch.action.search.SearchResponse;
-import org.elasticsearch.client.transport.NoNodeAvailableException;
+import org.elasticsearch.ElasticsearchException;
 import play.Configuration;
 import play.Logger;
 import play.api.i18n.Lang;
@@ -19,6 +23,7 @@ import play.data.Form;
 import play.data.FormFactory;
 import play.db.jpa.Transactional;
 import play.i18n.MessagesApi;
+import play.libs.Json;
 import play.mvc.Result;
 import play.mvc.Security;
 import play.routing.JavaScriptReverseRouter;
@@ -27,7 +32,9 @@ import views.html.snippets.streamRaw;
 
 import javax.inject.Inject;
 import java.util.HashMap;
+import java.util.List;
 import java.util.concurrent.ExecutionException;
+import java.util.function.LongPredicate;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -38,9 +45,11 @@ import static java.util.Arrays.asList;
 public class Application extends BaseController {
 
     ElasticsearchService elasticsearchService;
-    ElasticsearchResponse elasticsearchResponse;
+    SearchResultAssembler searchResultAssembler;
+    SuggestionIndex suggestionIndex;
     GroupManager groupManager;
     PostManager postManager;
+    StreamPageAssembler streamPageAssembler;
     AccountManager accountManager;
     Configuration configuration;
     FormFactory formFactory;
@@ -48,17 +57,21 @@ public class Application extends BaseController {
 
     @Inject
     public Application(ElasticsearchService elasticsearchService,
-                       ElasticsearchResponse elasticsearchResponse,
+                       SearchResultAssembler searchResultAssembler,
+                       SuggestionIndex suggestionIndex,
                        GroupManager groupManager,
                        PostManager postManager,
+                       StreamPageAssembler streamPageAssembler,
                        AccountManager accountManager,
                        Configuration configuration,
                        FormFactory formFactory,
                        MessagesApi messagesApi) {
         this.elasticsearchService = elasticsearchService;
-        this.elasticsearchResponse = elasticsearchResponse;
+        this.searchResultAssembler = searchResultAssembler;
+        this.suggestionIndex = suggestionIndex;
         this.groupManager = groupManager;
         this. postManager = postManager;
+        this.streamPageAssembler = streamPageAssembler;
         this.accountManager = accountManager;
         this.configuration = configuration;
         this.messagesApi = messagesApi;
@@ -84,7 +97,8 @@ public class Application extends BaseController {
     public Result index() {
         Navigation.set(Level.STREAM, "Alles");
         Account currentAccount = Component.currentAccount();
-        return ok(stream.render(currentAccount, postManager.getStream(currentAccount, limit, PAGE), postForm, postManager.countStream(currentAccount, ""), limit, PAGE, "all"));
+        List<Post> posts = postManager.getStream(currentAccount, limit, PAGE);
+        return ok(stream.render(currentAccount, streamPageAssembler.assemble(posts, currentAccount), postForm, postManager.countStream(currentAccount, ""), limit, PAGE, "all", StreamCursor.next(posts, limit)));
     }
 
     public Result help() {
@@ -93,7 +107,7 @@ public class Application extends BaseController {
     }
 
     @Security.Authenticated(Secured.class)
-    public Result stream(String filter, int page, boolean raw) {
+    public Result stream(String filter, int page, boolean raw, String cursor) {
         Account currentAccount = Component.currentAccount();
 
         // filter must be set for pagination
@@ -120,21 +134,56 @@ public class Application extends BaseController {
                 filter = "all";
         }
 
+        // prefer the keyset cursor, the page offset is kept for old links and the noscript pagination
+        StreamCursor streamCursor = StreamCursor.parse(cursor);
+
+        if (raw && streamCursor != null) {
+            // infinite scroll: probe one more post instead of counting the stream
+            List<Post> posts = postManager.getFilteredStream(currentAccount, limit + 1, streamCursor, filter);
+            boolean hasMore = StreamCursor.hasMore(posts, limit);
+            return ok(streamRaw.render(streamPageAssembler.assemble(posts, currentAccount), postForm, null, limit, page, filter, StreamCursor.next(posts, limit), hasMore));
+        }
+
+        List<Post> posts = streamCursor != null
+                ? postManager.getFilteredStream(currentAccount, limit, streamCursor, filter)
+                : postManager.getFilteredStream(currentAccount, limit, page, filter);
+        String nextCursor = StreamCursor.next(posts, limit);
+
         if (raw) {
-            return ok(streamRaw.render(postManager.getFilteredStream(currentAccount, limit, page, filter), postForm, postManager.countStream(currentAccount, filter), limit, page, filter));
+            return ok(streamRaw.render(streamPageAssembler.assemble(posts, currentAccount), postForm, postManager.countStream(currentAccount, filter), limit, page, filter, nextCursor, null));
         } else {
-            return ok(stream.render(currentAccount, postManager.getFilteredStream(currentAccount, limit, page, filter), postForm, postManager.countStream(currentAccount, filter), limit, page, filter));
+            return ok(stream.render(currentAccount, streamPageAssembler.assemble(posts, currentAccount), postForm, postManager.countStream(currentAccount, filter), limit, page, filter, nextCursor));
         }
     }
 
+    /**
+     * Returns the posts which are new or were updated since the given cursor, see BaseController.streamSince().
+     */
+    @Security.Authenticated(Secured.class)
+    public Result streamSince(String filter, String since) {
+        Account currentAccount = Component.currentAccount();
+        String streamFilter = asList("account", "group", "contact", "bookmark").contains(filter) ? filter : "all";
+
+        return streamSince(postManager.getFilteredStream(currentAccount, 1, PAGE, streamFilter), since, cursor -> {
+            List<Post> posts = postManager.getFilteredStreamSince(currentAccount, cursor, streamFilter, limit + 1);
+            if (StreamCursor.hasMore(posts, limit)) {
+                response().setHeader("X-Stream-Reload", "true");
+            }
+            return views.html.snippets.streamSince.render(streamPageAssembler.assemble(posts, currentAccount), postForm, Post.STREAM);
+        });
+    }
+
     @Security.Authenticated(Secured.class)
-    public Result searchSuggestions(String query) throws ExecutionException, InterruptedException {
+    public Result searchSuggestions(String query) {
         Account currentAccount = Component.currentAccount();
         if (currentAccount == null) {
             return forbidden();
         }
-        SearchResponse response = elasticsearchService.doSearch("searchSuggestions", query, "all", null, 1, currentAccount.id.toString(), asList("name", "title", "filename"), asList("friends", "member", "viewable"));
-        return ok(response.toString());
+        // answered from memory, see SuggestionIndex
+        AuthorizationContext context = AuthorizationContext.forAccount(currentAccount);
+        LongPredicate isMember = context != null ? context::isMember : id -> false;
+        LongPredicate isFriend = context != null ? context::isFriend : id -> false;
+        return ok(Json.toJson(suggestionIndex.find(query, currentAccount.id, isMember, isFriend)));
     }
 
     @Security.Authenticated(Secured.class)
@@ -186,12 +235,15 @@ public class Application extends BaseController {
             flash("info", "Dein Suchwort enthielt ungültige Zeichen, die für die Suche entfernt wurden!");
         }
 
-        SearchResponse response;
+        ElasticsearchResponse elasticsearchResponse;
 
         try {
-            response = elasticsearchService.doSearch("search", keyword.toLowerCase(), mode, facets, page, currentAccount.id.toString(), asList("name", "title", "content", "filename"), asList("friends", "owner", "member", "viewable"));
-            elasticsearchResponse.create(response, keyword, mode);
-        } catch (NoNodeAvailableException nna) {
+            AuthorizationContext context = AuthorizationContext.forAccount(currentAccount);
+            SearchPage searchPage = elasticsearchService.doSearch("search", keyword.toLowerCase(), mode, facets, page, currentAccount.id.toString(),
+                    groupIds(context), friendIds(context), asList("name", "title", "content", "filename"));
+            elasticsearchResponse = searchResultAssembler.assemble(searchPage, keyword, mode);
+        } catch (ElasticsearchException e) {
+            // no node connected, circuit breaker open or timed out
             flash("error", "Leider steht die Suche zur Zeit nicht zur Verfügung!");
             return ok(views.html.Search.search.render());
         }
@@ -237,6 +289,17 @@ public class Application extends BaseController {
         return redirect(controllers.routes.Application.index());
     }
 
+    /**
+     * Without a context (e.g. outside of Component) the search falls back to public and personal documents.
+     */
+    private static long[] groupIds(AuthorizationContext context) {
+        return context != null ? context.groupIds() : new long[0];
+    }
+
+    private static long[] friendIds(AuthorizationContext context) {
+        return context != null ? context.friendIds() : new long[0];
+    }
+
     private String[] buildUserFacetList(String parameter) {
         if (parameter != null) {
             return parameter.split(",");
@@ -0,0 +1,134 @@
+package controllers;
+
+import com.carrotsearch.hppc.LongHashSet;
+import models.Account;
+import models.enums.LinkType;
+import play.db.jpa.JPAApi;
+import play.mvc.Http.Context;
+
+import javax.persistence.Query;
+import java.util.List;
+
+/**
+ * Relations of the currently logged in account, loaded at most once per request.
+ * Each id set is fetched with a single query on first use and kept as a primitive long set,
+ * so the Secured checks called all over the templates answer without further queries.
+ * The sets reflect the state at first use, actions changing them finish with a redirect.
+ */
+public class AuthorizationContext {
+
+    private static final String CONTEXT_KEY = "authorizationContext";
+
+    /**
+     * Relation queries, each runs at most once per request.
+     */
+    public static final String FRIENDS_QUERY = "SELECT fs.friend.id FROM Friendship fs WHERE fs.account.id = :accountId AND fs.linkType = :linkType";
+    public static final String GROUPS_QUERY = "SELECT ga.group.id FROM GroupAccount ga WHERE ga.account.id = :accountId AND ga.linkType = :linkType";
+    public static final String BOOKMARKS_QUERY = "SELECT pb.post.id FROM PostBookmark pb WHERE pb.owner.id = :accountId";
+
+    private final Account account;
+    private final JPAApi jpaApi;
+
+    private LongHashSet friendIds;
+    private LongHashSet groupIds;
+    private LongHashSet bookmarkIds;
+
+    public AuthorizationContext(Account account, JPAApi jpaApi) {
+        this.account = account;
+        this.jpaApi = jpaApi;
+    }
+
+    /**
+     * Binds a new context for the given account to the HTTP context, done by Component.
+     */
+    public static void bind(Context ctx, Account account, JPAApi jpaApi) {
+        ctx.args.put(CONTEXT_KEY, new AuthorizationContext(account, jpaApi));
+    }
+
+    /**
+     * Returns the context of the current request, if it belongs to the given account.
+     *
+     * @param account Account to check relations for
+     * @return AuthorizationContext or null, if there is none for this account (e.g. checks for other accounts)
+     */
+    public static AuthorizationContext forAccount(Account account) {
+        Context ctx = Context.current.get();
+        if (ctx == null || account == null) {
+            return null;
+        }
+
+        AuthorizationContext context = (AuthorizationContext) ctx.args.get(CONTEXT_KEY);
+        return context != null && account.equals(context.account) ? context : null;
+    }
+
+    /**
+     * @return True, if the account has an established friendship to the account with given ID
+     */
+    public boolean isFriend(Long accountId) {
+        return accountId != null && friends().contains(accountId);
+    }
+
+    /**
+     * @return True, if the account is an established member of the group with given ID
+     */
+    public boolean isMember(Long groupId) {
+        return groupId != null && groups().contains(groupId);
+    }
+
+    /**
+     * @return True, if the account has bookmarked the post with given ID
+     */
+    public boolean isBookmarked(Long postId) {
+        if (bookmarkIds == null) {
+            bookmarkIds = load(BOOKMARKS_QUERY, null);
+        }
+        return postId != null && bookmarkIds.contains(postId);
+    }
+
+    /**
+     * @return Ids of all friends of the account, e.g. for the search filter
+     */
+    public long[] friendIds() {
+        return friends().toArray();
+    }
+
+    /**
+     * @return Ids of all groups the account is an established member of, e.g. for the search filter
+     */
+    public long[] groupIds() {
+        return groups().toArray();
+    }
+
+    private LongHashSet friends() {
+        if (friendIds == null) {
+            friendIds = load(FRIENDS_QUERY, LinkType.establish);
+        }
+        return friendIds;
+    }
+
+    private LongHashSet groups() {
+        if (groupIds == null) {
+            groupIds = load(GROUPS_QUERY, LinkType.establish);
+        }
+        return groupIds;
+    }
+
+    /**
+     * @param jpql     Query selecting ids by :accountId
+     * @param linkType Value of the :linkType parameter, null if the query has none
+     */
+    @SuppressWarnings("unchecked")
+    private LongHashSet load(String jpql, LinkType linkType) {
+        Query query = jpaApi.em().createQuery(jpql).setParameter("accountId", account.id);
+        if (linkType != null) {
+            query.setParameter("linkType", linkType);
+        }
+
+        List<Long> ids = query.getResultList();
+        LongHashSet set = new LongHashSet(ids.size());
+        for (Long id : ids) {
+            set.add(id);
+        }
+        return set;
+    }
+}
@@ -1,11 +1,43 @@
 package controllers;
 
+import managers.StreamCursor;
+import models.Post;
 import play.db.jpa.Transactional;
 import play.mvc.*;
+import play.twirl.api.Html;
+
+import java.util.List;
+import java.util.function.Function;
 
 @Transactional
 @With(Component.class)
 public class BaseController extends Controller {
-	
 
-}
\ No newline at end of file
+	/**
+	 * Answers a stream poll. The ETag is the cursor of the newest post visible in the stream,
+	 * so an unchanged stream costs a single lookup and is answered with 304 Not Modified.
+	 * If more posts changed than fit into one page, the header X-Stream-Reload asks the client to reload the stream.
+	 *
+	 * @param newest Newest post of the stream (empty list for an empty stream)
+	 * @param since  Encoded cursor of the newest post the client knows
+	 * @param render Renders the posts in front of a cursor
+	 * @return Result
+	 */
+	protected Result streamSince(List<Post> newest, String since, Function<StreamCursor, Html> render) {
+		String etag = "\"" + (newest.isEmpty() ? "empty" : StreamCursor.of(newest.get(0)).encode()) + "\"";
+		response().setHeader(CACHE_CONTROL, "private, no-cache");
+		response().setHeader(ETAG, etag);
+
+		StreamCursor sinceCursor = StreamCursor.parse(since);
+		if (etag.equals(request().getHeader(IF_NONE_MATCH))
+				|| (sinceCursor != null && etag.equals("\"" + sinceCursor.encode() + "\""))) {
+			return status(NOT_MODIFIED);
+		}
+		if (sinceCursor == null || newest.isEmpty()) {
+			// first poll or empty stream, the client only learns the current position
+			return ok();
+		}
+
+		return ok(render.apply(sinceCursor));
+	}
+}
@@ -7,8 +7,10 @@ import java.util.concurrent.CompletionStage;
 
 import managers.AccountManager;
 import models.Account;
+import models.services.NotificationMenuCache;
 import play.Logger;
 import play.twirl.api.Html;
+import play.db.jpa.JPAApi;
 import play.db.jpa.Transactional;
 import play.mvc.Action;
 import play.mvc.Http.Context;
@@ -19,10 +21,14 @@ import javax.inject.Inject;
 public class Component extends Action.Simple {
 
     private final AccountManager accountManager;
+    private final JPAApi jpaApi;
+    private final NotificationMenuCache notificationMenuCache;
 
     @Inject
-    public Component(AccountManager accountManager) {
+    public Component(AccountManager accountManager, JPAApi jpaApi, NotificationMenuCache notificationMenuCache) {
         this.accountManager = accountManager;
+        this.jpaApi = jpaApi;
+        this.notificationMenuCache = notificationMenuCache;
     }
 	
 	@Override
@@ -38,6 +44,8 @@ public class Component extends Action.Simple {
 				return delegate.call(ctx);
 			} 
 			ctx.args.put("account", account);
+			ctx.args.put(ContextIdent.notificationMenuCache, notificationMenuCache);
+			AuthorizationContext.bind(ctx, account, jpaApi);
 		} else {
 			ctx.args.put("account", null);
 		}
@@ -47,6 +55,7 @@ public class Component extends Action.Simple {
 	
     public static class ContextIdent {
         public static String loginForm = "loginForm";
+        public static String notificationMenuCache = "notificationMenuCache";
     }
     
     public static void addToContext(String ident, Object object) {
@@ -40,6 +40,7 @@ public class GroupController extends BaseController {
     MediaManager mediaManager;
     FriendshipManager friendshipManager;
     PostManager postManager;
+    StreamPageAssembler streamPageAssembler;
     AccountManager accountManager;
     FolderManager folderManager;
     AvatarManager avatarManager;
@@ -54,6 +55,7 @@ public class GroupController extends BaseController {
                            MediaManager mediaManager,
                            FriendshipManager friendshipManager,
                            PostManager postManager,
+                           StreamPageAssembler streamPageAssembler,
                            AccountManager accountManager,
                            FolderManager folderManager,
                            AvatarManager avatarManager,
@@ -66,6 +68,7 @@ public class GroupController extends BaseController {
         this.mediaManager = mediaManager;
         this.friendshipManager = friendshipManager;
         this.postManager = postManager;
+        this.streamPageAssembler = streamPageAssembler;
         this.accountManager = accountManager;
         this.folderManager = folderManager;
         this.avatarManager = avatarManager;
@@ -104,7 +107,7 @@ public class GroupController extends BaseController {
             return redirect(controllers.routes.GroupController.index());
         }
         if (Secured.viewGroup(group)) {
-            return redirect(controllers.routes.GroupController.stream(group.id, PAGE, false));
+            return redirect(controllers.routes.GroupController.stream(group.id, PAGE, false, ""));
         }
         Navigation.set(Level.GROUPS, "Info", group.title, controllers.routes.GroupController.view(group.id));
 
@@ -112,7 +115,7 @@ public class GroupController extends BaseController {
     }
 
     @Transactional(readOnly = true)
-    public Result stream(Long id, int page, boolean raw) {
+    public Result stream(Long id, int page, boolean raw, String cursor) {
         Group group = groupManager.findById(id);
 
         if (group == null) {
@@ -123,14 +126,46 @@ public class GroupController extends BaseController {
             return redirect(controllers.routes.GroupController.view(group.id));
         }
 
-        Navigation.set(Level.GROUPS, "Newsstream", group.title, controllers.routes.GroupController.stream(group.id, PAGE, false));
-        List<Post> posts = postManager.getPostsForGroup(group, limit, page);
+        Navigation.set(Level.GROUPS, "Newsstream", group.title, controllers.routes.GroupController.stream(group.id, PAGE, false, ""));
+        StreamCursor streamCursor = StreamCursor.parse(cursor);
+
+        if (raw && streamCursor != null) {
+            // infinite scroll: probe one more post instead of counting the stream
+            List<Post> posts = postManager.getPostsForGroup(group, limit + 1, streamCursor);
+            boolean hasMore = StreamCursor.hasMore(posts, limit);
+            return ok(streamRaw.render(group, streamPageAssembler.assemble(posts, Component.currentAccount()), postForm, null, limit, page, StreamCursor.next(posts, limit), hasMore));
+        }
+
+        List<Post> posts = streamCursor != null
+                ? postManager.getPostsForGroup(group, limit, streamCursor)
+                : postManager.getPostsForGroup(group, limit, page);
+        String nextCursor = StreamCursor.next(posts, limit);
 
         if (raw) {
-            return ok(streamRaw.render(group, posts, postForm, postManager.countPostsForGroup(group), limit, page));
+            return ok(streamRaw.render(group, streamPageAssembler.assemble(posts, Component.currentAccount()), postForm, postManager.countPostsForGroup(group), limit, page, nextCursor, null));
         } else {
-            return ok(stream.render(group, posts, postForm, postManager.countPostsForGroup(group), limit, page));
+            return ok(stream.render(group, streamPageAssembler.assemble(posts, Component.currentAccount()), postForm, postManager.countPostsForGroup(group), limit, page, nextCursor));
+        }
+    }
+
+    /**
+     * Returns the group posts which are new or were updated since the given cursor, see BaseController.streamSince().
+     */
+    @Transactional(readOnly = true)
+    public Result streamSince(Long id, String since) {
+        Group group = groupManager.findById(id);
+
+        if (!Secured.viewGroup(group)) {
+            return forbidden();
         }
+
+        return streamSince(postManager.getPostsForGroup(group, 1, PAGE), since, cursor -> {
+            List<Post> posts = postManager.getPostsForGroupSince(group, cursor, limit + 1);
+            if (StreamCursor.hasMore(posts, limit)) {
+                response().setHeader("X-Stream-Reload", "true");
+            }
+            return views.html.snippets.streamSince.render(streamPageAssembler.assemble(posts, Component.currentAccount()), postForm, Post.GROUP);
+        });
     }
 
     @Transactional(readOnly = true)
@@ -153,7 +188,7 @@ public class GroupController extends BaseController {
             folder = group.rootFolder;
         }
 
-        Navigation.set(Level.GROUPS, "Media", group.title, controllers.routes.GroupController.stream(group.id, PAGE, false));
+        Navigation.set(Level.GROUPS, "Media", group.title, controllers.routes.GroupController.stream(group.id, PAGE, false, ""));
         List<Media> mediaSet = folder.files;
         List<Folder> folderList = folder.folders;
         List<Folder> navigationFolder = folder.findAncestors(folder);
@@ -225,7 +260,7 @@ public class GroupController extends BaseController {
 
             groupManager.createWithGroupAccount(group, Component.currentAccount());
             flash("success", successMsg + " erstellt!");
-            return redirect(controllers.routes.GroupController.stream(group.id, PAGE, false));
+            return redirect(controllers.routes.GroupController.stream(group.id, PAGE, false, ""));
         }
     }
 
@@ -243,7 +278,7 @@ public class GroupController extends BaseController {
             return redirect(controllers.routes.GroupController.view(id));
         }
 
-        Navigation.set(Level.GROUPS, "Bearbeiten", group.title, controllers.routes.GroupController.stream(group.id, PAGE, false));
+        Navigation.set(Level.GROUPS, "Bearbeiten", group.title, controllers.routes.GroupController.stream(group.id, PAGE, false, ""));
         Form<Group> groupForm = formFactory.form(Group.class).fill(group);
         groupForm.data().put("type", String.valueOf(group.groupType.ordinal()));
         return ok(edit.render(group, groupForm));
@@ -259,7 +294,7 @@ public class GroupController extends BaseController {
             return redirect(controllers.routes.GroupController.index());
         }
 
-        Navigation.set(Level.GROUPS, "Bearbeiten", group.title, controllers.routes.GroupController.stream(group.id, PAGE, false));
+        Navigation.set(Level.GROUPS, "Bearbeiten", group.title, controllers.routes.GroupController.stream(group.id, PAGE, false, ""));
 
         // Check rights
         if (!Secured.editGroup(group)) {
@@ -299,7 +334,7 @@ public class GroupController extends BaseController {
         group.description = description;
         groupManager.update(group);
         flash("success", "'" + group.title + "' erfolgreich bearbeitet!");
-        return redirect(controllers.routes.GroupController.stream(groupId, PAGE, false));
+        return redirect(controllers.routes.GroupController.stream(groupId, PAGE, false, ""));
 
     }
 
@@ -329,7 +364,7 @@ public class GroupController extends BaseController {
             return redirect(controllers.routes.GroupController.index());
         }
 
-        Navigation.set(Level.GROUPS, "Token eingeben", group.title, controllers.routes.GroupController.stream(group.id, PAGE, false));
+        Navigation.set(Level.GROUPS, "Token eingeben", group.title, controllers.routes.GroupController.stream(group.id, PAGE, false, ""));
         return ok(token.render(group, groupForm));
     }
 
@@ -343,10 +378,10 @@ public class GroupController extends BaseController {
 
         if (Secured.isMemberOfGroup(group, Component.currentAccount())) {
             flash("error", "Du bist bereits Mitglied dieser Gruppe!");
-            return redirect(controllers.routes.GroupController.stream(groupId, PAGE, false));
+            return redirect(controllers.routes.GroupController.stream(groupId, PAGE, false, ""));
         }
 
-        Navigation.set(Level.GROUPS, "Token eingeben", group.title, controllers.routes.GroupController.stream(group.id, PAGE, false));
+        Navigation.set(Level.GROUPS, "Token eingeben", group.title, controllers.routes.GroupController.stream(group.id, PAGE, false, ""));
         Form<Group> filledForm = groupForm.bindFromRequest();
         String enteredToken = filledForm.data().get("token");
 
@@ -354,7 +389,7 @@ public class GroupController extends BaseController {
             Account account = Component.currentAccount();
             groupAccountManager.create(new GroupAccount(group, account, LinkType.establish));
             flash("success", "Kurs erfolgreich beigetreten!");
-            return redirect(controllers.routes.GroupController.stream(groupId, PAGE, false));
+            return redirect(controllers.routes.GroupController.stream(groupId, PAGE, false, ""));
         } else {
             flash("error", "Hast du dich vielleicht vertippt? Der Token ist leider falsch.");
             return badRequest(token.render(group, filledForm));
@@ -373,7 +408,7 @@ public class GroupController extends BaseController {
 
         if (Secured.isMemberOfGroup(group, account)) {
             flash("error", "Du bist bereits Mitglied dieser Gruppe!");
-            return redirect(controllers.routes.GroupController.stream(id, PAGE, false));
+            return redirect(controllers.routes.GroupController.stream(id, PAGE, false, ""));
         }
 
         // is already requested?
@@ -398,7 +433,7 @@ public class GroupController extends BaseController {
         } else if (group.groupType.equals(GroupType.open)) {
             groupAccountManager.create(new GroupAccount(group, account, LinkType.establish));
             flash("success", "'" + group.title + "' erfolgreich beigetreten!");
-            return redirect(controllers.routes.GroupController.stream(id, PAGE, false));
+            return redirect(controllers.routes.GroupController.stream(id, PAGE, false, ""));
         } else if (group.groupType.equals(GroupType.close)) {
             groupAccountManager.create(new GroupAccount(group, account, LinkType.request));
             group.temporarySender = account;
@@ -523,7 +558,7 @@ public class GroupController extends BaseController {
             return redirect(controllers.routes.GroupController.index());
         }
 
-        Navigation.set(Level.GROUPS, "Kontakte einladen", group.title, controllers.routes.GroupController.stream(group.id, PAGE, false));
+        Navigation.set(Level.GROUPS, "Kontakte einladen", group.title, controllers.routes.GroupController.stream(group.id, PAGE, false, ""));
         return ok(invite.render(group, friendshipManager.friendsToInvite(Component.currentAccount(), group), groupAccountManager.findAccountsByGroup(group, LinkType.invite)));
     }
 
@@ -576,7 +611,7 @@ public class GroupController extends BaseController {
         }
 
         flash("success", messagesApi.get(Lang.defaultLang(), "group.invite_invited"));
-        return redirect(controllers.routes.GroupController.stream(groupId, PAGE, false));
+        return redirect(controllers.routes.GroupController.stream(groupId, PAGE, false, ""));
     }
 
     public Result acceptInvitation(long groupId, long accountId) {
@@ -595,7 +630,7 @@ public class GroupController extends BaseController {
 
         }
 
-        return redirect(controllers.routes.GroupController.stream(groupId, PAGE, false));
+        return redirect(controllers.routes.GroupController.stream(groupId, PAGE, false, ""));
     }
 
     public Result declineInvitation(long groupId, long accountId) {
@@ -6,6 +6,7 @@ import java.util.List;
 import managers.NotificationManager;
 import models.Account;
 import models.Notification;
+import models.services.NotificationMenuCache;
 import play.Configuration;
 import play.api.i18n.Lang;
 import play.i18n.MessagesApi;
@@ -60,16 +61,33 @@ public class NotificationController extends BaseController {
 			return new Html("Das wird nichts");
 		}
 
-        List<Notification> list = null;
+        NotificationMenuCache.Menu menu = NotificationController.getMenu(account);
+        List<Integer> countedNotifications = NotificationController.countNotifications(menu.newest);
+        return views.html.Notification.menuitem.render(menu.newest, countedNotifications.get(0), menu.unread);
+	}
+
+    /**
+     * Returns the unread counter and the newest unread notifications of an account, from the cache bound
+     * to the request by Component or from the database.
+     *
+     * @param account Account
+     * @return Menu instance
+     */
+    private static NotificationMenuCache.Menu getMenu(Account account) {
+        NotificationMenuCache cache = (NotificationMenuCache) Component.getFromContext(Component.ContextIdent.notificationMenuCache);
+        return cache != null
+                ? cache.get(account.id, () -> NotificationController.loadMenu(account))
+                : NotificationController.loadMenu(account);
+    }
+
+    private static NotificationMenuCache.Menu loadMenu(Account account) {
+        List<Notification> list = new LinkedList<>();
         try {
             list = NotificationManager.findByAccountIdUnread(account.id);
         } catch (Throwable throwable) { throwable.printStackTrace(); }
 
-        List<Integer> countedNotifications = NotificationController.countNotifications(list);
-        return views.html.Notification.menuitem.render(list, countedNotifications.get(0),
-                NotificationManager.countUnreadNotificationsForAccountId(account.id)
-        );
-	}
+        return new NotificationMenuCache.Menu(NotificationManager.countUnreadNotificationsForAccountId(account.id), list);
+    }
 
     /**
      * Redirects to the target URL of the notification, if user has access.
@@ -92,10 +110,7 @@ public class NotificationController extends BaseController {
 		}
 
         // update only when notification is unread
-        if (!notification.isRead) {
-            notification.isRead = true;
-            notificationManager.update(notification);
-        }
+        notificationManager.markAsRead(notification);
 
 		return redirect(notification.targetUrl);
 	}
@@ -5,6 +5,8 @@ import managers.AccountManager;
 import managers.GroupManager;
 import managers.PostBookmarkManager;
 import managers.PostManager;
+import managers.StreamPage;
+import managers.StreamPageAssembler;
 import models.Account;
 import models.Group;
 import models.Post;
@@ -23,6 +25,7 @@ import play.mvc.Security;
 import views.html.Post.view;
 
 import javax.inject.Inject;
+import java.util.Collections;
 import java.util.List;
 
 @Security.Authenticated(Secured.class)
@@ -32,6 +35,7 @@ public class PostController extends BaseController {
 
     GroupManager groupManager;
     PostManager postManager;
+    StreamPageAssembler streamPageAssembler;
     PostBookmarkManager postBookmarkManager;
     AccountManager accountManager;
     Configuration configuration;
@@ -42,6 +46,7 @@ public class PostController extends BaseController {
     @Inject
     public PostController(GroupManager groupManager,
                           PostManager postManager,
+                          StreamPageAssembler streamPageAssembler,
             PostBookmarkManager postBookmarkManager,
                           AccountManager accountManager,
                           Configuration configuration,
@@ -50,6 +55,7 @@ public class PostController extends BaseController {
                           MessagesApi messagesApi) {
         this.groupManager = groupManager;
         this.postManager = postManager;
+        this.streamPageAssembler = streamPageAssembler;
         this.postBookmarkManager = postBookmarkManager;
         this.accountManager = accountManager;
         this.configuration = configuration;
@@ -80,14 +86,14 @@ public class PostController extends BaseController {
         }
 
         if (postManager.belongsToGroup(post)) {
-            Navigation.set(Level.GROUPS, "Post", post.group.title, controllers.routes.GroupController.stream(post.group.id, PAGE, false));
+            Navigation.set(Level.GROUPS, "Post", post.group.title, controllers.routes.GroupController.stream(post.group.id, PAGE, false, ""));
         }
 
         if (post.belongsToAccount()) {
-            Navigation.set(Level.FRIENDS, "Post", post.account.name, controllers.routes.ProfileController.stream(post.account.id, PAGE, false));
+            Navigation.set(Level.FRIENDS, "Post", post.account.name, controllers.routes.ProfileController.stream(post.account.id, PAGE, false, ""));
         }
 
-        return ok(view.render(post, postForm));
+        return ok(view.render(streamPageAssembler.assembleSinglePost(post, Component.currentAccount()), postForm));
     }
 
     /**
@@ -119,7 +125,7 @@ public class PostController extends BaseController {
                 flash("info", messagesApi.get(Lang.defaultLang(), "post.join_group_first"));
             }
 
-            return redirect(controllers.routes.GroupController.stream(group.id, PAGE, false));
+            return redirect(controllers.routes.GroupController.stream(group.id, PAGE, false, ""));
         }
 
         if (target.equals(Post.PROFILE)) {
@@ -137,11 +143,11 @@ public class PostController extends BaseController {
                     }
                 }
 
-                return redirect(controllers.routes.ProfileController.stream(anyId, PAGE, false));
+                return redirect(controllers.routes.ProfileController.stream(anyId, PAGE, false, ""));
             }
 
             flash("info", messagesApi.get(Lang.defaultLang(), "post.post_on_stream_only"));
-            return redirect(controllers.routes.ProfileController.stream(anyId, PAGE, false));
+            return redirect(controllers.routes.ProfileController.stream(anyId, PAGE, false, ""));
         }
 
         if (target.equals(Post.STREAM)) {
@@ -155,11 +161,11 @@ public class PostController extends BaseController {
                     post.owner = account;
                     postManager.create(post);
                 }
-                return redirect(controllers.routes.Application.stream(STREAM_FILTER, PAGE, false));
+                return redirect(controllers.routes.Application.stream(STREAM_FILTER, PAGE, false, ""));
             }
 
             flash("info", messagesApi.get(Lang.defaultLang(), "post.post_on_stream_only"));
-            return redirect(controllers.routes.Application.stream(STREAM_FILTER, PAGE, false));
+            return redirect(controllers.routes.Application.stream(STREAM_FILTER, PAGE, false, ""));
         }
 
         return redirect(controllers.routes.Application.index());
@@ -200,7 +206,8 @@ public class PostController extends BaseController {
                 }
             }
             LOG.info("New comment from " + post.owner.id + " for post " + post.parent.id);
-            return ok(views.html.snippets.postComment.render(post));
+            StreamPage.CommentEntry entry = streamPageAssembler.assembleComments(Collections.singletonList(post), parent, account).get(0);
+            return ok(views.html.snippets.postComment.render(entry));
         }
     }
 
@@ -238,17 +245,6 @@ public class PostController extends BaseController {
         }
     }
 
-    @Transactional
-    public static List<Post> getComments(Long id, int limit) {
-        //int max = Integer.parseInt(Play.application().configuration().getString("htwplus.comments.init"));
-        int offset = 0;
-        if (limit != 0) {
-            offset = PostManager.countCommentsForPost2(id) - limit;
-        }
-        return PostManager.getCommentsForPost2(id, limit, offset);
-    }
-
-
     @Transactional
     public Result getOlderComments(Long id, Integer current) {
         Post parent = postManager.findById(id);
@@ -260,12 +256,12 @@ public class PostController extends BaseController {
         String result = "";
 
         // subtract already displayed comments
-        int limit = postManager.countCommentsForPost(id) - Integer.parseInt(configuration.getString("htwplus.comments.init"));
+        int limit = parent.commentCount - Integer.parseInt(configuration.getString("htwplus.comments.init"));
 
         List<Post> comments;
         comments = postManager.getCommentsForPost(id, limit, 0);
-        for (Post post : comments) {
-            result = result.concat(views.html.snippets.postComment.render(post).toString());
+        for (StreamPage.CommentEntry entry : streamPageAssembler.assembleComments(comments, parent, Component.currentAccount())) {
+            result = result.concat(views.html.snippets.postComment.render(entry).toString());
         }
         return ok(result);
     }
@@ -280,7 +276,7 @@ public class PostController extends BaseController {
 
             //verify redirect
             if (post.group != null) {
-                routesTo = controllers.routes.GroupController.stream(post.group.id, PAGE, false);
+                routesTo = controllers.routes.GroupController.stream(post.group.id, PAGE, false, "");
             }
 
             if (post.account != null) {
@@ -289,7 +285,7 @@ public class PostController extends BaseController {
 
             if (post.parent != null) {
                 if (post.parent.group != null) {
-                    routesTo = controllers.routes.GroupController.stream(post.parent.group.id, PAGE, false);
+                    routesTo = controllers.routes.GroupController.stream(post.parent.group.id, PAGE, false, "");
                 } else if (post.parent.account != null) {
                     routesTo = controllers.routes.Application.index();
                 }
@@ -35,6 +35,7 @@ public class ProfileController extends BaseController {
     AccountManager accountManager;
     GroupAccountManager groupAccountManager;
     PostManager postManager;
+    StreamPageAssembler streamPageAssembler;
     AccountController accountController;
     StudycourseManager studycourseManager;
     AvatarManager avatarManager;
@@ -48,6 +49,7 @@ public class ProfileController extends BaseController {
     public ProfileController(AccountManager accountManager,
             GroupAccountManager groupAccountManager,
             PostManager postManager,
+            StreamPageAssembler streamPageAssembler,
             AccountController accountController,
             StudycourseManager studycourseManager,
             AvatarManager avatarManager,
@@ -56,6 +58,7 @@ public class ProfileController extends BaseController {
         this.accountManager = accountManager;
         this.groupAccountManager = groupAccountManager;
         this.postManager = postManager;
+        this.streamPageAssembler = streamPageAssembler;
         this.accountController = accountController;
         this.studycourseManager = studycourseManager;
         this.avatarManager = avatarManager;
@@ -96,7 +99,7 @@ public class ProfileController extends BaseController {
 			return redirect(controllers.routes.Application.index());
 		} else {
 			if(Secured.isFriend(account) || Component.currentAccount().equals(account)) {
-				return redirect(routes.ProfileController.stream(account.id, PAGE, false));
+				return redirect(routes.ProfileController.stream(account.id, PAGE, false, ""));
 			} else {
 				Navigation.set(Level.USER, "Profil", account.name, controllers.routes.ProfileController.view(account.id));
 			}
@@ -106,7 +109,7 @@ public class ProfileController extends BaseController {
 	}
 
     @Transactional
-    public Result stream(Long accountId, int page, boolean raw) {
+    public Result stream(Long accountId, int page, boolean raw, String cursor) {
         Account account = accountManager.findById(accountId);
         Account currentUser = Component.currentAccount();
 
@@ -125,12 +128,24 @@ public class ProfileController extends BaseController {
         // case for friends and own profile
         if (friendshipManager.alreadyFriendly(Component.currentAccount(), account)
                 || currentUser.equals(account) || Secured.isAdmin()) {
+            StreamCursor streamCursor = StreamCursor.parse(cursor);
+
+            if (raw && streamCursor != null) {
+                // infinite scroll: probe one more post instead of counting the stream
+                List<Post> posts = postManager.getFriendStream(account, LIMIT + 1, streamCursor);
+                boolean hasMore = StreamCursor.hasMore(posts, LIMIT);
+                return ok(streamRaw.render(account, streamPageAssembler.assemble(posts, currentUser), postForm, null, LIMIT, page, StreamCursor.next(posts, LIMIT), hasMore));
+            }
+
+            List<Post> posts = streamCursor != null
+                    ? postManager.getFriendStream(account, LIMIT, streamCursor)
+                    : postManager.getFriendStream(account, LIMIT, page);
+            String nextCursor = StreamCursor.next(posts, LIMIT);
+
             if (raw) {
-                return ok(streamRaw.render(account, postManager.getFriendStream(account, LIMIT, page),
-                        postForm, postManager.countFriendStream(account), LIMIT, page));
+                return ok(streamRaw.render(account, streamPageAssembler.assemble(posts, currentUser), postForm, postManager.countFriendStream(account), LIMIT, page, nextCursor, null));
             } else {
-                return ok(stream.render(account, postManager.getFriendStream(account, LIMIT, page),
-                        postForm, postManager.countFriendStream(account), LIMIT, page));
+                return ok(stream.render(account, streamPageAssembler.assemble(posts, currentUser), postForm, postManager.countFriendStream(account), LIMIT, page, nextCursor));
             }
         }
         // case for visitors
@@ -138,6 +153,28 @@ public class ProfileController extends BaseController {
         return redirect(controllers.routes.ProfileController.view(accountId));
     }
 
+    /**
+     * Returns the posts of a stream which are new or were updated since the given cursor, see BaseController.streamSince().
+     */
+    @Transactional(readOnly = true)
+    public Result streamSince(Long accountId, String since) {
+        Account account = accountManager.findById(accountId);
+        Account currentUser = Component.currentAccount();
+
+        if (account == null || !(friendshipManager.alreadyFriendly(currentUser, account)
+                || currentUser.equals(account) || Secured.isAdmin())) {
+            return forbidden();
+        }
+
+        return streamSince(postManager.getFriendStream(account, 1, PAGE), since, cursor -> {
+            List<Post> posts = postManager.getFriendStreamSince(account, cursor, LIMIT + 1);
+            if (StreamCursor.hasMore(posts, LIMIT)) {
+                response().setHeader("X-Stream-Reload", "true");
+            }
+            return views.html.snippets.streamSince.render(streamPageAssembler.assemble(posts, currentUser), postForm, Post.PROFILE);
+        });
+    }
+
     public Result convert(Long id) {
         Account account = accountManager.findById(id);
 
@@ -141,6 +141,10 @@ public class Secured extends Security.Authenticator {
 	 * @return True, if account is member
 	 */
 	public static boolean isMemberOfGroup(Group group, Account account){
+		AuthorizationContext context = AuthorizationContext.forAccount(account);
+		if (context != null) {
+			return context.isMember(group.id);
+		}
 		return GroupManager.isMember(group, account);
 	}
 
@@ -376,6 +380,10 @@ public class Secured extends Security.Authenticator {
         if (post == null) {
             return false;
         }
+        AuthorizationContext context = AuthorizationContext.forAccount(account);
+        if (context != null) {
+            return context.isBookmarked(post.id);
+        }
         return PostBookmarkManager.isPostBookmarkedByAccount(account, post);
     }
 
@@ -521,7 +529,12 @@ public class Secured extends Security.Authenticator {
 	 * @return True, if logged in account has friendship to account
 	 */
 	public static boolean isFriend(Account account) {
-		return FriendshipManager.alreadyFriendly2(Component.currentAccount(), account);
+		Account current = Component.currentAccount();
+		AuthorizationContext context = AuthorizationContext.forAccount(current);
+		if (context != null) {
+			return account != null && context.isFriend(account.id);
+		}
+		return FriendshipManager.alreadyFriendly2(current, account);
 	}
 
 	/**
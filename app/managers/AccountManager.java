@@ -3,9 +3,8 @@ package managers;
 import controllers.Component;
 import models.*;
 import models.base.FileOperationException;
-import models.enums.AccountRole;
 import models.enums.LinkType;
-import models.services.ElasticsearchService;
+import models.services.IndexOutbox;
 import play.Configuration;
 import play.Logger;
 import play.db.jpa.JPA;
@@ -13,7 +12,6 @@ import play.db.jpa.JPAApi;
 
 import javax.inject.Inject;
 import javax.persistence.NoResultException;
-import java.io.IOException;
 import java.util.List;
 
 /**
@@ -21,7 +19,7 @@ import java.util.List;
  */
 public class AccountManager implements BaseManager {
 
-    ElasticsearchService elasticsearchService;
+    IndexOutbox indexOutbox;
     PostManager postManager;
     GroupManager groupManager;
     GroupAccountManager groupAccountManager;
@@ -30,11 +28,12 @@ public class AccountManager implements BaseManager {
     NotificationManager notificationManager;
     AvatarManager avatarManager;
     FolderManager folderManager;
+    TimelineManager timelineManager;
     Configuration configuration;
     JPAApi jpaApi;
 
     @Inject
-    public AccountManager(ElasticsearchService elasticsearchService,
+    public AccountManager(IndexOutbox indexOutbox,
             PostManager postManager,
             GroupManager groupManager,
             GroupAccountManager groupAccountManager,
@@ -43,8 +42,9 @@ public class AccountManager implements BaseManager {
             NotificationManager notificationManager,
             AvatarManager avatarManager,
             FolderManager folderManager,
+            TimelineManager timelineManager,
             Configuration configuration, JPAApi jpaApi) {
-            this.elasticsearchService = elasticsearchService;
+            this.indexOutbox = indexOutbox;
         this.postManager = postManager;
         this.groupManager = groupManager;
         this.groupAccountManager = groupAccountManager;
@@ -53,6 +53,7 @@ public class AccountManager implements BaseManager {
         this.notificationManager = notificationManager;
         this.avatarManager = avatarManager;
         this.folderManager = folderManager;
+        this.timelineManager = timelineManager;
         this.configuration = configuration;
         this.jpaApi = jpaApi;
     }
@@ -66,11 +67,7 @@ public class AccountManager implements BaseManager {
         folderManager.create(account.rootFolder);
 
         jpaApi.em().persist(account);
-        try {
-            elasticsearchService.index(account);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        indexOutbox.index(account);
     }
 
     @Override
@@ -79,11 +76,7 @@ public class AccountManager implements BaseManager {
 
         account.name = account.firstname + " " + account.lastname;
         jpaApi.em().merge(account);
-        try {
-            elasticsearchService.index(account);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        indexOutbox.index(account);
     }
 
     @Override
@@ -101,14 +94,14 @@ public class AccountManager implements BaseManager {
         List<Post> owned = postManager.listAllPostsOwnedBy(account.id);
         for (Post post : owned) {
             post.owner = dummy;
-            postManager.create(post); // elastic search indexing
             postManager.update(post);
+            timelineManager.refresh(post);
         }
         List<Post> pinned = postManager.listAllPostsPostedOnAccount(account.id);
         for (Post post : pinned) {
             post.account = dummy;
-            postManager.create(post); // elastic search indexing
             postManager.update(post);
+            timelineManager.refresh(post);
         }
 
         // Anonymize created groups //
@@ -151,8 +144,9 @@ public class AccountManager implements BaseManager {
             notificationManager.delete(not);
         }
 
-        elasticsearchService.delete(account);
+        indexOutbox.delete(account);
 
+        timelineManager.removeAccount(account);
         jpaApi.em().remove(account);
     }
 
@@ -247,26 +241,7 @@ public class AccountManager implements BaseManager {
      * Index the current account
      */
     public void indexAccount(Account account) {
-        try {
-            elasticsearchService.index(account);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-    }
-
-    /**
-     * Index all accounts
-     */
-    public long indexAllAccounts() throws IOException {
-        final long start = System.currentTimeMillis();
-
-        for (Account account: all()) {
-            if(account.role != AccountRole.DUMMY)
-                elasticsearchService.index(account);
-        }
-
-        return (System.currentTimeMillis() - start) / 1000;
-
+        indexOutbox.index(account);
     }
 
     public void saveAvatar(Avatar avatar, Account account) throws FileOperationException {
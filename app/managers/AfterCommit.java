@@ -0,0 +1,52 @@
+package managers;
+
+import org.hibernate.Session;
+import org.hibernate.Transaction;
+import play.Logger;
+
+import javax.persistence.EntityManager;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+
+/**
+ * Runs cache updates once the current transaction has committed. Readers can not cache uncommitted state
+ * again right after an invalidation, and a rollback leaves the caches untouched.
+ * Without an active transaction the action runs at once.
+ */
+public final class AfterCommit {
+
+    private static final Logger.ALogger LOG = Logger.of(AfterCommit.class);
+
+    private AfterCommit() {
+    }
+
+    /**
+     * @param em     Entity manager of the current transaction
+     * @param action Action to run after a successful commit
+     */
+    public static void run(EntityManager em, Runnable action) {
+        Transaction transaction = em.unwrap(Session.class).getTransaction();
+        if (!transaction.isActive()) {
+            action.run();
+            return;
+        }
+
+        transaction.registerSynchronization(new Synchronization() {
+            @Override
+            public void beforeCompletion() {
+            }
+
+            @Override
+            public void afterCompletion(int status) {
+                if (status != Status.STATUS_COMMITTED) {
+                    return;
+                }
+                try {
+                    action.run();
+                } catch (RuntimeException e) {
+                    LOG.error("After commit action failed", e);
+                }
+            }
+        });
+    }
+}
@@ -2,13 +2,11 @@ package managers;
 
 import models.*;
 import models.enums.LinkType;
-import models.services.ElasticsearchService;
 import play.db.jpa.JPA;
 import play.db.jpa.JPAApi;
 
 import javax.inject.Inject;
 import javax.persistence.NoResultException;
-import java.io.IOException;
 import java.util.Iterator;
 import java.util.List;
 
@@ -17,27 +15,27 @@ import java.util.List;
  */
 public class FriendshipManager implements BaseManager {
 
-    @Inject
-    ElasticsearchService elasticsearchService;
     @Inject
     NotificationManager notificationManager;
     @Inject
     GroupAccountManager groupAccountManager;
     @Inject
+    TimelineManager timelineManager;
+    @Inject
     JPAApi jpaApi;
 
     @Override
     public void create(Object model) {
         Friendship friendship = ((Friendship) model);
         jpaApi.em().persist(model);
-        reIndex(friendship);
+        refreshTimeline(friendship);
     }
 
     @Override
     public void update(Object model) {
         Friendship friendship = ((Friendship) model);
         jpaApi.em().merge(model);
-        reIndex(friendship);
+        refreshTimeline(friendship);
     }
 
     @Override
@@ -45,7 +43,16 @@ public class FriendshipManager implements BaseManager {
         Friendship friendship = ((Friendship) model);
         jpaApi.em().remove(friendship);
         notificationManager.deleteReferences(friendship);
-        reIndex(friendship);
+        refreshTimeline(friendship);
+    }
+
+    /**
+     * Only established friendships change the streams of both accounts.
+     */
+    private void refreshTimeline(Friendship friendship) {
+        if (friendship.linkType == LinkType.establish) {
+            timelineManager.refreshFriendship(friendship.account, friendship.friend);
+        }
     }
 
     public Friendship findById(Long id) {
@@ -170,15 +177,4 @@ public class FriendshipManager implements BaseManager {
 
         return inevitableFriends;
     }
-
-    private void reIndex(Friendship friendship) {
-        // each account document contains information about their friends
-        // if a user accepts or deletes a friendship -> (re)index both user documents
-        try {
-            elasticsearchService.index(friendship.account);
-            elasticsearchService.index(friendship.friend);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-    }
 }
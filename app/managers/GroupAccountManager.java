@@ -4,7 +4,6 @@ import akka.actor.ActorSystem;
 import models.*;
 import models.enums.GroupType;
 import models.enums.LinkType;
-import models.services.ElasticsearchService;
 import play.db.jpa.DefaultJPAApi;
 import play.db.jpa.JPA;
 import play.db.jpa.JPAApi;
@@ -12,7 +11,6 @@ import scala.concurrent.duration.Duration;
 
 import javax.inject.Inject;
 import javax.persistence.NoResultException;
-import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
@@ -23,37 +21,44 @@ import java.util.concurrent.TimeUnit;
  */
 public class GroupAccountManager implements BaseManager {
 
-    @Inject
-    ElasticsearchService elasticsearchService;
     @Inject
     NotificationManager notificationManager;
     @Inject
-    PostManager postManager;
-    @Inject
-    MediaManager mediaManager;
+    TimelineManager timelineManager;
     @Inject
     JPAApi jpaApi;
 
     @Override
     public void create(Object model) {
-        jpaApi.em().persist(model);
-        reIndex(((GroupAccount) model).group);
+        GroupAccount groupAccount = (GroupAccount) model;
+        jpaApi.em().persist(groupAccount);
+        refreshTimeline(groupAccount);
     }
 
     @Override
     public void update(Object model) {
-        jpaApi.em().merge(model);
-        reIndex(((GroupAccount) model).group);
+        GroupAccount groupAccount = (GroupAccount) model;
+        jpaApi.em().merge(groupAccount);
+        refreshTimeline(groupAccount);
     }
 
     @Override
     public void delete(Object model) {
         GroupAccount groupAccount = (GroupAccount) model;
         jpaApi.em().remove(groupAccount);
-        reIndex(groupAccount.group);
+        refreshTimeline(groupAccount);
         notificationManager.deleteReferencesForAccountId(groupAccount.group, groupAccount.account.id);
     }
 
+    /**
+     * Only established memberships change the stream of an account.
+     */
+    private void refreshTimeline(GroupAccount groupAccount) {
+        if (groupAccount.linkType == LinkType.establish) {
+            timelineManager.refreshMembership(groupAccount.account, groupAccount.group);
+        }
+    }
+
     public GroupAccount findById(Long id) {
         return jpaApi.em().find(GroupAccount.class, id);
     }
@@ -211,32 +216,6 @@ public class GroupAccountManager implements BaseManager {
         }
     }
 
-    /**
-     * each group document contains information about their member
-     * if a user gets access to this group -> (re)index group document
-     * and (re)index all containing post documents
-     *
-     * @param group group which should be indexed
-     */
-    private void reIndex(Group group) {
-        new Thread(() -> {
-            jpaApi.withTransaction(() -> {
-                try {
-                    elasticsearchService.index(group);
-                    for (Post post : postManager.getPostsForGroup(group, 0, 0)) {
-                        elasticsearchService.index(post);
-                    }
-
-                    for (Media medium : mediaManager.findByFolder(group.rootFolder.id)) {
-                        elasticsearchService.index(medium);
-                    }
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            });
-        }).start();
-    }
-
     /**
      * filter GroupAccounts by LinkType
      * @param groupAccountList list of groupAccounts
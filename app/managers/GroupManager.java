@@ -3,12 +3,11 @@ package managers;
 import models.*;
 import models.base.FileOperationException;
 import models.enums.LinkType;
-import models.services.ElasticsearchService;
+import models.services.IndexOutbox;
 import play.db.jpa.JPA;
 import play.db.jpa.JPAApi;
 
 import javax.inject.Inject;
-import java.io.IOException;
 import java.util.List;
 
 /**
@@ -17,7 +16,7 @@ import java.util.List;
 public class GroupManager implements BaseManager {
 
     @Inject
-    ElasticsearchService elasticsearchService;
+    IndexOutbox indexOutbox;
 
     @Inject
     GroupAccountManager groupAccountManager;
@@ -54,11 +53,7 @@ public class GroupManager implements BaseManager {
     @Override
     public void update(Object model) {
         JPA.em().merge(model);
-        try {
-            elasticsearchService.index(model);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        indexOutbox.index(model);
     }
 
     @Override
@@ -77,8 +72,8 @@ public class GroupManager implements BaseManager {
         // Delete Notifications
         notificationManager.deleteReferences(group);
 
-        // Delete Elasticsearch document
-        elasticsearchService.delete(group);
+        // Delete Elasticsearch document (asynchronously)
+        indexOutbox.delete(group);
 
         jpaApi.em().remove(group);
     }
@@ -142,13 +137,6 @@ public class GroupManager implements BaseManager {
         return !groupAccounts.isEmpty();
     }
 
-    public long indexAllGroups() throws IOException {
-        final long start = System.currentTimeMillis();
-        for (Group group : all()) elasticsearchService.index(group);
-        return (System.currentTimeMillis() - start) / 1000;
-
-    }
-
     public void saveAvatar(Avatar avatar, Group group) throws FileOperationException {
         avatarManager.saveAvatar(avatar, group.id);
         group.hasAvatar = true;
@@ -4,13 +4,11 @@ import models.Account;
 import models.Folder;
 import models.Media;
 import models.enums.GroupType;
-import models.enums.LinkType;
-import models.services.ElasticsearchService;
+import models.services.IndexOutbox;
 import play.Configuration;
 import play.Logger;
 import play.db.jpa.JPAApi;
 
-import java.io.IOException;
 import java.nio.file.Files;
 
 import javax.inject.Inject;
@@ -39,7 +37,7 @@ public class MediaManager implements BaseManager {
     FriendshipManager friendshipManager;
 
     @Inject
-    ElasticsearchService elasticsearchService;
+    IndexOutbox indexOutbox;
 
     @Inject
     JPAApi jpaApi;
@@ -54,7 +52,7 @@ public class MediaManager implements BaseManager {
         try {
             createFile(media);
             jpaApi.em().persist(media);
-            elasticsearchService.index(media);
+            indexOutbox.index(media);
         } catch (Exception e) {
             try {
                 throw e;
@@ -80,6 +78,7 @@ public class MediaManager implements BaseManager {
 
             deleteFile(media);
             jpaApi.em().remove(media);
+            indexOutbox.delete(media);
         } catch (FileNotFoundException e) {
             e.printStackTrace();
         }
@@ -221,40 +220,6 @@ public class MediaManager implements BaseManager {
         return (int) (size / 1024 / 1024);
     }
 
-    public long indexAllMedia() throws IOException {
-        final long start = System.currentTimeMillis();
-        for (Media medium : findAll()) elasticsearchService.index(medium);
-        return (System.currentTimeMillis() - start) / 1000;
-
-    }
-
-    /**
-     * Collect all AccountIds, which are able to view this medium
-     *
-     * @return List of AccountIds
-     */
-    public Set<Long> findAllowedToViewAccountIds(Media medium) {
-
-        Set<Long> viewableIds = new HashSet<>();
-
-        Folder rootFolder = medium.findRoot();
-
-        // medium belongs to account
-        if (rootFolder.account != null) {
-            // owner is allowed
-            viewableIds.add(rootFolder.owner.id);
-            // friends is allowed
-            viewableIds.addAll(friendshipManager.findFriendsId(rootFolder.owner));
-        }
-
-        // medium belongs to group
-        if(rootFolder.group != null) {
-            viewableIds.addAll(groupAccountManager.findAccountIdsByGroup(rootFolder.group, LinkType.establish));
-        }
-
-        return viewableIds;
-    }
-
     public boolean isPublic(Media medium) {
         if(medium.findGroup() != null) {
             return medium.findGroup().groupType.equals(GroupType.open);
@@ -4,12 +4,15 @@ import models.Account;
 import models.Notification;
 import models.base.BaseModel;
 import models.enums.EmailNotifications;
+import models.services.NotificationMenuCache;
 import play.db.jpa.JPA;
 import play.db.jpa.JPAApi;
 
 import javax.inject.Inject;
 import javax.persistence.NoResultException;
+import javax.persistence.Query;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -19,10 +22,27 @@ import java.util.Map;
  */
 public class NotificationManager implements BaseManager {
 
+    private static final String CREATE_FOR_RECIPIENTS =
+            "INSERT INTO notification (id, created_at, updated_at, sender_id, recipient_id, rendered, is_read, is_sent," +
+            " reference_id, reference_type, target_url)" +
+            " SELECT nextval('hibernate_sequence'), now(), now(), CAST(:senderId AS bigint), a.id, CAST(:rendered AS text)," +
+            " false, false, CAST(:referenceId AS bigint), CAST(:referenceType AS text), CAST(:targetUrl AS text)" +
+            " FROM account a WHERE a.id IN (:recipientIds)";
+
+    // only post notifications are unique per recipient (partial index notification_post_recipient_idx, evolution 4)
+    private static final String UPSERT_FOR_RECIPIENTS = CREATE_FOR_RECIPIENTS +
+            " ON CONFLICT (reference_id, reference_type, recipient_id) WHERE reference_type = 'Post'" +
+            " DO UPDATE SET sender_id = EXCLUDED.sender_id, rendered = EXCLUDED.rendered, target_url = EXCLUDED.target_url," +
+            " is_read = false, is_sent = false, updated_at = EXCLUDED.updated_at";
+
+    private static final String RETURNING_IDS = " RETURNING id, recipient_id";
 
     @Inject
     JPAApi jpaApi;
 
+    @Inject
+    NotificationMenuCache notificationMenuCache;
+
     @Override
     public void create(Object object) {
         jpaApi.em().persist(object);
@@ -88,7 +108,7 @@ public class NotificationManager implements BaseManager {
     }
 
     /**
-     * Returns a list of unread notifications by a specific user account ID.
+     * Returns a list of the newest unread notifications by a specific user account ID.
      *
      * @param accountId User account ID
      * @return List of notifications
@@ -96,9 +116,9 @@ public class NotificationManager implements BaseManager {
      */
     public static List<Notification> findByAccountIdUnread(final Long accountId) throws Throwable {
         return JPA.em()
-                .createQuery("FROM Notification n WHERE n.recipient.id = :accountId AND n.isRead = false", Notification.class)
+                .createQuery("FROM Notification n WHERE n.recipient.id = :accountId AND n.isRead = false ORDER BY n.updatedAt DESC", Notification.class)
                 .setParameter("accountId", accountId)
-                .setMaxResults(10)
+                .setMaxResults(NotificationMenuCache.SIZE)
                 .getResultList();
     }
 
@@ -111,6 +131,7 @@ public class NotificationManager implements BaseManager {
         jpaApi.em().createQuery("DELETE FROM Notification n WHERE n.referenceId = :referenceId")
                 .setParameter("referenceId", reference.id)
                 .executeUpdate();
+        AfterCommit.run(jpaApi.em(), notificationMenuCache::clear);
     }
 
     /**
@@ -124,6 +145,7 @@ public class NotificationManager implements BaseManager {
                 .setParameter("referenceId", reference.id)
                 .setParameter("accountId", accountId)
                 .executeUpdate();
+        AfterCommit.run(jpaApi.em(), () -> notificationMenuCache.invalidate(accountId));
     }
 
     /**
@@ -135,6 +157,7 @@ public class NotificationManager implements BaseManager {
         jpaApi.em().createQuery("DELETE FROM Notification n WHERE n.recipient.id = :accountId")
                 .setParameter("accountId", accountId)
                 .executeUpdate();
+        AfterCommit.run(jpaApi.em(), () -> notificationMenuCache.invalidate(accountId));
     }
 
     /**
@@ -148,20 +171,58 @@ public class NotificationManager implements BaseManager {
     }
 
     /**
-     * Returns a notification by a reference ID and a recipient ID.
+     * Inserts or updates the notification of every recipient about a post in a single statement,
+     * e.g. on a new comment, and marks them unread again.
      *
-     * @param referenceId Reference ID
-     * @param recipientId Recipient ID
-     * @return Notification instance
-     * @throws NoResultException
+     * @param notification Notification holding the sender, reference, target URL and rendered content
+     * @param recipientIds Recipient IDs
+     * @return Recipient ID by notification ID of the written notifications
      */
-    public static Notification findByReferenceIdAndRecipientId(Long referenceId, Long recipientId) throws NoResultException {
-        return JPA.createFor("defaultPersistenceUnit").withTransaction(() -> {
-                return JPA.em().createQuery("FROM Notification n WHERE n.referenceId = :referenceId AND n.recipient.id = :recipientId", Notification.class)
-                    .setParameter("referenceId", referenceId)
-                    .setParameter("recipientId", recipientId)
-                    .getSingleResult();
-        });
+    public Map<Long, Long> upsertForRecipients(Notification notification, List<Long> recipientIds) {
+        return toIdMap(jpaApi.em().createNativeQuery(UPSERT_FOR_RECIPIENTS + RETURNING_IDS), notification, recipientIds);
+    }
+
+    /**
+     * Inserts one notification per recipient in a single statement. The IDs are taken from the sequence
+     * of all entities, just like persist() does.
+     *
+     * @param notification Notification holding the sender, reference, target URL and rendered content
+     * @param recipientIds Recipient IDs
+     * @return Recipient ID by notification ID of the created notifications
+     */
+    public Map<Long, Long> createForRecipients(Notification notification, List<Long> recipientIds) {
+        return toIdMap(jpaApi.em().createNativeQuery(CREATE_FOR_RECIPIENTS + RETURNING_IDS), notification, recipientIds);
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<Long, Long> toIdMap(Query query, Notification notification, List<Long> recipientIds) {
+        List<Object[]> rows = query
+                .setParameter("senderId", notification.sender == null ? null : notification.sender.id)
+                .setParameter("rendered", notification.rendered)
+                .setParameter("referenceId", notification.referenceId)
+                .setParameter("referenceType", notification.referenceType)
+                .setParameter("targetUrl", notification.targetUrl)
+                .setParameter("recipientIds", recipientIds)
+                .getResultList();
+
+        Map<Long, Long> ids = new HashMap<>();
+        for (Object[] row : rows) {
+            ids.put(((Number) row[0]).longValue(), ((Number) row[1]).longValue());
+        }
+        return ids;
+    }
+
+    /**
+     * Returns the notifications with the given IDs including their recipients.
+     *
+     * @param ids Notification IDs
+     * @return List of notifications
+     */
+    public List<Notification> findByIds(Collection<Long> ids) {
+        return jpaApi.em()
+                .createQuery("SELECT n FROM Notification n JOIN FETCH n.recipient WHERE n.id IN :ids", Notification.class)
+                .setParameter("ids", ids)
+                .getResultList();
     }
 
     /**
@@ -263,5 +324,22 @@ public class NotificationManager implements BaseManager {
                 .createQuery("UPDATE Notification n SET n.isRead = true WHERE n.recipient = :account AND n.isRead = false")
                 .setParameter("account", account)
                 .executeUpdate();
+        Long accountId = account.id;
+        AfterCommit.run(jpaApi.em(), () -> notificationMenuCache.readAll(accountId));
+    }
+
+    /**
+     * Marks a notification as read, if it is unread.
+     *
+     * @param notification Notification
+     */
+    public void markAsRead(Notification notification) {
+        if (!notification.isRead) {
+            notification.isRead = true;
+            update(notification);
+            Long recipientId = notification.recipient.id;
+            Long notificationId = notification.id;
+            AfterCommit.run(jpaApi.em(), () -> notificationMenuCache.read(recipientId, notificationId));
+        }
     }
 }
@@ -3,8 +3,10 @@ package managers;
 import models.Account;
 import models.Post;
 import models.PostBookmark;
+import models.services.StreamCountService;
 import play.db.jpa.JPA;
 
+import javax.inject.Inject;
 import javax.persistence.NoResultException;
 import javax.persistence.Query;
 import java.util.List;
@@ -13,9 +15,14 @@ import java.util.List;
  * Created by Iven on 25.12.2015.
  */
 public class PostBookmarkManager implements BaseManager {
+
+    @Inject
+    StreamCountService streamCountService;
+
     @Override
     public void create(Object object) {
         JPA.em().persist(object);
+        invalidateCounts((PostBookmark) object);
     }
 
     @Override
@@ -26,6 +33,12 @@ public class PostBookmarkManager implements BaseManager {
     @Override
     public void delete(Object object) {
         JPA.em().remove(object);
+        invalidateCounts((PostBookmark) object);
+    }
+
+    private void invalidateCounts(PostBookmark bookmark) {
+        Long ownerId = bookmark.owner.id;
+        AfterCommit.run(JPA.em(), () -> streamCountService.invalidateAccount(ownerId));
     }
 
     public PostBookmark findById(Long id) {
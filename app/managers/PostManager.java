@@ -5,14 +5,14 @@ import models.Group;
 import models.Post;
 import models.enums.GroupType;
 import models.enums.LinkType;
-import models.services.ElasticsearchService;
-import play.Configuration;
-import play.db.jpa.JPA;
+import models.services.FragmentCache;
+import models.services.GroupStreamCache;
+import models.services.IndexOutbox;
+import models.services.StreamCountService;
 import play.db.jpa.JPAApi;
 
 import javax.inject.Inject;
 import javax.persistence.Query;
-import java.io.IOException;
 import java.util.*;
 
 /**
@@ -20,8 +20,51 @@ import java.util.*;
  */
 public class PostManager implements BaseManager {
 
+    // keyset condition for streams ordered by (updatedAt DESC, id DESC)
+    private static final String CURSOR_CLAUSE = " AND (p.updatedAt < :cursorDate OR (p.updatedAt = :cursorDate AND p.id < :cursorId))";
+
+    // the opposite direction, posts new or updated since the cursor
+    private static final String SINCE_CLAUSE = " AND (p.updatedAt > :cursorDate OR (p.updatedAt = :cursorDate AND p.id > :cursorId))";
+
+    // find stream posts from :accountId
+    private static final String ACCOUNT_POSTS = " (p.owner.id = :accountId AND p.account.id = :accountId) ";
+
+    // find posts from each group of :accountId
+    private static final String ALL_GROUP_POSTS = " EXISTS (SELECT ga.id FROM GroupAccount ga WHERE ga.group = p.group AND ga.account.id = :accountId AND ga.linkType = :establish) ";
+
+    // find group posts from :accountId
+    private static final String ACCOUNT_GROUP_POSTS = " (p.owner.id = :accountId AND" + ALL_GROUP_POSTS + ") ";
+
+    // find group posts from :accountId in public groups (what visitors are allowed to see)
+    private static final String ACCOUNT_PUBLIC_GROUP_POSTS = " (p.owner.id = :accountId AND EXISTS (SELECT ga.id FROM GroupAccount ga WHERE ga.group = p.group AND ga.account.id = :accountId AND ga.linkType = :establish AND ga.group.groupType = :open)) ";
+
+    // find posts from :accountId where :accountId posted on a contact's feed
+    private static final String ACCOUNT_CONTACT_POSTS = " (p.owner.id = :accountId AND EXISTS (SELECT fs.id FROM Friendship fs WHERE fs.account.id = :accountId AND fs.friend = p.account AND fs.linkType = :establish)) ";
+
+    // find posts from contacts where they posted on the feed of :accountId
+    private static final String CONTACT_TO_ACCOUNT_POSTS = " (p.account.id = :accountId AND EXISTS (SELECT fs.id FROM Friendship fs WHERE fs.account.id = :accountId AND fs.friend = p.owner AND fs.linkType = :establish)) ";
+
+    // find posts from contacts which are posted on his/her own feed
+    private static final String CONTACT_POSTS = " (p.account = p.owner AND EXISTS (SELECT fs.id FROM Friendship fs WHERE fs.account.id = :accountId AND fs.friend = p.owner AND fs.linkType = :establish)) ";
+
+    // find bookmarked posts from :accountId
+    private static final String BOOKMARK_POSTS = " EXISTS (SELECT pb.id FROM PostBookmark pb WHERE pb.post = p AND pb.owner.id = :accountId) ";
+
+    // the where clause of each stream filter, fixed so Hibernate's query plan cache hits
+    private static final Map<String, String> STREAM_FILTERS = new HashMap<>();
+
+    static {
+        STREAM_FILTERS.put("group", ALL_GROUP_POSTS);
+        STREAM_FILTERS.put("account", ACCOUNT_POSTS + " OR " + ACCOUNT_CONTACT_POSTS + " OR " + ACCOUNT_GROUP_POSTS);
+        STREAM_FILTERS.put("contact", CONTACT_TO_ACCOUNT_POSTS + " OR " + CONTACT_POSTS);
+        STREAM_FILTERS.put("visitor", ACCOUNT_PUBLIC_GROUP_POSTS + " OR " + CONTACT_TO_ACCOUNT_POSTS + " OR " + ACCOUNT_POSTS);
+        STREAM_FILTERS.put("bookmark", BOOKMARK_POSTS);
+        STREAM_FILTERS.put("all", ACCOUNT_POSTS + " OR " + ACCOUNT_GROUP_POSTS + " OR " + ALL_GROUP_POSTS + " OR "
+                + ACCOUNT_CONTACT_POSTS + " OR " + CONTACT_TO_ACCOUNT_POSTS + " OR " + CONTACT_POSTS);
+    }
+
     @Inject
-    ElasticsearchService elasticsearchService;
+    IndexOutbox indexOutbox;
     @Inject
     NotificationManager notificationManager;
     @Inject
@@ -29,11 +72,13 @@ public class PostManager implements BaseManager {
     @Inject
     GroupAccountManager groupAccountManager;
     @Inject
-    PostBookmarkManager postBookmarkManager;
+    TimelineManager timelineManager;
+    @Inject
+    StreamCountService streamCountService;
     @Inject
-    GroupManager groupManager;
+    FragmentCache fragmentCache;
     @Inject
-    Configuration configuration;
+    GroupStreamCache groupStreamCache;
     @Inject
     JPAApi jpaApi;
 
@@ -41,22 +86,38 @@ public class PostManager implements BaseManager {
     @Override
     public void create(Object model) {
         Post post = (Post) model;
+        boolean isNew = post.id == null;
 
         jpaApi.em().persist(post);
-        try {
-            elasticsearchService.index(post);
-        } catch (IOException e) {
-            e.printStackTrace();
+        if (isNew) {
+            timelineManager.add(post);
+            updateCounts(post);
+            commentAdded(post);
         }
+        invalidateGroupStream(post);
+        indexOutbox.index(post);
     }
 
     public void createWithoutIndex(Post post) {
+        boolean isNew = post.id == null;
+
         jpaApi.em().persist(post);
+        if (isNew) {
+            timelineManager.add(post);
+            updateCounts(post);
+            commentAdded(post);
+        }
+        invalidateGroupStream(post);
     }
 
     @Override
     public void update(Object model) {
-        ((Post) model).updatedAt();
+        Post post = (Post) model;
+        post.updatedAt();
+        timelineManager.touch(post);
+        fragmentCache.invalidatePost(post.id);
+        invalidateGroupStream(post);
+        indexOutbox.index(post);
     }
 
     @Override
@@ -71,27 +132,92 @@ public class PostManager implements BaseManager {
         }
 
         notificationManager.deleteReferences(post);
+        timelineManager.remove(post);
+        updateCounts(post);
+        commentRemoved(post);
+        fragmentCache.invalidatePost(post.id);
+        invalidateGroupStream(post);
 
         jpaApi.em().remove(post);
 
-        // Delete Elasticsearch document
-        elasticsearchService.delete(post);
+        // Delete Elasticsearch document (asynchronously)
+        indexOutbox.delete(post);
     }
 
-    @SuppressWarnings("unchecked")
-    public List<Post> getCommentsForPost(Long id, int limit, int offset) {
-        Query query = jpaApi.em()
-                .createQuery("SELECT p FROM Post p WHERE p.parent.id = ?1 ORDER BY p.createdAt ASC")
-                .setParameter(1, id);
+    /**
+     * Drops the cached group and profile (visitor) counts after a top level post was added or removed.
+     * The stream counts of its readers are dropped by the TimelineManager.
+     */
+    private void updateCounts(Post post) {
+        if (post.parent != null) {
+            return;
+        }
+        Long groupId = post.group != null ? post.group.id : null;
+        Long ownerId = post.owner != null ? post.owner.id : null;
+        Long accountId = post.account != null ? post.account.id : null;
+        AfterCommit.run(jpaApi.em(), () -> {
+            if (groupId != null) {
+                streamCountService.invalidateGroup(groupId);
+            }
+            if (ownerId != null) {
+                streamCountService.invalidateAccount(ownerId);
+            }
+            if (accountId != null) {
+                streamCountService.invalidateAccount(accountId);
+            }
+        });
+    }
 
-        query = limit(query, limit, offset);
+    /**
+     * Drops the cached stream of the group a post or comment belongs to, once the change is committed.
+     */
+    private void invalidateGroupStream(Post post) {
+        Group group = post.parent != null ? post.parent.group : post.group;
+        if (group != null) {
+            Long groupId = group.id;
+            AfterCommit.run(jpaApi.em(), () -> groupStreamCache.invalidate(groupId));
+        }
+    }
 
-        return (List<Post>) query.getResultList();
+    /**
+     * Increments comment_count of the parent in the database, concurrent comments can not get lost.
+     * The managed parent instance is kept in line, its columns are not updatable through the entity.
+     */
+    private void commentAdded(Post comment) {
+        if (comment.parent == null) {
+            return;
+        }
+
+        jpaApi.em().createNativeQuery("UPDATE post SET comment_count = comment_count + 1, last_comment_at = :createdAt WHERE id = :parentId")
+                .setParameter("createdAt", comment.createdAt)
+                .setParameter("parentId", comment.parent.id)
+                .executeUpdate();
+
+        comment.parent.commentCount++;
+        comment.parent.lastCommentAt = comment.createdAt;
+    }
+
+    /**
+     * Decrements comment_count of the parent and sets last_comment_at to the newest remaining comment.
+     */
+    private void commentRemoved(Post comment) {
+        if (comment.parent == null) {
+            return;
+        }
+
+        jpaApi.em().createNativeQuery("UPDATE post SET comment_count = GREATEST(comment_count - 1, 0)," +
+                " last_comment_at = (SELECT MAX(c.created_at) FROM post c WHERE c.parent_id = :parentId AND c.id <> :commentId)" +
+                " WHERE id = :parentId")
+                .setParameter("parentId", comment.parent.id)
+                .setParameter("commentId", comment.id)
+                .executeUpdate();
+
+        comment.parent.commentCount = Math.max(0, comment.parent.commentCount - 1);
     }
 
     @SuppressWarnings("unchecked")
-    public static List<Post> getCommentsForPost2(Long id, int limit, int offset) {
-        Query query = JPA.em()
+    public List<Post> getCommentsForPost(Long id, int limit, int offset) {
+        Query query = jpaApi.em()
                 .createQuery("SELECT p FROM Post p WHERE p.parent.id = ?1 ORDER BY p.createdAt ASC")
                 .setParameter(1, id);
 
@@ -102,16 +228,87 @@ public class PostManager implements BaseManager {
 
     @SuppressWarnings("unchecked")
     public List<Post> getPostsForGroup(final Group group, final int limit, final int page) {
+        int offset = (page * limit) - limit;
+
+        // the first pages are shared by all members, only their ids are cached
+        List<Long> ids = groupStreamCache.page(group.id, offset, limit, () -> findPostIdsForGroup(group, groupStreamCache.window()));
+        if (ids != null) {
+            return findByIds(ids);
+        }
+
         Query query = jpaApi.em()
-                .createQuery("SELECT p FROM Post p WHERE p.group.id = ?1 ORDER BY p.updatedAt DESC")
+                .createQuery("SELECT p FROM Post p WHERE p.group.id = ?1 ORDER BY p.updatedAt DESC, p.id DESC")
                 .setParameter(1, group.id);
 
-        int offset = (page * limit) - limit;
         query = limit(query, limit, offset);
 
         return query.getResultList();
     }
 
+    @SuppressWarnings("unchecked")
+    private List<Long> findPostIdsForGroup(final Group group, final int limit) {
+        return jpaApi.em()
+                .createQuery("SELECT p.id FROM Post p WHERE p.group.id = :groupId ORDER BY p.updatedAt DESC, p.id DESC")
+                .setParameter("groupId", group.id)
+                .setMaxResults(limit)
+                .getResultList();
+    }
+
+    /**
+     * Loads posts by id in one query.
+     *
+     * @param ids Post IDs
+     * @return Posts in the order of ids, missing (e.g. deleted) posts are skipped
+     */
+    @SuppressWarnings("unchecked")
+    public List<Post> findByIds(final List<Long> ids) {
+        if (ids.isEmpty()) {
+            return new ArrayList<>();
+        }
+
+        Map<Long, Post> postsById = new HashMap<>();
+        for (Post post : (List<Post>) jpaApi.em().createQuery("SELECT p FROM Post p WHERE p.id IN (:ids)").setParameter("ids", ids).getResultList()) {
+            postsById.put(post.id, post);
+        }
+
+        List<Post> posts = new ArrayList<>();
+        for (Long id : ids) {
+            Post post = postsById.get(id);
+            if (post != null) {
+                posts.add(post);
+            }
+        }
+        return posts;
+    }
+
+    /**
+     * Keyset variant of getPostsForGroup(), returns the posts behind the given cursor.
+     */
+    @SuppressWarnings("unchecked")
+    public List<Post> getPostsForGroup(final Group group, final int limit, final StreamCursor cursor) {
+        return jpaApi.em()
+                .createQuery("SELECT p FROM Post p WHERE p.group.id = :groupId" + CURSOR_CLAUSE + " ORDER BY p.updatedAt DESC, p.id DESC")
+                .setParameter("groupId", group.id)
+                .setParameter("cursorDate", cursor.updatedAt)
+                .setParameter("cursorId", cursor.id)
+                .setMaxResults(limit)
+                .getResultList();
+    }
+
+    /**
+     * Returns the group posts which are new or were updated since the given cursor, newest first.
+     */
+    @SuppressWarnings("unchecked")
+    public List<Post> getPostsForGroupSince(final Group group, final StreamCursor since, final int limit) {
+        return jpaApi.em()
+                .createQuery("SELECT p FROM Post p WHERE p.group.id = :groupId" + SINCE_CLAUSE + " ORDER BY p.updatedAt DESC, p.id DESC")
+                .setParameter("groupId", group.id)
+                .setParameter("cursorDate", since.updatedAt)
+                .setParameter("cursorId", since.id)
+                .setMaxResults(limit)
+                .getResultList();
+    }
+
     private static Query limit(Query query, int limit, int offset) {
         if (limit > 0) {
             query.setMaxResults(limit);
@@ -127,157 +324,78 @@ public class PostManager implements BaseManager {
     }
 
     public int countPostsForGroup(final Group group) {
-        return ((Number) jpaApi.em().createQuery("SELECT COUNT(p) FROM Post p WHERE p.group.id = ?1").setParameter(1, group.id).getSingleResult()).intValue();
+        return streamCountService.countForGroup(group.id, () ->
+                ((Number) jpaApi.em().createQuery("SELECT COUNT(p) FROM Post p WHERE p.group.id = ?1").setParameter(1, group.id).getSingleResult()).intValue());
     }
 
     @SuppressWarnings("unchecked")
-    public List<Post> findStreamForAccount(final Account account, final List<Group> groupList, final List<Account> friendList, final List<Post> bookmarkList, final String filter, final int limit, final int offset) {
-        Query query = streamForAccount("SELECT DISTINCT p ", account, groupList, friendList, bookmarkList, filter, " ORDER BY p.updatedAt DESC");
+    public List<Post> findStreamForAccount(final Account account, final String filter, final int limit, final int offset) {
+        Query query = streamForAccount("SELECT p", account, filter, null, null, " ORDER BY p.updatedAt DESC, p.id DESC");
 
         // set limit and offset
         query = limit(query, limit, offset);
         return query.getResultList();
     }
 
-    public int countStreamForAccount(final Account account, final List<Group> groupList, final List<Account> friendList, final List<Post> bookmarkList, final String filter) {
-        final Query query = streamForAccount("SELECT DISTINCT COUNT(p)", account, groupList, friendList, bookmarkList, filter, "");
-        return ((Number) query.getSingleResult()).intValue();
+    /**
+     * Keyset variant of findStreamForAccount(), returns the posts behind the given cursor.
+     */
+    @SuppressWarnings("unchecked")
+    public List<Post> findStreamForAccount(final Account account, final String filter, final StreamCursor cursor, final int limit) {
+        Query query = streamForAccount("SELECT p", account, filter, CURSOR_CLAUSE, cursor, " ORDER BY p.updatedAt DESC, p.id DESC");
+        return query.setMaxResults(limit).getResultList();
     }
 
     /**
-     * @param account     - Account (usually: current user or a contact)
-     * @param groupList   - a list containing all groups we want to search in (usually all groups from account)
-     * @param accountList - a list containing all accounts we want to search in (usually contact from account)
-     * @return List of Posts
+     * Returns the posts which are new or were updated since the given cursor, newest first.
      */
-    public Query streamForAccount(String selectClause, Account account, List<Group> groupList, List<Account> accountList, List<Post> bookmarkList, String filter, String orderByClause) {
-
-        HashMap<String, String> streamClausesMap = new HashMap<>();
-        List<String> streamClausesList = new ArrayList<>();
-
-        // find stream posts from @account
-        String accountPosts = " (p.owner = (:account) AND p.account = (:account)) ";
-        streamClausesMap.put("accountPosts", accountPosts);
-
-
-        if (groupList != null && groupList.size() != 0) {
-            // find group posts from @account
-            String accountGroupPosts = " (p.owner = (:account) AND p.group IN (:groupList)) ";
-            streamClausesMap.put("accountGroupPosts", accountGroupPosts);
-
-            // find posts from each group in @groupList
-            String allGroupPosts = " (p.group IN (:groupList)) ";
-            streamClausesMap.put("allGroupPosts", allGroupPosts);
-        }
-
-        if (accountList != null && accountList.size() != 0) {
-            // find posts from @account where @account posted on @accountList
-            String accountContactPosts = " (p.owner = (:account) AND p.account IN (:accountList)) ";
-            streamClausesMap.put("accountContactPosts", accountContactPosts);
+    @SuppressWarnings("unchecked")
+    public List<Post> findStreamForAccountSince(final Account account, final String filter, final StreamCursor since, final int limit) {
+        Query query = streamForAccount("SELECT p", account, filter, SINCE_CLAUSE, since, " ORDER BY p.updatedAt DESC, p.id DESC");
+        return query.setMaxResults(limit).getResultList();
+    }
 
-            // find posts from @accountList where @accountList posted on @account's feed
-            String contactToAccountPosts = " (p.owner IN (:accountList) AND p.account = (:account)) ";
-            streamClausesMap.put("contactToAccountPosts", contactToAccountPosts);
+    public int countStreamForAccount(final Account account, final String filter) {
+        final Query query = streamForAccount("SELECT COUNT(p)", account, filter, null, null, "");
+        return ((Number) query.getSingleResult()).intValue();
+    }
 
-            // find posts from @accountList which are posted on his/her own feed
-            String contactPosts = " (p.owner IN (:accountList) AND p.account = p.owner) ";
-            streamClausesMap.put("contactPosts", contactPosts);
-        }
+    /**
+     * Builds one of the fixed stream queries. Memberships, contacts and bookmarks of @account are resolved
+     * by the database (EXISTS), so the query text only depends on the filter and Hibernate can reuse its plan.
+     *
+     * @param account - Account (usually: current user or a contact)
+     * @param filter  - all, group, account, contact, visitor or bookmark
+     * @param cursorClause - CURSOR_CLAUSE (posts behind the cursor) or SINCE_CLAUSE (posts in front of it)
+     * @param cursor  - keyset position (may be null)
+     * @return Query
+     */
+    private Query streamForAccount(String selectClause, Account account, String filter, String cursorClause, StreamCursor cursor, String orderByClause) {
+        String completeQuery = selectClause + " FROM Post p WHERE (" + STREAM_FILTERS.getOrDefault(filter, STREAM_FILTERS.get("all")) + ")"
+                + (cursor != null ? cursorClause : "") + orderByClause;
+        Query query = jpaApi.em().createQuery(completeQuery)
+                .setParameter("accountId", account.id);
 
-        if (bookmarkList != null && bookmarkList.size() != 0) {
-            // find bookmarked posts from @account
-            String bookmarkPosts = " (p IN (:bookmarkList)) ";
-            streamClausesMap.put("bookmarkPosts", bookmarkPosts);
+        if (completeQuery.contains(":establish"))
+            query.setParameter("establish", LinkType.establish);
 
-        }
+        if (completeQuery.contains(":open"))
+            query.setParameter("open", GroupType.open);
 
-        switch (filter) {
-            case "group":
-                streamClausesList.add(streamClausesMap.get("allGroupPosts"));
-                break;
-            case "account":
-                streamClausesList.add(streamClausesMap.get("accountPosts"));
-                streamClausesList.add(streamClausesMap.get("accountContactPosts"));
-                streamClausesList.add(streamClausesMap.get("accountGroupPosts"));
-                break;
-            case "contact":
-                streamClausesList.add(streamClausesMap.get("contactToAccountPosts"));
-                streamClausesList.add(streamClausesMap.get("contactPosts"));
-                break;
-            case "visitor":
-                streamClausesList.add(streamClausesMap.get("accountGroupPosts"));
-                streamClausesList.add(streamClausesMap.get("contactToAccountPosts"));
-                streamClausesList.add(streamClausesMap.get("accountPosts"));
-                break;
-            case "bookmark":
-                streamClausesList.add(streamClausesMap.get("bookmarkPosts"));
-                break;
-
-            default:
-                streamClausesList.add(streamClausesMap.get("accountPosts"));
-                streamClausesList.add(streamClausesMap.get("accountGroupPosts"));
-                streamClausesList.add(streamClausesMap.get("allGroupPosts"));
-                streamClausesList.add(streamClausesMap.get("accountContactPosts"));
-                streamClausesList.add(streamClausesMap.get("contactToAccountPosts"));
-                streamClausesList.add(streamClausesMap.get("contactPosts"));
-                break;
+        if (cursor != null) {
+            query.setParameter("cursorDate", cursor.updatedAt);
+            query.setParameter("cursorId", cursor.id);
         }
-        // its possible that @streamClausesList contains null values. remove them.
-        streamClausesList.removeAll(Collections.singleton(null));
-
-
-        // assemble query.
-        // insert dummy where clause (1=2) for the unlikely event of empty @streamClausesList (e.g. new user with no groups or contact)
-        String completeQuery = selectClause + " FROM Post p WHERE 1=2 " + assembleClauses(streamClausesList) + orderByClause;
-        Query query = jpaApi.em().createQuery(completeQuery);
-
-        // check @completeQuery for parameter which are needed.
-        // () are necessary to distinguish between :account and :accountList
-        if (completeQuery.contains("(:account)"))
-            query.setParameter("account", account);
-
-        if (completeQuery.contains("(:groupList)"))
-            query.setParameter("groupList", groupList);
-
-        if (completeQuery.contains("(:accountList)"))
-            query.setParameter("accountList", accountList);
-
-        if (completeQuery.contains("(:bookmarkList)"))
-            query.setParameter("bookmarkList", bookmarkList);
 
         return query;
     }
 
-    private static String assembleClauses(List<String> streamClausesList) {
-        String assembledClauses = "";
-        Iterator iterator = streamClausesList.iterator();
-        while (iterator.hasNext()) {
-            assembledClauses += " OR " + iterator.next().toString();
-        }
-
-        return assembledClauses;
-    }
-
-    public int countCommentsForPost(final Long id) {
-        return ((Number) jpaApi.em().createQuery("SELECT COUNT(p.id) FROM Post p WHERE p.parent.id = ?1").setParameter(1, id).getSingleResult()).intValue();
-    }
-
-    public static int countCommentsForPost2(final Long id) {
-        return ((Number) JPA.em().createQuery("SELECT COUNT(p.id) FROM Post p WHERE p.parent.id = ?1").setParameter(1, id).getSingleResult()).intValue();
-    }
-
     /**
      * @param account Account (current user)
      * @return List of Posts
      */
     public List<Post> getStream(Account account, int limit, int page) {
-        // find friends and groups of given account
-        List<Account> friendList = friendshipManager.findFriends(account);
-        List<Group> groupList = groupAccountManager.findEstablished(account);
-        List<Post> bookmarkList = postBookmarkManager.findByAccount(account);
-
-        int offset = (page * limit) - limit;
-        return findStreamForAccount(account, groupList, friendList, bookmarkList, "all", limit, offset);
+        return getFilteredStream(account, limit, page, "all");
     }
 
     /**
@@ -286,16 +404,52 @@ public class PostManager implements BaseManager {
      */
     public List<Post> getFilteredStream(Account account, int limit, int page, String filter) {
         int offset = (page * limit) - limit;
-        return findStreamForAccount(account, groupAccountManager.findEstablished(account), friendshipManager.findFriends(account), postBookmarkManager.findByAccount(account), filter, limit, offset);
+        if (timelineManager.serves(filter)) {
+            return timelineManager.findStream(account, filter, limit, offset);
+        }
+        return findStreamForAccount(account, filter, limit, offset);
     }
 
 
+    /**
+     * Keyset variant of getFilteredStream().
+     *
+     * @param account Account (current user)
+     * @param cursor  Position behind the last post of the previous page
+     * @return List of Posts
+     */
+    public List<Post> getFilteredStream(Account account, int limit, StreamCursor cursor, String filter) {
+        if (timelineManager.serves(filter)) {
+            return timelineManager.findStream(account, filter, cursor, limit);
+        }
+        return findStreamForAccount(account, filter, cursor, limit);
+    }
+
+    /**
+     * Posts of a filtered stream which are new or were updated since the given cursor.
+     *
+     * @param account Account (current user)
+     * @param since   Position of the newest post the client knows
+     * @return List of Posts, newest first
+     */
+    public List<Post> getFilteredStreamSince(Account account, StreamCursor since, String filter, int limit) {
+        if (timelineManager.serves(filter)) {
+            return timelineManager.findStreamSince(account, filter, since, limit);
+        }
+        return findStreamForAccountSince(account, filter, since, limit);
+    }
+
     /**
      * @param account Account (current user)
      * @return Number of Posts
      */
     public int countStream(Account account, String filter) {
-        return countStreamForAccount(account, groupAccountManager.findEstablished(account), friendshipManager.findFriends(account), postBookmarkManager.findByAccount(account), filter);
+        return streamCountService.countForAccount(account.id, filter, () -> {
+            if (timelineManager.serves(filter)) {
+                return timelineManager.countStream(account, filter);
+            }
+            return countStreamForAccount(account, filter);
+        });
     }
 
     /**
@@ -304,7 +458,25 @@ public class PostManager implements BaseManager {
      */
     public List<Post> getFriendStream(Account contact, int limit, int page) {
         int offset = (page * limit) - limit;
-        return findStreamForAccount(contact, groupAccountManager.findPublicEstablished(contact), friendshipManager.findFriends(contact), postBookmarkManager.findByAccount(contact), "visitor", limit, offset);
+        return findStreamForAccount(contact, "visitor", limit, offset);
+    }
+
+    /**
+     * Keyset variant of getFriendStream().
+     *
+     * @param contact - Account
+     * @param cursor  - Position behind the last post of the previous page
+     * @return List of Posts
+     */
+    public List<Post> getFriendStream(Account contact, int limit, StreamCursor cursor) {
+        return findStreamForAccount(contact, "visitor", cursor, limit);
+    }
+
+    /**
+     * Posts of a contact's stream which are new or were updated since the given cursor.
+     */
+    public List<Post> getFriendStreamSince(Account contact, StreamCursor since, int limit) {
+        return findStreamForAccountSince(contact, "visitor", since, limit);
     }
 
     /**
@@ -312,11 +484,8 @@ public class PostManager implements BaseManager {
      * @return Number of Posts
      */
     public int countFriendStream(Account contact) {
-        return countStreamForAccount(contact, groupAccountManager.findPublicEstablished(contact), friendshipManager.findFriends(contact), postBookmarkManager.findByAccount(contact), "visitor");
-    }
-
-    public static int getCountComments(Post post) {
-        return countCommentsForPost2(post.id);
+        return streamCountService.countForAccount(contact.id, "visitor", () ->
+                countStreamForAccount(contact, "visitor"));
     }
 
     public boolean belongsToGroup(Post post) {
@@ -335,56 +504,6 @@ public class PostManager implements BaseManager {
         return post.account.equals(post.owner);
     }
 
-    /**
-     * Collect all AccountIds, which are able to view this.post
-     *
-     * @return List of AccountIds
-     */
-    public Set<Long> findAllowedToViewAccountIds(Post post) {
-
-        Set<Long> viewableIds = new HashSet<>();
-
-        // everybody from post.group can see this post
-        if (belongsToGroup(post)) {
-            viewableIds.addAll(groupAccountManager.findAccountIdsByGroup(post.group, LinkType.establish));
-        }
-
-
-        if (belongsToAccount(post)) {
-
-            // every friend from post.account can see this post
-            viewableIds.addAll(friendshipManager.findFriendsId(post.account));
-
-            // the owner of this.account can see this post
-            viewableIds.add(post.account.id);
-
-            // everybody can see his own post
-            if (isMine(post)) {
-                viewableIds.add(post.owner.id);
-            }
-        }
-
-        // multiple options if post is a comment
-        if (belongsToPost(post)) {
-
-            // every member from post.parent.group can see this post
-            if (belongsToGroup(post.parent)) {
-                viewableIds.addAll(groupAccountManager.findAccountIdsByGroup(post.parent.group, LinkType.establish));
-            }
-
-            // every friend from post.parent.account can see this post
-            if (belongsToAccount(post.parent)) {
-                viewableIds.addAll(friendshipManager.findFriendsId(post.parent.account));
-
-                // everybody can see his own comment
-                if (isMine(post.parent)) {
-                    viewableIds.add(post.owner.id);
-                }
-            }
-        }
-        return viewableIds;
-    }
-
     public boolean isPublic(Post post) {
 
         // post in public group
@@ -399,29 +518,6 @@ public class PostManager implements BaseManager {
         return false;
     }
 
-
-    public long indexAllPosts() throws IOException {
-        final long start = System.currentTimeMillis();
-        for (Post post : allWithoutExceptionPosts()) elasticsearchService.index(post);
-        return (System.currentTimeMillis() - start) / 1000;
-
-    }
-
-    /**
-     * Get all posts except error posts (from Admin)
-     *
-     * @return
-     */
-    @SuppressWarnings("unchecked")
-    private List<Post> allWithoutExceptionPosts() {
-        Group group = groupManager.findByTitle(configuration.getString("htwplus.admin.group"));
-        Account adminAccount = group.owner;
-        return jpaApi.em().createQuery("FROM Post p WHERE p.owner.id != :adminId AND p.group.id != :groupId OR p.group IS NULL")
-                .setParameter("groupId", group.id)
-                .setParameter("adminId", adminAccount.id)
-                .getResultList();
-    }
-
     /**
      * Get all posts owned by a specific user
      *
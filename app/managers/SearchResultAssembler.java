@@ -0,0 +1,144 @@
+package managers;
+
+import models.Account;
+import models.Group;
+import models.Media;
+import models.Post;
+import models.enums.LinkType;
+import models.services.ElasticsearchResponse;
+import models.services.SearchPage;
+import org.apache.commons.lang3.StringEscapeUtils;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.highlight.HighlightField;
+import play.Logger;
+import play.db.jpa.JPAApi;
+
+import javax.inject.Inject;
+import java.util.*;
+import java.util.function.Function;
+
+/**
+ * Builds the ElasticsearchResponse of a search request with one query per hit type, at most four queries per page.
+ * Each query fetches the relations shown in the search result, the hits keep the order of Elasticsearch.
+ * Hits whose entity was deleted after indexing are skipped.
+ */
+public class SearchResultAssembler {
+
+    private static final String ACCOUNTS =
+            "SELECT a FROM Account a LEFT JOIN FETCH a.studycourse WHERE a.id IN (:ids)";
+    private static final String GROUPS =
+            "SELECT g, (SELECT COUNT(ga) FROM GroupAccount ga WHERE ga.group = g AND ga.linkType = :linkType)" +
+            " FROM Group g JOIN FETCH g.owner WHERE g.id IN (:ids)";
+    private static final String POSTS =
+            "SELECT p FROM Post p JOIN FETCH p.owner LEFT JOIN FETCH p.group LEFT JOIN FETCH p.account LEFT JOIN FETCH p.parent" +
+            " WHERE p.id IN (:ids)";
+    // the root folder decides where a medium is shown, media of root folders need no further query
+    private static final String MEDIA =
+            "SELECT m FROM Media m JOIN FETCH m.owner JOIN FETCH m.folder f LEFT JOIN FETCH f.group LEFT JOIN FETCH f.account" +
+            " LEFT JOIN FETCH f.parent WHERE m.id IN (:ids)";
+
+    @Inject
+    MediaManager mediaManager;
+    @Inject
+    JPAApi jpaApi;
+
+    /**
+     * @param page    Hits and facet counts of Elasticsearch
+     * @param keyword Search term
+     * @param mode    Search mode (all, user, group, post or medium)
+     * @return ElasticsearchResponse
+     */
+    public ElasticsearchResponse assemble(SearchPage page, String keyword, String mode) {
+        SearchHit[] hits = page.response.getHits().getHits();
+
+        Map<String, List<Long>> idsByType = new HashMap<>();
+        for (SearchHit hit : hits) {
+            idsByType.computeIfAbsent(hit.type(), type -> new ArrayList<>()).add(Long.parseLong(hit.getId()));
+        }
+
+        Map<Long, Account> accounts = find(ACCOUNTS, idsByType.get("user"), account -> account.id);
+        Map<Long, Post> posts = find(POSTS, idsByType.get("post"), post -> post.id);
+        Map<Long, Media> media = find(MEDIA, idsByType.get("medium"), medium -> medium.id);
+        Map<Long, Group> groups = new HashMap<>();
+        Map<Long, Long> memberCounts = new HashMap<>();
+        findGroups(idsByType.get("group"), groups, memberCounts);
+
+        List<Object> resultList = new ArrayList<>();
+        for (SearchHit hit : hits) {
+            Long id = Long.parseLong(hit.getId());
+            Object result;
+            switch (hit.type()) {
+                case "user":
+                    result = accounts.get(id);
+                    break;
+                case "group":
+                    result = groups.get(id);
+                    break;
+                case "post":
+                    Post post = posts.get(id);
+                    if (post != null) {
+                        post.searchContent = searchContent(post, hit);
+                    }
+                    result = post;
+                    break;
+                case "medium":
+                    Media medium = media.get(id);
+                    if (medium != null) {
+                        medium.sizeInByte = mediaManager.bytesToString(medium.size, false);
+                    }
+                    result = medium;
+                    break;
+                default:
+                    Logger.info("no matching case for ID: " + hit.getId());
+                    result = null;
+            }
+            if (result != null) {
+                resultList.add(result);
+            }
+        }
+
+        return new ElasticsearchResponse(page.aggregations, keyword, mode, resultList, memberCounts);
+    }
+
+    /**
+     * Pay attention to view rights for post.content, only the highlighted fragment is shown.
+     */
+    private static String searchContent(Post post, SearchHit hit) {
+        String searchContent = post.content;
+        HighlightField highlight = hit.getHighlightFields().get("content");
+        if (highlight != null) {
+            searchContent = highlight.getFragments()[0].string();
+        }
+        return StringEscapeUtils.escapeHtml4(searchContent)
+                .replace("[startStrong]", "**")
+                .replace("[endStrong]", "**");
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> Map<Long, T> find(String jpql, List<Long> ids, Function<T, Long> idOf) {
+        if (ids == null) {
+            return Collections.emptyMap();
+        }
+        Map<Long, T> byId = new HashMap<>();
+        for (T entity : (List<T>) jpaApi.em().createQuery(jpql).setParameter("ids", ids).getResultList()) {
+            byId.put(idOf.apply(entity), entity);
+        }
+        return byId;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void findGroups(List<Long> ids, Map<Long, Group> groups, Map<Long, Long> memberCounts) {
+        if (ids == null) {
+            return;
+        }
+        List<Object[]> rows = jpaApi.em().createQuery(GROUPS)
+                .setParameter("ids", ids)
+                .setParameter("linkType", LinkType.establish)
+                .getResultList();
+        for (Object[] row : rows) {
+            Group group = (Group) row[0];
+            groups.put(group.id, group);
+            memberCounts.put(group.id, (Long) row[1]);
+        }
+    }
+}
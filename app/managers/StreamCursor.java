@@ -0,0 +1,83 @@
+package managers;
+
+import models.Post;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Keyset position within a post stream ordered by (updatedAt DESC, id DESC).
+ * Clients only receive the encoded form and pass it back, they never build it themselves.
+ */
+public class StreamCursor {
+
+    public final Date updatedAt;
+    public final long id;
+
+    public StreamCursor(Date updatedAt, long id) {
+        this.updatedAt = updatedAt;
+        this.id = id;
+    }
+
+    public static StreamCursor of(Post post) {
+        return new StreamCursor(post.updatedAt, post.id);
+    }
+
+    /**
+     * Returns the encoded cursor behind the last post of a page.
+     *
+     * @param posts Current page
+     * @param limit Page size
+     * @return Encoded cursor or null, if the page was not full (no further posts)
+     */
+    public static String next(List<Post> posts, int limit) {
+        if (posts == null || posts.isEmpty() || posts.size() < limit) {
+            return null;
+        }
+        return of(posts.get(posts.size() - 1)).encode();
+    }
+
+    /**
+     * Infinite scroll queries one post more than the page size instead of counting the stream.
+     * Removes that probe post from the page.
+     *
+     * @param posts Result of a query with limit + 1
+     * @param limit Page size
+     * @return true, if there are more posts behind the page
+     */
+    public static boolean hasMore(List<Post> posts, int limit) {
+        if (posts.size() <= limit) {
+            return false;
+        }
+        posts.subList(limit, posts.size()).clear();
+        return true;
+    }
+
+    /**
+     * @param value Encoded cursor (may be null or empty)
+     * @return Cursor or null, if value is empty or malformed
+     */
+    public static StreamCursor parse(String value) {
+        if (value == null || value.isEmpty()) {
+            return null;
+        }
+
+        try {
+            String decoded = new String(Base64.getUrlDecoder().decode(value), StandardCharsets.UTF_8);
+            int separator = decoded.indexOf(':');
+            if (separator < 0) {
+                return null;
+            }
+            return new StreamCursor(new Date(Long.parseLong(decoded.substring(0, separator))), Long.parseLong(decoded.substring(separator + 1)));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    public String encode() {
+        String raw = updatedAt.getTime() + ":" + id;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,129 @@
+package managers;
+
+import models.Post;
+import models.services.FragmentCache;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Everything the stream templates need to render a page of posts, fetched in a constant number of queries
+ * by the StreamPageAssembler. The templates only read from here and never call managers or Secured.
+ */
+public class StreamPage {
+
+    public final List<PostEntry> posts;
+
+    // comments shown below each post, 0 means all
+    public final int commentLimit;
+
+    // number of comments shown initially, more are loaded on demand
+    public final int commentsInit;
+
+    // number of comments shown on a single post page
+    public final int commentsSinglePost;
+
+    // minutes after creation a post may be edited
+    public final int editTimeLimit;
+
+    // rendered post headers and comments
+    public final FragmentCache fragments;
+
+    public StreamPage(List<PostEntry> posts, int commentLimit, int commentsInit, int commentsSinglePost, int editTimeLimit,
+                      FragmentCache fragments) {
+        this.posts = Collections.unmodifiableList(posts);
+        this.commentLimit = commentLimit;
+        this.commentsInit = commentsInit;
+        this.commentsSinglePost = commentsSinglePost;
+        this.editTimeLimit = editTimeLimit;
+        this.fragments = fragments;
+    }
+
+    /**
+     * @return true, if the "show all comments" link is needed for a post
+     */
+    public boolean hasOlderComments(PostEntry entry) {
+        return entry.commentCount > commentsInit && commentLimit != commentsSinglePost;
+    }
+
+    public static class PostEntry {
+        public final Post post;
+        public final List<CommentEntry> comments;
+        public final int commentCount;
+        public final boolean bookmarked;
+        public final boolean deletable;
+        public final boolean editable;
+        public final boolean stillEditable;
+        public final boolean commentable;
+
+        // links to contacts point to their stream
+        public final boolean ownerIsFriend;
+        public final boolean accountIsFriend;
+
+        public PostEntry(Post post, List<CommentEntry> comments, int commentCount, boolean bookmarked,
+                         boolean deletable, boolean editable, boolean stillEditable, boolean commentable,
+                         boolean ownerIsFriend, boolean accountIsFriend) {
+            this.post = post;
+            this.comments = Collections.unmodifiableList(comments);
+            this.commentCount = commentCount;
+            this.bookmarked = bookmarked;
+            this.deletable = deletable;
+            this.editable = editable;
+            this.stillEditable = stillEditable;
+            this.commentable = commentable;
+            this.ownerIsFriend = ownerIsFriend;
+            this.accountIsFriend = accountIsFriend;
+        }
+
+        /**
+         * Key of the rendered post header, which holds everything but the content, the comments and the comment form.
+         */
+        public String fragmentKey(String currentView) {
+            return "post:" + post.id + ":" + post.updatedAt.getTime() + ":" + currentView + ":"
+                    + signature(deletable, bookmarked, editable, stillEditable, ownerIsFriend, accountIsFriend);
+        }
+    }
+
+    public static class CommentEntry {
+        public final Post comment;
+        public final boolean deletable;
+        public final boolean editable;
+        public final boolean stillEditable;
+
+        // minutes after creation a comment may be edited
+        public final int editTimeLimit;
+
+        public final boolean ownerIsFriend;
+
+        public CommentEntry(Post comment, boolean deletable, boolean editable, boolean stillEditable, int editTimeLimit,
+                            boolean ownerIsFriend) {
+            this.comment = comment;
+            this.deletable = deletable;
+            this.editable = editable;
+            this.stillEditable = stillEditable;
+            this.editTimeLimit = editTimeLimit;
+            this.ownerIsFriend = ownerIsFriend;
+        }
+
+        /**
+         * Key of the rendered comment.
+         */
+        public String fragmentKey() {
+            return "comment:" + comment.id + ":" + comment.updatedAt.getTime() + ":"
+                    + signature(deletable, editable, stillEditable, ownerIsFriend);
+        }
+    }
+
+    /**
+     * Packs viewer capabilities into a small bit mask, e.g. "5" for the first and third flag.
+     */
+    private static String signature(boolean... flags) {
+        int bits = 0;
+        for (int i = 0; i < flags.length; i++) {
+            if (flags[i]) {
+                bits |= 1 << i;
+            }
+        }
+        return Integer.toString(bits);
+    }
+}
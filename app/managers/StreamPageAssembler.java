@@ -0,0 +1,209 @@
+package managers;
+
+import controllers.AuthorizationContext;
+import models.Account;
+import models.Post;
+import models.enums.AccountRole;
+import models.services.FragmentCache;
+import play.Configuration;
+import play.db.jpa.JPAApi;
+
+import javax.inject.Inject;
+import java.util.*;
+
+/**
+ * Builds a StreamPage for a list of posts with a fixed number of queries, independent of the page size:
+ * one windowed query for the newest comments. Bookmarks, group memberships and contacts behind the capability flags
+ * are taken from the AuthorizationContext of the request, which loads each of them at most once per request.
+ * Contacts also decide where author links point to, so they are part of the fragment keys.
+ */
+public class StreamPageAssembler {
+
+    // newest :limit comments of every post in :postIds
+    private static final String NEWEST_COMMENTS = "SELECT x.id FROM (" +
+            " SELECT c.id, ROW_NUMBER() OVER (PARTITION BY c.parent_id ORDER BY c.created_at DESC, c.id DESC) AS rn" +
+            " FROM post c WHERE c.parent_id IN (:postIds)) x" +
+            " WHERE x.rn <= :limit";
+
+    @Inject
+    Configuration configuration;
+    @Inject
+    JPAApi jpaApi;
+    @Inject
+    FragmentCache fragmentCache;
+
+    /**
+     * @param posts        Top level posts of the page
+     * @param account      Account (current user)
+     * @param commentLimit Comments per post, 0 for all
+     * @return StreamPage
+     */
+    public StreamPage assemble(List<Post> posts, Account account, int commentLimit) {
+        int editTimeLimit = configuration.getInt("htwplus.post.editTimeLimit");
+        List<StreamPage.PostEntry> entries = new ArrayList<>();
+
+        if (posts != null && !posts.isEmpty()) {
+            List<Long> postIds = new ArrayList<>();
+            for (Post post : posts) {
+                postIds.add(post.id);
+            }
+
+            Map<Long, List<Post>> comments = findComments(postIds, commentLimit);
+            AuthorizationContext relations = relations(account);
+
+            for (Post post : posts) {
+                List<StreamPage.CommentEntry> commentEntries = new ArrayList<>();
+                for (Post comment : comments.getOrDefault(post.id, Collections.emptyList())) {
+                    commentEntries.add(commentEntry(comment, post, account, editTimeLimit, relations));
+                }
+
+                boolean editable = isEditable(post, account);
+                entries.add(new StreamPage.PostEntry(post, commentEntries,
+                        post.commentCount,
+                        relations.isBookmarked(post.id),
+                        isDeletable(post, account),
+                        editable,
+                        editable && isInEditTime(post, account, editTimeLimit),
+                        isCommentable(post, account, relations),
+                        relations.isFriend(post.owner.id),
+                        post.account != null && relations.isFriend(post.account.id)));
+            }
+        }
+
+        return new StreamPage(entries, commentLimit,
+                configuration.getInt("htwplus.comments.init"),
+                configuration.getInt("htwplus.comments.singlepost"),
+                editTimeLimit,
+                fragmentCache);
+    }
+
+    /**
+     * Builds a stream page showing htwplus.comments.init comments per post.
+     */
+    public StreamPage assemble(List<Post> posts, Account account) {
+        return assemble(posts, account, configuration.getInt("htwplus.comments.init"));
+    }
+
+    /**
+     * Builds a page for a single post showing htwplus.comments.singlepost comments.
+     */
+    public StreamPage assembleSinglePost(Post post, Account account) {
+        return assemble(Collections.singletonList(post), account, configuration.getInt("htwplus.comments.singlepost"));
+    }
+
+    /**
+     * Builds the entries for comments of a single post, e.g. for a new comment or older comments loaded on demand.
+     *
+     * @param comments Comments of parent
+     * @param parent   Commented post
+     * @param account  Account (current user)
+     * @return List of CommentEntries
+     */
+    public List<StreamPage.CommentEntry> assembleComments(List<Post> comments, Post parent, Account account) {
+        int editTimeLimit = configuration.getInt("htwplus.post.editTimeLimit");
+        AuthorizationContext relations = relations(account);
+
+        List<StreamPage.CommentEntry> entries = new ArrayList<>();
+        for (Post comment : comments) {
+            entries.add(commentEntry(comment, parent, account, editTimeLimit, relations));
+        }
+        return entries;
+    }
+
+    /**
+     * Relations of the account, shared with the Secured checks of the current request.
+     * Outside of a request (or for another account) a context of its own is used.
+     */
+    private AuthorizationContext relations(Account account) {
+        AuthorizationContext context = AuthorizationContext.forAccount(account);
+        return context != null ? context : new AuthorizationContext(account, jpaApi);
+    }
+
+    private StreamPage.CommentEntry commentEntry(Post comment, Post parent, Account account, int editTimeLimit, AuthorizationContext relations) {
+        boolean editable = isEditable(comment, account);
+        return new StreamPage.CommentEntry(comment,
+                isDeletable(comment, account) || isDeletable(parent, account),
+                editable,
+                editable && isInEditTime(comment, account, editTimeLimit),
+                editTimeLimit,
+                relations.isFriend(comment.owner.id));
+    }
+
+    /**
+     * @return comments by parent id, oldest first
+     */
+    @SuppressWarnings("unchecked")
+    private Map<Long, List<Post>> findComments(List<Long> postIds, int limit) {
+        List<Post> comments;
+        if (limit > 0) {
+            List<Number> ids = jpaApi.em().createNativeQuery(NEWEST_COMMENTS)
+                    .setParameter("postIds", postIds)
+                    .setParameter("limit", limit)
+                    .getResultList();
+            if (ids.isEmpty()) {
+                return Collections.emptyMap();
+            }
+
+            List<Long> commentIds = new ArrayList<>();
+            for (Number id : ids) {
+                commentIds.add(id.longValue());
+            }
+            comments = jpaApi.em()
+                    .createQuery("SELECT c FROM Post c JOIN FETCH c.owner WHERE c.id IN (:ids) ORDER BY c.createdAt ASC, c.id ASC")
+                    .setParameter("ids", commentIds)
+                    .getResultList();
+        } else {
+            comments = jpaApi.em()
+                    .createQuery("SELECT c FROM Post c JOIN FETCH c.owner WHERE c.parent.id IN (:postIds) ORDER BY c.createdAt ASC, c.id ASC")
+                    .setParameter("postIds", postIds)
+                    .getResultList();
+        }
+
+        Map<Long, List<Post>> commentsByPost = new HashMap<>();
+        for (Post comment : comments) {
+            commentsByPost.computeIfAbsent(comment.parent.id, id -> new ArrayList<>()).add(comment);
+        }
+        return commentsByPost;
+    }
+
+    private static boolean isAdmin(Account account) {
+        return account.role == AccountRole.ADMIN;
+    }
+
+    /**
+     * Same rules as Secured.isAllowedToDeletePost() for a top level post.
+     */
+    private static boolean isDeletable(Post post, Account account) {
+        return isAdmin(account)
+                || post.owner.equals(account)
+                || (post.group != null && post.group.owner.equals(account))
+                || (post.account != null && post.account.equals(account));
+    }
+
+    /**
+     * Same rules as Secured.isAllowedToEditPost().
+     */
+    private static boolean isEditable(Post post, Account account) {
+        return isAdmin(account) || post.owner.equals(account);
+    }
+
+    /**
+     * Time limit of Secured.isPostStillEditable().
+     */
+    private static boolean isInEditTime(Post post, Account account, int editTimeLimit) {
+        return isAdmin(account) || post.createdAt.getTime() + 1000L * 60 * editTimeLimit >= System.currentTimeMillis();
+    }
+
+    /**
+     * Same rules as Secured.addComment().
+     */
+    private static boolean isCommentable(Post post, Account account, AuthorizationContext relations) {
+        if (isAdmin(account)) {
+            return true;
+        }
+        if (post.group != null) {
+            return relations.isMember(post.group.id);
+        }
+        return post.account != null && (post.account.equals(account) || relations.isFriend(post.account.id));
+    }
+}
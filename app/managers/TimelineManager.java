@@ -0,0 +1,404 @@
+package managers;
+
+import models.Account;
+import models.Group;
+import models.Post;
+import models.services.StreamCountService;
+import models.services.TimelineState;
+import play.Logger;
+import play.db.jpa.JPAApi;
+
+import javax.inject.Inject;
+import javax.persistence.Query;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Maintains the materialized newsstream (timeline_entry).
+ * New top level posts are fanned out to every account which is able to see them,
+ * membership and friendship changes refresh only the affected (account, post) pairs.
+ * Reading a stream page is a single index range scan on (account_id, sort_key).
+ * The cached stream counts of every account whose entries changed are dropped after commit.
+ */
+public class TimelineManager {
+
+    private static final Logger.ALogger LOG = Logger.of(TimelineManager.class);
+
+    // computes the stream flags for every pair of scope_accounts x scope_posts.
+    // mirrors the clauses of PostManager.streamForAccount(), so both paths return the same posts.
+    private static final String INSERT_ENTRIES =
+            " INSERT INTO timeline_entry (account_id, post_id, sort_key, from_group, from_account, from_contact)" +
+            " SELECT v.account_id, v.post_id, v.sort_key, v.from_group, v.from_account, v.from_contact FROM (" +
+            "  SELECT c.account_id, p.id AS post_id, p.updated_at AS sort_key," +
+            "   EXISTS (SELECT 1 FROM group_account ga WHERE ga.account_id = c.account_id AND ga.group_id = p.group_id AND ga.linktype = 'establish') AS from_group," +
+            "   (p.owner_id = c.account_id AND (COALESCE(p.account_id = c.account_id, false)" +
+            "     OR EXISTS (SELECT 1 FROM friendship f WHERE f.account_id = c.account_id AND f.friend_id = p.account_id AND f.linktype = 'establish')" +
+            "     OR EXISTS (SELECT 1 FROM group_account ga WHERE ga.account_id = c.account_id AND ga.group_id = p.group_id AND ga.linktype = 'establish'))) AS from_account," +
+            "   (COALESCE(p.account_id = c.account_id OR p.account_id = p.owner_id, false)" +
+            "     AND EXISTS (SELECT 1 FROM friendship f WHERE f.account_id = c.account_id AND f.friend_id = p.owner_id AND f.linktype = 'establish')) AS from_contact" +
+            "  FROM scope_accounts c CROSS JOIN scope_posts sp JOIN post p ON p.id = sp.id AND p.parent_id IS NULL" +
+            " ) v" +
+            " WHERE v.from_group OR v.from_account OR v.from_contact" +
+            " ON CONFLICT (account_id, post_id) DO NOTHING";
+
+    // every account which might see a freshly created post
+    private static final String FAN_OUT =
+            "WITH scope_posts AS (SELECT CAST(:postId AS bigint) AS id)," +
+            " scope_accounts AS (" +
+            "  SELECT p.owner_id AS account_id FROM post p WHERE p.id = :postId" +
+            "  UNION SELECT ga.account_id FROM group_account ga JOIN post p ON ga.group_id = p.group_id WHERE p.id = :postId AND ga.linktype = 'establish'" +
+            "  UNION SELECT f.account_id FROM friendship f JOIN post p ON f.friend_id = p.owner_id WHERE p.id = :postId AND f.linktype = 'establish')" +
+            INSERT_ENTRIES;
+
+    // posts of a single group for a single account
+    private static final String GROUP_SCOPE =
+            "WITH scope_accounts AS (SELECT CAST(:accountId AS bigint) AS account_id)," +
+            " scope_posts AS (SELECT p.id FROM post p WHERE p.group_id = :groupId AND p.parent_id IS NULL)";
+
+    // posts which may change visibility between two contacts
+    private static final String FRIENDSHIP_SCOPE =
+            "WITH scope_accounts AS (SELECT a.id AS account_id FROM account a WHERE a.id IN (:accountId, :friendId))," +
+            " scope_posts AS (SELECT p.id FROM post p WHERE p.parent_id IS NULL" +
+            "  AND (p.owner_id IN (:accountId, :friendId) OR p.account_id IN (:accountId, :friendId)))";
+
+    // every post an account might see
+    private static final String ACCOUNT_SCOPE =
+            "WITH scope_accounts AS (SELECT CAST(:accountId AS bigint) AS account_id)," +
+            " scope_posts AS (SELECT p.id FROM post p WHERE p.parent_id IS NULL AND (p.owner_id = :accountId OR p.account_id = :accountId" +
+            "  OR p.group_id IN (SELECT ga.group_id FROM group_account ga WHERE ga.account_id = :accountId AND ga.linktype = 'establish')" +
+            "  OR p.owner_id IN (SELECT f.friend_id FROM friendship f WHERE f.account_id = :accountId AND f.linktype = 'establish')))";
+
+    private static final String FILTER_ALL = "";
+    private static final String FILTER_GROUP = " AND t.fromGroup = true";
+    private static final String FILTER_ACCOUNT = " AND t.fromAccount = true";
+    private static final String FILTER_CONTACT = " AND t.fromContact = true";
+
+    @Inject
+    JPAApi jpaApi;
+
+    @Inject
+    StreamCountService streamCountService;
+
+    @Inject
+    TimelineState timelineState;
+
+    /**
+     * Returns true, if the timeline is able to serve the given stream filter.
+     * Bookmarks and visitor streams are still served by the PostManager query.
+     *
+     * @param filter Stream filter
+     * @return true, if supported
+     */
+    public static boolean supports(String filter) {
+        return !filter.equals("bookmark") && !filter.equals("visitor");
+    }
+
+    /**
+     * Returns true, if the timeline serves the given stream filter right now.
+     * Until the backfill has completed, all streams are read with the PostManager queries.
+     *
+     * @param filter Stream filter
+     * @return true, if the timeline is complete and supports the filter
+     */
+    public boolean serves(String filter) {
+        return timelineState.isReady() && supports(filter);
+    }
+
+    /**
+     * Fans out a new top level post to all accounts which are able to see it.
+     *
+     * @param post Persisted post
+     */
+    public void add(Post post) {
+        if (post.parent != null) {
+            return;
+        }
+
+        jpaApi.em().flush();
+        invalidateCounts(accountIds(jpaApi.em().createNativeQuery(FAN_OUT + " RETURNING account_id")
+                .setParameter("postId", post.id)));
+    }
+
+    /**
+     * Moves a post to the top of every stream it appears in. The post is flushed first and the key is taken
+     * from its row, @PreUpdate sets updatedAt once more on flush and cursors are built from the stored value.
+     *
+     * @param post Updated post
+     */
+    public void touch(Post post) {
+        if (post.parent != null || post.id == null) {
+            return;
+        }
+
+        jpaApi.em().flush();
+        jpaApi.em().createNativeQuery("UPDATE timeline_entry t SET sort_key = p.updated_at FROM post p" +
+                " WHERE p.id = t.post_id AND t.post_id = :postId")
+                .setParameter("postId", post.id)
+                .executeUpdate();
+    }
+
+    /**
+     * Removes a post from all streams.
+     *
+     * @param post Post to be deleted
+     */
+    public void remove(Post post) {
+        jpaApi.em().flush();
+        invalidateCounts(accountIds(jpaApi.em().createNativeQuery("DELETE FROM timeline_entry WHERE post_id = :postId RETURNING account_id")
+                .setParameter("postId", post.id)));
+    }
+
+    /**
+     * Recomputes all stream entries of a post, e.g. after its owner or target account has changed.
+     *
+     * @param post Post
+     */
+    public void refresh(Post post) {
+        remove(post);
+        add(post);
+    }
+
+    /**
+     * Removes the complete stream of an account.
+     *
+     * @param account Account to be deleted
+     */
+    public void removeAccount(Account account) {
+        jpaApi.em().createQuery("DELETE FROM TimelineEntry t WHERE t.accountId = :accountId")
+                .setParameter("accountId", account.id)
+                .executeUpdate();
+        invalidateCounts(Arrays.asList(account.id));
+    }
+
+    /**
+     * Refreshes the group posts on the stream of an account, e.g. after joining or leaving a group.
+     *
+     * @param account Account
+     * @param group   Group
+     */
+    public void refreshMembership(Account account, Group group) {
+        jpaApi.em().flush();
+        jpaApi.em().createNativeQuery("DELETE FROM timeline_entry WHERE account_id = :accountId" +
+                " AND post_id IN (SELECT p.id FROM post p WHERE p.group_id = :groupId)")
+                .setParameter("accountId", account.id)
+                .setParameter("groupId", group.id)
+                .executeUpdate();
+        jpaApi.em().createNativeQuery(GROUP_SCOPE + INSERT_ENTRIES)
+                .setParameter("accountId", account.id)
+                .setParameter("groupId", group.id)
+                .executeUpdate();
+        invalidateCounts(Arrays.asList(account.id));
+    }
+
+    /**
+     * Refreshes the streams of two accounts after their friendship has changed.
+     *
+     * @param account Account
+     * @param friend  Friend
+     */
+    public void refreshFriendship(Account account, Account friend) {
+        jpaApi.em().flush();
+        jpaApi.em().createNativeQuery("DELETE FROM timeline_entry WHERE account_id IN (:accountId, :friendId)" +
+                " AND post_id IN (SELECT p.id FROM post p WHERE p.owner_id IN (:accountId, :friendId) OR p.account_id IN (:accountId, :friendId))")
+                .setParameter("accountId", account.id)
+                .setParameter("friendId", friend.id)
+                .executeUpdate();
+        jpaApi.em().createNativeQuery(FRIENDSHIP_SCOPE + INSERT_ENTRIES)
+                .setParameter("accountId", account.id)
+                .setParameter("friendId", friend.id)
+                .executeUpdate();
+        invalidateCounts(Arrays.asList(account.id, friend.id));
+    }
+
+    /**
+     * Rebuilds the complete stream of an account.
+     *
+     * @param accountId Account ID
+     */
+    public void rebuild(Long accountId) {
+        jpaApi.em().createQuery("DELETE FROM TimelineEntry t WHERE t.accountId = :accountId")
+                .setParameter("accountId", accountId)
+                .executeUpdate();
+        jpaApi.em().createNativeQuery(ACCOUNT_SCOPE + INSERT_ENTRIES)
+                .setParameter("accountId", accountId)
+                .executeUpdate();
+        invalidateCounts(Arrays.asList(accountId));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Long> accountIds(Query returningQuery) {
+        List<Long> accountIds = new ArrayList<>();
+        for (Number accountId : (List<Number>) returningQuery.getResultList()) {
+            accountIds.add(accountId.longValue());
+        }
+        return accountIds;
+    }
+
+    /**
+     * Drops the cached stream counts of the accounts once the changed entries are committed.
+     */
+    private void invalidateCounts(Collection<Long> accountIds) {
+        if (!accountIds.isEmpty()) {
+            AfterCommit.run(jpaApi.em(), () -> streamCountService.invalidateAccounts(accountIds));
+        }
+    }
+
+    /**
+     * Rebuilds the streams of all accounts. Every account runs in its own transaction,
+     * so this must not be called inside of a request transaction.
+     *
+     * @return Time in seconds
+     */
+    @SuppressWarnings("unchecked")
+    public long rebuildAll() {
+        final long start = System.currentTimeMillis();
+        List<Long> accountIds = jpaApi.withTransaction(() ->
+                (List<Long>) jpaApi.em().createQuery("SELECT a.id FROM Account a ORDER BY a.id").getResultList());
+
+        for (Long accountId : accountIds) {
+            jpaApi.withTransaction(() -> rebuild(accountId));
+        }
+
+        long time = (System.currentTimeMillis() - start) / 1000;
+        LOG.info("Rebuilt timelines of " + accountIds.size() + " accounts (" + time + " seconds)");
+        return time;
+    }
+
+    /**
+     * Rebuilds the streams of all accounts in the background, unless a rebuild is already running.
+     *
+     * @return True, if the rebuild was started
+     */
+    public boolean startRebuildAll() {
+        if (!timelineState.startRebuild()) {
+            return false;
+        }
+        CompletableFuture.runAsync(() -> {
+            try {
+                rebuildAll();
+            } finally {
+                timelineState.finishRebuild();
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Fills the timeline once, if it is empty (e.g. after the deployment which introduced it),
+     * and lets it serve the streams afterwards. Called on application start.
+     */
+    public void backfill() {
+        boolean empty = jpaApi.withTransaction(() ->
+                jpaApi.em().createQuery("SELECT t.postId FROM TimelineEntry t").setMaxResults(1).getResultList().isEmpty());
+
+        if (empty) {
+            if (!timelineState.startRebuild()) {
+                return;
+            }
+            try {
+                LOG.info("Timeline is empty, starting backfill");
+                rebuildAll();
+            } finally {
+                timelineState.finishRebuild();
+            }
+        }
+        timelineState.setReady();
+    }
+
+    /**
+     * @param account Account (current user)
+     * @param filter  Stream filter (all, group, account, contact)
+     * @param limit   Limit
+     * @param offset  Offset
+     * @return List of Posts
+     */
+    @SuppressWarnings("unchecked")
+    public List<Post> findStream(Account account, String filter, int limit, int offset) {
+        Query query = jpaApi.em()
+                .createQuery("SELECT p FROM TimelineEntry t, Post p WHERE p.id = t.postId AND t.accountId = :accountId"
+                        + filterClause(filter) + " ORDER BY t.sortKey DESC, t.postId DESC")
+                .setParameter("accountId", account.id);
+
+        if (limit > 0) {
+            query.setMaxResults(limit);
+        }
+        if (offset >= 0) {
+            query.setFirstResult(offset);
+        }
+        return query.getResultList();
+    }
+
+    /**
+     * Keyset variant of findStream(), returns the posts behind the given cursor.
+     *
+     * @param account Account (current user)
+     * @param filter  Stream filter (all, group, account, contact)
+     * @param cursor  Position behind the last post of the previous page
+     * @param limit   Limit
+     * @return List of Posts
+     */
+    @SuppressWarnings("unchecked")
+    public List<Post> findStream(Account account, String filter, StreamCursor cursor, int limit) {
+        return jpaApi.em()
+                .createQuery("SELECT p FROM TimelineEntry t, Post p WHERE p.id = t.postId AND t.accountId = :accountId"
+                        + filterClause(filter)
+                        + " AND (t.sortKey < :cursorDate OR (t.sortKey = :cursorDate AND t.postId < :cursorId))"
+                        + " ORDER BY t.sortKey DESC, t.postId DESC")
+                .setParameter("accountId", account.id)
+                .setParameter("cursorDate", cursor.updatedAt)
+                .setParameter("cursorId", cursor.id)
+                .setMaxResults(limit)
+                .getResultList();
+    }
+
+    /**
+     * Returns the posts in front of the given cursor, i.e. posts which are new or were updated since.
+     *
+     * @param account Account (current user)
+     * @param filter  Stream filter (all, group, account, contact)
+     * @param since   Position of the newest post the client knows
+     * @param limit   Limit
+     * @return List of Posts, newest first
+     */
+    @SuppressWarnings("unchecked")
+    public List<Post> findStreamSince(Account account, String filter, StreamCursor since, int limit) {
+        return jpaApi.em()
+                .createQuery("SELECT p FROM TimelineEntry t, Post p WHERE p.id = t.postId AND t.accountId = :accountId"
+                        + filterClause(filter)
+                        + " AND (t.sortKey > :cursorDate OR (t.sortKey = :cursorDate AND t.postId > :cursorId))"
+                        + " ORDER BY t.sortKey DESC, t.postId DESC")
+                .setParameter("accountId", account.id)
+                .setParameter("cursorDate", since.updatedAt)
+                .setParameter("cursorId", since.id)
+                .setMaxResults(limit)
+                .getResultList();
+    }
+
+    /**
+     * @param account Account (current user)
+     * @param filter  Stream filter (all, group, account, contact)
+     * @return Number of Posts
+     */
+    public int countStream(Account account, String filter) {
+        return ((Number) jpaApi.em()
+                .createQuery("SELECT COUNT(t.postId) FROM TimelineEntry t WHERE t.accountId = :accountId" + filterClause(filter))
+                .setParameter("accountId", account.id)
+                .getSingleResult()).intValue();
+    }
+
+    private static String filterClause(String filter) {
+        switch (filter) {
+            case "group":
+                return FILTER_GROUP;
+            case "account":
+                return FILTER_ACCOUNT;
+            case "contact":
+                return FILTER_CONTACT;
+            default:
+                return FILTER_ALL;
+        }
+    }
+}
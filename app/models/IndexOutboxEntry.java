@@ -0,0 +1,59 @@
+package models;
+
+import models.enums.IndexOperation;
+
+import javax.persistence.*;
+import java.util.Date;
+
+/**
+ * Pending change of the search index. Written in the transaction of the entity change,
+ * so a rolled back change never reaches Elasticsearch, and sent by the IndexOutbox dispatcher.
+ * Entries which failed elasticsearch.outbox.maxAttempts times are kept as dead letters.
+ */
+@Entity
+@Table(name = "index_outbox", indexes = {
+        @Index(name = "index_outbox_due_idx", columnList = "dead, next_attempt_at, id"),
+        @Index(name = "index_outbox_document_idx", columnList = "document_type, document_id")
+})
+public class IndexOutboxEntry {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    public Long id;
+
+    // elasticsearch type (post, group, user, medium)
+    @Column(name = "document_type", nullable = false)
+    public String documentType;
+
+    @Column(name = "document_id", nullable = false)
+    public Long documentId;
+
+    @Enumerated(EnumType.STRING)
+    @Column(nullable = false)
+    public IndexOperation operation;
+
+    @Column(name = "created_at", nullable = false)
+    public Date createdAt;
+
+    @Column(nullable = false, columnDefinition = "integer default 0")
+    public int attempts;
+
+    @Column(name = "next_attempt_at", nullable = false)
+    public Date nextAttemptAt;
+
+    @Column(name = "last_error", columnDefinition = "text")
+    public String lastError;
+
+    @Column(nullable = false, columnDefinition = "boolean default false")
+    public boolean dead;
+
+    public IndexOutboxEntry() {
+    }
+
+    public IndexOutboxEntry(String documentType, Long documentId, IndexOperation operation) {
+        this.documentType = documentType;
+        this.documentId = documentId;
+        this.operation = operation;
+        this.createdAt = this.nextAttemptAt = new Date();
+    }
+}
@@ -1,10 +1,8 @@
 package models;
 
 import managers.FolderManager;
-import managers.GroupAccountManager;
 import models.base.BaseNotifiable;
 import models.base.INotifiable;
-import models.enums.LinkType;
 import play.data.validation.Constraints.Required;
 
 import javax.persistence.Entity;
@@ -66,7 +64,7 @@ public class Media extends BaseNotifiable implements INotifiable {
 
     @Override
     public List<Account> getRecipients() {
-        return GroupAccountManager.staticFindAccountsByGroup(folder.group, LinkType.establish);
+        return getGroupAsAccountList(folder.group);
     }
 
     @Override
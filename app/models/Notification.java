@@ -14,6 +14,7 @@ import javax.persistence.Table;
 
 /**
  * Notification class as entity. Will replace the current Notification class in future.
+ * A recipient has at most one notification per post (partial unique index notification_post_recipient_idx).
  */
 @Entity
 @Table
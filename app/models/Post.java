@@ -1,15 +1,14 @@
 package models;
 
-import managers.NotificationManager;
 import models.base.BaseModel;
 import models.base.BaseNotifiable;
 import models.base.INotifiable;
 import org.hibernate.annotations.Type;
-import play.Logger;
 import play.data.validation.Constraints.Required;
 
 import javax.persistence.*;
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.List;
 import java.util.Set;
 
@@ -43,6 +42,19 @@ public class Post extends BaseNotifiable implements INotifiable {
     @Column(name = "is_broadcast", nullable = false, columnDefinition = "boolean default false")
     public boolean isBroadcastMessage;
 
+    /**
+     * Number of comments, maintained by PostManager with atomic updates.
+     * Not updatable through the entity, so a stale instance can never overwrite it.
+     */
+    @Column(name = "comment_count", nullable = false, updatable = false, columnDefinition = "integer default 0")
+    public int commentCount;
+
+    /**
+     * Creation date of the newest comment, null if there is none.
+     */
+    @Column(name = "last_comment_at", updatable = false)
+    public Date lastCommentAt;
+
     @ManyToMany
     @JoinTable(
             name = "broadcast_account",
@@ -157,26 +169,14 @@ public class Post extends BaseNotifiable implements INotifiable {
     }
 
     /**
-     * As we want to have only one notification per post and just update if there is a new comment,
-     * we need to find out, if there is a notification per post and user already given. If there is no
-     * notification given for a user and post, we create a new notification instance.
+     * As we want to have only one notification per post, the notification of a recipient is just updated
+     * if there is a new comment.
      *
-     * @param recipient Account recipient
-     * @return Notification instance
+     * @return True
      */
     @Override
-    public Notification getNotification(Account recipient) {
-        if (this.parent != null) {
-            try {
-                return NotificationManager.findByReferenceIdAndRecipientId(this.parent.id, recipient.id);
-            } catch (NoResultException ex) {
-                Logger.error("Error while trying to fetch notification for Post ID: " + this.parent.id
-                                + ", Recipient ID: " + recipient.id + ": " + ex.getMessage()
-                );
-            }
-        }
-
-        return new Notification();
+    public boolean updatesNotification() {
+        return true;
     }
 
     public boolean belongsToAccount() {
@@ -0,0 +1,70 @@
+package models;
+
+import javax.persistence.*;
+import java.io.Serializable;
+import java.util.Date;
+import java.util.Objects;
+
+/**
+ * Materialized newsstream row: one entry per (account, post) the account sees on its stream.
+ * Written on post creation (fan-out) and refreshed on membership or friendship changes by the TimelineManager.
+ * The flags remember why the post is on the stream, so the stream filters become simple predicates.
+ */
+@Entity
+@IdClass(TimelineEntry.Key.class)
+@Table(name = "timeline_entry", indexes = {
+        @Index(name = "timeline_entry_account_sort_idx", columnList = "account_id, sort_key, post_id"),
+        @Index(name = "timeline_entry_post_idx", columnList = "post_id")
+})
+public class TimelineEntry {
+
+    @Id
+    @Column(name = "account_id")
+    public Long accountId;
+
+    @Id
+    @Column(name = "post_id")
+    public Long postId;
+
+    // mirrors post.updatedAt, the stream order
+    @Column(name = "sort_key", nullable = false)
+    public Date sortKey;
+
+    // post in one of the account's groups
+    @Column(name = "from_group", nullable = false, columnDefinition = "boolean default false")
+    public boolean fromGroup;
+
+    // post written by the account (own feed, contact feed or group)
+    @Column(name = "from_account", nullable = false, columnDefinition = "boolean default false")
+    public boolean fromAccount;
+
+    // post written by a contact on the account's or on his/her own feed
+    @Column(name = "from_contact", nullable = false, columnDefinition = "boolean default false")
+    public boolean fromContact;
+
+    public static class Key implements Serializable {
+        public Long accountId;
+        public Long postId;
+
+        public Key() {
+        }
+
+        public Key(Long accountId, Long postId) {
+            this.accountId = accountId;
+            this.postId = postId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key key = (Key) o;
+            return Objects.equals(accountId, key.accountId) && Objects.equals(postId, key.postId);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(accountId, postId);
+        }
+    }
+}
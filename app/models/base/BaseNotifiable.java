@@ -1,12 +1,11 @@
 package models.base;
 
-import managers.GroupAccountManager;
 import models.Account;
 import models.Group;
-import models.GroupAccount;
 import models.Notification;
 import models.enums.LinkType;
 import models.services.TemplateService;
+import play.db.jpa.JPA;
 
 import javax.persistence.Transient;
 import java.util.ArrayList;
@@ -68,8 +67,8 @@ public abstract class BaseNotifiable extends BaseModel implements INotifiable {
     }
 
     @Override
-    public Notification getNotification(Account recipient) {
-        return new Notification();
+    public boolean updatesNotification() {
+        return false;
     }
 
     /**
@@ -88,12 +87,17 @@ public abstract class BaseNotifiable extends BaseModel implements INotifiable {
 
     /**
      * Returns all accounts that are assigned to a group as list.
+     * Runs in the transaction of the caller, as the notification workers resolve the recipients.
      *
      * @param group Group to retrieve a list of accounts from
      * @return List of accounts of group
      */
     public List<Account> getGroupAsAccountList(final Group group) {
-        return GroupAccountManager.staticFindAccountsByGroup(group, LinkType.establish);
+        return JPA.em()
+                .createQuery("SELECT ga.account FROM GroupAccount ga WHERE ga.group.id = :groupId AND ga.linkType = :linkType", Account.class)
+                .setParameter("groupId", group.id)
+                .setParameter("linkType", LinkType.establish)
+                .getResultList();
     }
 
     /**
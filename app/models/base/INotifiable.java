@@ -25,8 +25,9 @@ public interface INotifiable {
 
     /**
      * Pre-Renders this notification, to be saved into the DB and be accessed instantly by the notification handler.
+     * It is rendered once for all recipients, so the content must not depend on the recipient.
      *
-     * @param notification The notification which is rendered
+     * @param notification The notification which is rendered, without recipient
      * @return Rendered HTML
      */
     public String render(Notification notification);
@@ -46,10 +47,11 @@ public interface INotifiable {
     public String getTargetUrl();
 
     /**
-     * Returns a new notification instance or might fetch an already given notification for modification
+     * Returns true, if an already given notification of a recipient about the same reference is updated
+     * instead of creating another one. This needs a unique index on the reference type of the notifications,
+     * which exists for posts only (see evolution 4).
      *
-     * @param recipient Account recipient
-     * @return Notification instance
+     * @return True, if existing notifications are updated
      */
-    public Notification getNotification(Account recipient);
+    public boolean updatesNotification();
 }
@@ -0,0 +1,6 @@
+package models.enums;
+
+public enum IndexOperation {
+	index,
+	delete
+}
@@ -0,0 +1,146 @@
+package models.services;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lets requests to Elasticsearch fail fast while the cluster is unreachable or too slow.
+ * After elasticsearch.breaker.failures consecutive failures (errors or timeouts) the breaker opens and rejects
+ * requests for elasticsearch.breaker.openFor seconds. Then a single request is let through,
+ * its success closes the breaker, its failure opens it again.
+ * Also counts the requests and their latency for the admin metrics page.
+ */
+public class CircuitBreaker {
+
+    public enum State {
+        closed,
+        open,
+        halfOpen
+    }
+
+    private final int threshold;
+    private final long openFor;
+
+    private volatile State state = State.closed;
+    // guarded by this
+    private long openedAt;
+    // guarded by this
+    private boolean trialRunning;
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder latencyNanos = new LongAdder();
+    private final AtomicLong maxLatencyNanos = new AtomicLong();
+
+    /**
+     * @param threshold Consecutive failures which open the breaker
+     * @param openFor   Milliseconds requests are rejected, before a single request is tried again
+     */
+    public CircuitBreaker(int threshold, long openFor) {
+        this.threshold = threshold;
+        this.openFor = openFor;
+    }
+
+    /**
+     * Asks for permission to send a request. Every permitted request must be followed by success() or failure().
+     *
+     * @return false, if the request has to fail fast
+     */
+    public boolean allowRequest() {
+        if (state == State.closed) {
+            return true;
+        }
+        synchronized (this) {
+            if (state == State.open && System.currentTimeMillis() - openedAt >= openFor) {
+                state = State.halfOpen;
+                trialRunning = false;
+            }
+            if (state == State.closed || state == State.halfOpen && !trialRunning) {
+                trialRunning = state == State.halfOpen;
+                return true;
+            }
+        }
+        rejected.increment();
+        return false;
+    }
+
+    /**
+     * @return true, if requests are rejected right now, does not use up the trial request of a half open breaker
+     */
+    public boolean isRejecting() {
+        if (state == State.closed) {
+            return false;
+        }
+        synchronized (this) {
+            return state == State.open ? System.currentTimeMillis() - openedAt < openFor : trialRunning;
+        }
+    }
+
+    public void success(long nanos) {
+        record(nanos);
+        consecutiveFailures.set(0);
+        if (state != State.closed) {
+            synchronized (this) {
+                state = State.closed;
+                trialRunning = false;
+            }
+        }
+    }
+
+    public void failure(long nanos) {
+        record(nanos);
+        failures.increment();
+        if (consecutiveFailures.incrementAndGet() >= threshold || state == State.halfOpen) {
+            synchronized (this) {
+                state = State.open;
+                openedAt = System.currentTimeMillis();
+                trialRunning = false;
+            }
+        }
+    }
+
+    private void record(long nanos) {
+        requests.increment();
+        latencyNanos.add(nanos);
+        maxLatencyNanos.accumulateAndGet(nanos, Math::max);
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public int consecutiveFailures() {
+        return consecutiveFailures.get();
+    }
+
+    public long requests() {
+        return requests.sum();
+    }
+
+    public long failures() {
+        return failures.sum();
+    }
+
+    public long rejected() {
+        return rejected.sum();
+    }
+
+    /**
+     * @return Average latency of all requests in milliseconds
+     */
+    public double averageLatency() {
+        long requests = requests();
+        return requests == 0 ? 0 : latencyNanos.sum() / (double) requests / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    /**
+     * @return Highest latency of a request in milliseconds
+     */
+    public long maxLatency() {
+        return TimeUnit.NANOSECONDS.toMillis(maxLatencyNanos.get());
+    }
+}
@@ -1,221 +1,113 @@
 package models.services;
 
-import managers.AccountManager;
-import managers.GroupManager;
-import managers.MediaManager;
-import managers.PostManager;
-import models.Account;
 import models.Group;
-import models.Media;
-import models.Post;
-import org.apache.commons.lang3.StringEscapeUtils;
-import org.elasticsearch.action.search.SearchResponse;
-import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.aggregations.Aggregations;
 import org.elasticsearch.search.aggregations.bucket.histogram.Histogram;
 import org.elasticsearch.search.aggregations.bucket.terms.Terms;
-import play.Logger;
 
-import javax.inject.Inject;
-import javax.inject.Singleton;
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
+ * Result of a single search request: the hydrated hits in the order of Elasticsearch and the facet counts.
+ * Built by the SearchResultAssembler for every request and never changed afterwards, concurrent searches do not share state.
  * Created by Iven on 16.07.2015.
  */
-@Singleton
 public class ElasticsearchResponse {
 
+    public final List<Object> resultList;
+    public final String keyword;
+    public final String searchMode;
 
-    @Inject
-    PostManager postManager;
+    public final long lUserDocuments;
+    public final long lGroupDocuments;
+    public final long lPostDocuments;
+    public final long lMediumDocuments;
 
-    @Inject
-    GroupManager groupManager;
+    public final Map<String, Long> studycoursesMap;
+    public final Map<String, Long> degreeMap;
+    public final Map<String, Long> semesterMap;
+    public final Map<String, Long> roleMap;
+    public final Map<String, Long> grouptypeMap;
+    public final Map<String, Long> ownerNameMap;
+    public final Map<String, Long> folderNameMap;
+    public final Map<String, Long> createdAtMap;
+    public final Map<String, Long> mimeTypeMap;
 
-    @Inject
-    AccountManager accountManager;
+    private final Map<Long, Long> memberCounts;
 
-    @Inject
-    MediaManager mediaManager;
-
-    SearchResponse elasticsearchResponse;
-    public List<Object> resultList;
-    public String keyword;
-    public String searchMode;
-
-    public long lUserDocuments;
-    public long lGroupDocuments;
-    public long lPostDocuments;
-    public long lMediumDocuments;
-
-    public HashMap studycoursesMap;
-    public HashMap degreeMap;
-    public HashMap semesterMap;
-    public HashMap roleMap;
-    public HashMap grouptypeMap;
-    public HashMap ownerNameMap;
-    public HashMap folderNameMap;
-    public HashMap createdAtMap;
-    public HashMap mimeTypeMap;
-
-    public void create(final SearchResponse response, final String keyword, final String mode) {
+    /**
+     * @param aggregations Facet counts of the search
+     * @param keyword      Search term
+     * @param mode         Search mode (all, user, group, post or medium)
+     * @param resultList   Hydrated hits in the order of the response
+     * @param memberCounts Number of members by group id for the group hits
+     */
+    public ElasticsearchResponse(final Aggregations aggregations, final String keyword, final String mode,
+                                 final List<Object> resultList, final Map<Long, Long> memberCounts) {
         this.keyword = keyword;
         this.searchMode = mode;
-        this.elasticsearchResponse = response;
-        this.elasticserchReponseToList();
-        this.aggregationStuff();
+        this.resultList = Collections.unmodifiableList(resultList);
+        this.memberCounts = Collections.unmodifiableMap(memberCounts);
+
+        Map<String, Long> types = terms(aggregations, "types");
+        this.lUserDocuments = types.getOrDefault("user", 0L);
+        this.lGroupDocuments = types.getOrDefault("group", 0L);
+        this.lPostDocuments = types.getOrDefault("post", 0L);
+        this.lMediumDocuments = types.getOrDefault("medium", 0L);
+
+        boolean user = mode.equals("user");
+        boolean medium = mode.equals("medium");
+        this.studycoursesMap = user ? terms(aggregations, "studycourse") : Collections.emptyMap();
+        this.degreeMap = user ? terms(aggregations, "degree") : Collections.emptyMap();
+        this.semesterMap = user ? terms(aggregations, "semester") : Collections.emptyMap();
+        this.roleMap = user ? terms(aggregations, "role") : Collections.emptyMap();
+        this.grouptypeMap = mode.equals("group") ? terms(aggregations, "grouptype") : Collections.emptyMap();
+        this.ownerNameMap = medium ? terms(aggregations, "ownerName") : Collections.emptyMap();
+        this.folderNameMap = medium ? terms(aggregations, "folderName") : Collections.emptyMap();
+        this.mimeTypeMap = medium ? terms(aggregations, "mimeType") : Collections.emptyMap();
+        this.createdAtMap = medium ? histogram(aggregations, "createdAt") : Collections.emptyMap();
     }
 
-    /**
-     * Iterate over response and add each searchHit to one list.
-     * Pay attention to view rights for post.content.
-     */
-    private void elasticserchReponseToList() {
-        resultList = new ArrayList<>();
-        for (SearchHit searchHit : elasticsearchResponse.getHits().getHits()) {
-            switch (searchHit.type()) {
-                case "user":
-                    Account account = accountManager.findById(Long.parseLong(searchHit.getId()));
-                    if (account != null)
-                        resultList.add(account);
-                    break;
-                case "post":
-                    Post post = postManager.findById(Long.parseLong(searchHit.getId()));
-                    if (post != null) {
-                        String searchContent = post.content;
-                        if (!searchHit.getHighlightFields().isEmpty())
-                            searchContent = searchHit.getHighlightFields().get("content").getFragments()[0].string();
-                        post.searchContent = StringEscapeUtils.escapeHtml4(searchContent)
-                                .replace("[startStrong]", "**")
-                                .replace("[endStrong]", "**");
-                        resultList.add(post);
-                    }
-                    break;
-                case "group":
-                    Group group = groupManager.findById(Long.parseLong(searchHit.getId()));
-                    if (group != null)
-                        resultList.add(group);
-                    break;
-                case "medium":
-                    Media medium = mediaManager.findById(Long.parseLong(searchHit.getId()));
-                    if (medium != null) {
-                        medium.sizeInByte = mediaManager.bytesToString(medium.size, false);
-                        resultList.add(medium);
-                    }
-                    break;
-                default:
-                    Logger.info("no matching case for ID: " + searchHit.getId());
+    private static Map<String, Long> terms(Aggregations aggregations, String name) {
+        Map<String, Long> counts = new LinkedHashMap<>();
+        Terms terms = aggregations != null ? aggregations.get(name) : null;
+        if (terms != null) {
+            for (Terms.Bucket bucket : terms.getBuckets()) {
+                counts.put(bucket.getKeyAsString(), bucket.getDocCount());
             }
         }
+        return Collections.unmodifiableMap(counts);
     }
 
-    @SuppressWarnings("unchecked")
-    private void aggregationStuff() {
-        lUserDocuments = new Long(0L);
-        lGroupDocuments = new Long(0L);
-        lPostDocuments = new Long(0L);
-        lMediumDocuments = new Long(0L);
-
-        studycoursesMap = new HashMap<String, Long>();
-        degreeMap = new HashMap<String, Long>();
-        semesterMap = new HashMap<String, Long>();
-        roleMap = new HashMap<String, Long>();
-        grouptypeMap = new HashMap<String, Long>();
-        ownerNameMap = new HashMap<String, Long>();
-        folderNameMap = new HashMap<String, Long>();
-        mimeTypeMap = new HashMap<String, Long>();
-        createdAtMap = new HashMap<String, Long>();
-
-        Terms terms = this.elasticsearchResponse.getAggregations().get("types");
-
-        Collection<Terms.Bucket> buckets = terms.getBuckets();
-
-        for (Terms.Bucket bucket : buckets) {
-            switch (bucket.getKey().toString()) {
-                case "user":
-                    lUserDocuments = bucket.getDocCount();
-                    break;
-                case "group":
-                    lGroupDocuments = bucket.getDocCount();
-                    break;
-                case "post":
-                    lPostDocuments = bucket.getDocCount();
-                    break;
-                case "medium":
-                    lMediumDocuments = bucket.getDocCount();
-                    break;
-            }
-        }
-
-        if (searchMode.equals("user")) {
-            Terms termAggregation = elasticsearchResponse.getAggregations().get("studycourse");
-            buckets = termAggregation.getBuckets();
-            for (Terms.Bucket bucket : buckets) {
-                studycoursesMap.put(bucket.getKey(), bucket.getDocCount());
-            }
-            termAggregation = elasticsearchResponse.getAggregations().get("degree");
-            buckets = termAggregation.getBuckets();
-            for (Terms.Bucket bucket : buckets) {
-                degreeMap.put(bucket.getKey(), bucket.getDocCount());
-            }
-            termAggregation = elasticsearchResponse.getAggregations().get("semester");
-            buckets = termAggregation.getBuckets();
-            for (Terms.Bucket bucket : buckets) {
-                semesterMap.put(bucket.getKey(), bucket.getDocCount());
-            }
-            termAggregation = elasticsearchResponse.getAggregations().get("role");
-            buckets = termAggregation.getBuckets();
-            for (Terms.Bucket bucket : buckets) {
-                roleMap.put(bucket.getKey(), bucket.getDocCount());
-            }
-        }
-
-        if (searchMode.equals("group")) {
-            Terms termAggregation = elasticsearchResponse.getAggregations().get("grouptype");
-            buckets = termAggregation.getBuckets();
-            for (Terms.Bucket bucket : buckets) {
-                grouptypeMap.put(bucket.getKey(), bucket.getDocCount());
+    private static Map<String, Long> histogram(Aggregations aggregations, String name) {
+        Map<String, Long> counts = new LinkedHashMap<>();
+        Histogram histogram = aggregations != null ? aggregations.get(name) : null;
+        if (histogram != null) {
+            for (Histogram.Bucket bucket : histogram.getBuckets()) {
+                counts.put(bucket.getKeyAsString(), bucket.getDocCount());
             }
         }
+        return Collections.unmodifiableMap(counts);
+    }
 
-        if (searchMode.equals("medium")) {
-            Terms termAggregation = elasticsearchResponse.getAggregations().get("ownerName");
-            if (termAggregation != null) {
-                buckets = termAggregation.getBuckets();
-                for (Terms.Bucket bucket : buckets) {
-                    ownerNameMap.put(bucket.getKey(), bucket.getDocCount());
-                }
-            }
-            termAggregation = elasticsearchResponse.getAggregations().get("folderName");
-            if (termAggregation != null) {
-                buckets = termAggregation.getBuckets();
-                for (Terms.Bucket bucket : buckets) {
-                    folderNameMap.put(bucket.getKey(), bucket.getDocCount());
-                }
-            }
-
-
-            termAggregation = elasticsearchResponse.getAggregations().get("mimeType");
-            if (termAggregation != null) {
-                buckets = termAggregation.getBuckets();
-                for (Terms.Bucket bucket : buckets) {
-                    mimeTypeMap.put(bucket.getKey(), bucket.getDocCount());
-                }
-            }
-
-            Histogram histogramAggregation = elasticsearchResponse.getAggregations().get("createdAt");
-            if (histogramAggregation != null) {
-                for (Histogram.Bucket bucket : histogramAggregation.getBuckets()) {
-                    createdAtMap.put(bucket.getKeyAsString(), bucket.getDocCount());
-                }
-            }
-        }
+    /**
+     * @return Number of established members of a group hit
+     */
+    public long memberCount(Group group) {
+        return memberCounts.getOrDefault(group.id, 0L);
     }
 
     public long getDocumentCount() {
         return lUserDocuments + lGroupDocuments + lPostDocuments + lMediumDocuments;
     }
+
+    /**
+     * @return Number of hits which can be paged through, Elasticsearch returns no hits behind its result window
+     */
+    public long getPageableCount() {
+        return Math.min(getDocumentCount(), ElasticsearchService.ES_MAX_RESULT_WINDOW);
+    }
 }
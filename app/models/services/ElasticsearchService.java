@@ -3,27 +3,36 @@ package models.services;
 
 import com.typesafe.config.Config;
 import com.typesafe.config.ConfigFactory;
-import managers.FriendshipManager;
-import managers.GroupAccountManager;
-import managers.MediaManager;
 import managers.PostManager;
 import models.Account;
+import models.Folder;
 import models.Group;
 import models.Media;
 import models.Post;
-import models.enums.LinkType;
+import models.enums.GroupType;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.action.admin.indices.alias.IndicesAliasesRequestBuilder;
 import org.elasticsearch.action.admin.indices.delete.DeleteIndexRequest;
 import org.elasticsearch.action.admin.indices.exists.indices.IndicesExistsRequest;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.index.IndexRequest;
 import org.elasticsearch.action.search.SearchRequestBuilder;
 import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.client.Client;
+import org.elasticsearch.client.transport.NoNodeAvailableException;
 import org.elasticsearch.client.transport.TransportClient;
+import org.elasticsearch.cluster.node.DiscoveryNode;
+import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.transport.InetSocketTransportAddress;
+import org.elasticsearch.common.unit.TimeValue;
 import org.elasticsearch.index.query.BoolQueryBuilder;
 import org.elasticsearch.index.query.QueryBuilder;
 import org.elasticsearch.index.query.QueryBuilders;
 import org.elasticsearch.search.aggregations.AggregationBuilders;
+import org.elasticsearch.search.aggregations.Aggregations;
 import org.elasticsearch.search.aggregations.bucket.histogram.DateHistogramInterval;
+import org.elasticsearch.search.sort.SortBuilders;
+import org.elasticsearch.search.sort.SortOrder;
 import play.Environment;
 import play.Logger;
 
@@ -32,10 +41,17 @@ import javax.inject.Singleton;
 import java.io.*;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Scanner;
+import java.util.Set;
 import java.util.concurrent.ExecutionException;
+import java.util.function.Supplier;
 
 import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
 
@@ -51,24 +67,30 @@ public class ElasticsearchService implements IElasticsearchService {
     @Inject
     PostManager postManger;
     @Inject
-    GroupAccountManager groupAccountManager;
-    @Inject
-    FriendshipManager friendshipManager;
-    @Inject
-    MediaManager mediaManager;
-    @Inject
     Environment environment;
+    @Inject
+    SearchCache searchCache;
 
     private Client client = null;
     private Config conf = ConfigFactory.load().getConfig("elasticsearch");
 
-    private final String ES_SERVER = conf.getString("server");
+    // transport addresses (host:port), a single elasticsearch.server of older configurations is still accepted
+    private final List<String> ES_SERVERS = conf.hasPath("servers")
+            ? conf.getStringList("servers")
+            : Collections.singletonList(conf.getString("server"));
+    private final boolean ES_SNIFF = conf.hasPath("sniff") && conf.getBoolean("sniff");
+    private final TimeValue ES_SEARCH_TIMEOUT = seconds("timeout.search", 5);
+    private final TimeValue ES_WRITE_TIMEOUT = seconds("timeout.write", 30);
+    private final TimeValue ES_PING_TIMEOUT = seconds("timeout.ping", 5);
+    // alias of the active versioned index, see createIndex() and activateIndex()
     private final String ES_INDEX = conf.getString("index");
     private final String ES_TYPE_USER = conf.getString("userType");
     private final String ES_TYPE_GROUP = conf.getString("groupType");
     private final String ES_TYPE_POST = conf.getString("postType");
     private final String ES_TYPE_MEDIUM = conf.getString("mediumType");
     private final int ES_RESULT_SIZE = conf.getInt("searchLimit");
+    // index.max_result_window of Elasticsearch, deeper pages are rejected
+    public static final int ES_MAX_RESULT_WINDOW = 10000;
     private final String ES_SETTINGS = "elasticsearch/settings.json";
     private final String ES_USER_MAPPING = "elasticsearch/user_mapping.json";
     private final String ES_GROUP_MAPPING = "elasticsearch/group_mapping.json";
@@ -76,13 +98,35 @@ public class ElasticsearchService implements IElasticsearchService {
     private final String ES_MEDIUM_MAPPING = "elasticsearch/medium_mapping.json";
 
 
+    private final CircuitBreaker breaker = new CircuitBreaker(
+            conf.hasPath("breaker.failures") ? conf.getInt("breaker.failures") : 5,
+            seconds("breaker.openFor", 30).millis());
+
+    /**
+     * Connects to all configured nodes, the TransportClient sends requests round robin to the connected ones
+     * and drops nodes which do not answer its pings within elasticsearch.timeout.ping.
+     * With elasticsearch.sniff the other data nodes of the cluster are discovered and used as well.
+     */
     public ElasticsearchService() {
-        try {
-            client = TransportClient.builder().build()
-                    .addTransportAddress(new InetSocketTransportAddress(InetAddress.getByName(ES_SERVER), 9300));
-        } catch (UnknownHostException e) {
-            e.printStackTrace();
+        TransportClient transportClient = TransportClient.builder()
+                .settings(Settings.settingsBuilder()
+                        .put("client.transport.sniff", ES_SNIFF)
+                        .put("client.transport.ping_timeout", ES_PING_TIMEOUT.toString()))
+                .build();
+        for (String server : ES_SERVERS) {
+            String[] hostAndPort = server.split(":");
+            try {
+                transportClient.addTransportAddress(new InetSocketTransportAddress(InetAddress.getByName(hostAndPort[0]),
+                        hostAndPort.length > 1 ? Integer.parseInt(hostAndPort[1]) : 9300));
+            } catch (UnknownHostException e) {
+                logger.error("Unknown Elasticsearch node " + server, e);
+            }
         }
+        client = transportClient;
+    }
+
+    private TimeValue seconds(String path, long defaultValue) {
+        return TimeValue.timeValueSeconds(conf.hasPath(path) ? conf.getLong(path) : defaultValue);
     }
 
     public Client getClient() {
@@ -95,82 +139,261 @@ public class ElasticsearchService implements IElasticsearchService {
         logger.info("ES client closed");
     }
 
+    /**
+     * @return false, if no node is connected or the circuit breaker rejects requests
+     */
     public boolean isClientAvailable() {
-        if (((TransportClient) client).connectedNodes().size() == 0)
+        if (breaker.isRejecting() || ((TransportClient) client).connectedNodes().size() == 0)
             return false;
         return true;
     }
 
+    /**
+     * @return Addresses of the connected nodes
+     */
+    public List<String> connectedNodes() {
+        List<String> nodes = new ArrayList<>();
+        for (DiscoveryNode node : ((TransportClient) client).connectedNodes()) {
+            nodes.add(node.getName() + " (" + node.getAddress() + ")");
+        }
+        return nodes;
+    }
+
+    public CircuitBreaker breaker() {
+        return breaker;
+    }
+
+    /**
+     * @return Timeout of index, delete and bulk requests
+     */
+    public TimeValue writeTimeout() {
+        return ES_WRITE_TIMEOUT;
+    }
+
+    /**
+     * Sends a request through the circuit breaker, which measures it and counts its failures.
+     * The request has to be bounded by a timeout itself, e.g. actionGet(writeTimeout()).
+     *
+     * @param request Request
+     * @return Response of the request
+     * @throws NoNodeAvailableException if the breaker is open
+     */
+    public <T> T call(Supplier<T> request) {
+        if (!breaker.allowRequest()) {
+            throw new NoNodeAvailableException("Circuit breaker is open after repeated Elasticsearch failures");
+        }
+        long start = System.nanoTime();
+        try {
+            T response = request.get();
+            breaker.success(System.nanoTime() - start);
+            return response;
+        } catch (RuntimeException e) {
+            breaker.failure(System.nanoTime() - start);
+            throw e;
+        }
+    }
+
     public boolean isIndexExists() {
-        return client.admin().indices().exists(new IndicesExistsRequest(ES_INDEX)).actionGet().isExists();
+        return client.admin().indices().exists(new IndicesExistsRequest(ES_INDEX)).actionGet(ES_WRITE_TIMEOUT).isExists();
+    }
+
+    /**
+     * Creates a new versioned index (e.g. htwplus_20170412153012) with the settings and mappings of conf/elasticsearch.
+     * Searches and writes use the alias elasticsearch.index, the new index is used after activateIndex().
+     *
+     * @param bulkLoad Disables refreshes and replicas until the index is activated, for loading it with a rebuild
+     * @return Name of the new index
+     */
+    public String createIndex(boolean bulkLoad) {
+        String name = ES_INDEX + "_" + new SimpleDateFormat("yyyyMMddHHmmss").format(new Date());
+        Settings.Builder settings = Settings.settingsBuilder().loadFromSource(loadFromFile(ES_SETTINGS));
+        if (bulkLoad) {
+            settings.put("refresh_interval", "-1").put("number_of_replicas", 0);
+        }
+        client.admin().indices().prepareCreate(name)
+                .setSettings(settings)
+                .addMapping(ES_TYPE_USER, loadFromFile(ES_USER_MAPPING))
+                .addMapping(ES_TYPE_POST, loadFromFile(ES_POST_MAPPING))
+                .addMapping(ES_TYPE_GROUP, loadFromFile(ES_GROUP_MAPPING))
+                .addMapping(ES_TYPE_MEDIUM, loadFromFile(ES_MEDIUM_MAPPING))
+                .execute().actionGet(ES_WRITE_TIMEOUT);
+        return name;
     }
 
-    public void deleteIndex() {
-        if (isClientAvailable()) client.admin().indices().delete(new DeleteIndexRequest(ES_INDEX)).actionGet();
+    /**
+     * Restores refreshes and replicas of an index created by createIndex(), points the alias to it in one atomic
+     * request and drops the indices the alias pointed to before.
+     * An index named like the alias (installations before versioned indices) is dropped before the alias is added.
+     *
+     * @param name Name of the new index
+     */
+    public void activateIndex(String name) {
+        Settings settings = Settings.settingsBuilder().loadFromSource(loadFromFile(ES_SETTINGS)).build();
+        client.admin().indices().prepareUpdateSettings(name)
+                .setSettings(Settings.settingsBuilder()
+                        .put("index.refresh_interval", settings.get("refresh_interval", "1s"))
+                        .put("index.number_of_replicas", settings.get("number_of_replicas", "1")))
+                .execute().actionGet(ES_WRITE_TIMEOUT);
+        client.admin().indices().prepareRefresh(name).execute().actionGet(ES_WRITE_TIMEOUT);
+
+        List<String> previous = new ArrayList<>();
+        client.admin().indices().prepareGetAliases(ES_INDEX).execute().actionGet(ES_WRITE_TIMEOUT).getAliases().keysIt()
+                .forEachRemaining(previous::add);
+        if (previous.isEmpty() && isIndexExists()) {
+            deleteIndex(ES_INDEX);
+        }
+
+        IndicesAliasesRequestBuilder swap = client.admin().indices().prepareAliases().addAlias(name, ES_INDEX);
+        for (String index : previous) {
+            swap.removeAlias(index, ES_INDEX);
+        }
+        swap.execute().actionGet(ES_WRITE_TIMEOUT);
+        searchCache.clear();
+        logger.info("Alias " + ES_INDEX + " points to " + name + " now");
+
+        for (String index : previous) {
+            try {
+                deleteIndex(index);
+            } catch (ElasticsearchException e) {
+                logger.error("Could not drop previous index " + index, e);
+            }
+        }
     }
 
-    public void createAnalyzer() {
-        if (isClientAvailable()) client.admin().indices().prepareCreate(ES_INDEX)
-                .setSettings(loadFromFile(ES_SETTINGS))
-                .execute().actionGet();
+    /**
+     * @param name Name of the index, e.g. an index of a cancelled rebuild
+     */
+    public void deleteIndex(String name) {
+        client.admin().indices().delete(new DeleteIndexRequest(name)).actionGet(ES_WRITE_TIMEOUT);
     }
 
-    public void createMapping() {
-        if (isClientAvailable()) client.admin().indices().preparePutMapping(ES_INDEX).setType(ES_TYPE_USER)
-                .setSource(loadFromFile(ES_USER_MAPPING))
-                .execute().actionGet();
+    /**
+     * @param model Post, Group, Account or Media
+     * @return Document type of the model or null, if the model is not searchable
+     */
+    public String documentType(Object model) {
+        return model == null ? null : documentType(model.getClass());
+    }
 
-        if (isClientAvailable()) client.admin().indices().preparePutMapping(ES_INDEX).setType(ES_TYPE_POST)
-                .setSource(loadFromFile(ES_POST_MAPPING))
-                .execute().actionGet();
+    /**
+     * @param modelClass Model class (or a Hibernate proxy of it)
+     * @return Document type of the model class or null, if the model is not searchable
+     */
+    public String documentType(Class<?> modelClass) {
+        if (Post.class.isAssignableFrom(modelClass)) return ES_TYPE_POST;
+        if (Group.class.isAssignableFrom(modelClass)) return ES_TYPE_GROUP;
+        if (Account.class.isAssignableFrom(modelClass)) return ES_TYPE_USER;
+        if (Media.class.isAssignableFrom(modelClass)) return ES_TYPE_MEDIUM;
+        return null;
+    }
 
-        if (isClientAvailable()) client.admin().indices().preparePutMapping(ES_INDEX).setType(ES_TYPE_GROUP)
-                .setSource(loadFromFile(ES_GROUP_MAPPING))
-                .execute().actionGet();
+    /**
+     * @param documentType Document type
+     * @return Model class of the document type or null
+     */
+    public Class<?> modelClass(String documentType) {
+        if (ES_TYPE_POST.equals(documentType)) return Post.class;
+        if (ES_TYPE_GROUP.equals(documentType)) return Group.class;
+        if (ES_TYPE_USER.equals(documentType)) return Account.class;
+        if (ES_TYPE_MEDIUM.equals(documentType)) return Media.class;
+        return null;
+    }
 
-        if (isClientAvailable()) client.admin().indices().preparePutMapping(ES_INDEX).setType(ES_TYPE_MEDIUM)
-                .setSource(loadFromFile(ES_MEDIUM_MAPPING))
-                .execute().actionGet();
+    /**
+     * Builds the index request of a model.
+     *
+     * @param model Post, Group, Account or Media
+     * @return IndexRequest
+     */
+    public IndexRequest indexRequest(Object model) throws IOException {
+        if (model instanceof Post) return postRequest((Post) model);
+        if (model instanceof Group) return groupRequest((Group) model);
+        if (model instanceof Account) return accountRequest((Account) model);
+        if (model instanceof Media) return mediumRequest((Media) model, ((Media) model).findRoot());
+        throw new IllegalArgumentException("Not searchable: " + model);
     }
 
-    public void index(Object model) throws IOException {
-        if (model instanceof Post) indexPost(((Post) model));
-        if (model instanceof Group) indexGroup(((Group) model));
-        if (model instanceof Account) indexAccount(((Account) model));
-        if (model instanceof Media) indexMedium(((Media) model));
+    /**
+     * @param documentType Document type
+     * @param id           Document id
+     * @return DeleteRequest
+     */
+    public DeleteRequest deleteRequest(String documentType, Long id) {
+        return new DeleteRequest(ES_INDEX, documentType, id.toString());
     }
 
-    private void indexPost(Post post) throws IOException {
-        if (isClientAvailable()) client.prepareIndex(ES_INDEX, ES_TYPE_POST, post.id.toString())
-                .setSource(jsonBuilder()
+    /**
+     * Builds the index request of a post. Used for single updates and by the ReindexService.
+     * Instead of the ids of every account allowed to see it, a document names the scopes it is visible in,
+     * doSearch() matches them against the relations of the searcher. Relation changes therefore never touch documents.
+     * groups: members of these groups see the post (group of the post or of the commented post)
+     * feeds: friends of these accounts see the post (feed of the post or of the commented post)
+     * viewers: these accounts see the post
+     *
+     * @param post Post or comment
+     * @return IndexRequest
+     */
+    public IndexRequest postRequest(Post post) throws IOException {
+        Set<Long> groups = new HashSet<>();
+        Set<Long> feeds = new HashSet<>();
+        Set<Long> viewers = new HashSet<>();
+
+        if (post.group != null) {
+            groups.add(post.group.id);
+        }
+        if (post.account != null) {
+            // the owner of the feed (and the author of a post on his own feed)
+            feeds.add(post.account.id);
+            viewers.add(post.account.id);
+        }
+        if (post.parent != null) {
+            if (post.parent.group != null) {
+                groups.add(post.parent.group.id);
+            }
+            if (post.parent.account != null) {
+                feeds.add(post.parent.account.id);
+                // everybody can see his own comment on a post written to its own feed
+                if (post.parent.account.equals(post.parent.owner)) {
+                    viewers.add(post.owner.id);
+                }
+            }
+        }
+
+        return new IndexRequest(ES_INDEX, ES_TYPE_POST, post.id.toString())
+                .source(jsonBuilder()
                         .startObject()
                         .field("content", post.content)
                         .field("owner", post.owner.id)
                         .field("public", postManger.isPublic(post))
-                        .field("viewable", postManger.findAllowedToViewAccountIds(post))
-                        .endObject())
-                .execute()
-                .actionGet();
+                        .field("groups", groups)
+                        .field("feeds", feeds)
+                        .field("viewers", viewers)
+                        .endObject());
     }
 
-    private void indexGroup(Group group) throws IOException {
-        if (isClientAvailable()) client.prepareIndex(ES_INDEX, ES_TYPE_GROUP, group.id.toString())
-                .setSource(jsonBuilder()
+    /**
+     * @param group Group
+     * @return IndexRequest
+     */
+    public IndexRequest groupRequest(Group group) throws IOException {
+        return new IndexRequest(ES_INDEX, ES_TYPE_GROUP, group.id.toString())
+                .source(jsonBuilder()
                         .startObject()
                         .field("title", group.title)
                         .field("grouptype", group.groupType)
                         .field("public", true)
                         .field("owner", group.owner.id)
                         .field("avatar", group.hasAvatar)
-                        .field("member", groupAccountManager.findAccountIdsByGroup(group, LinkType.establish))
-                        .endObject())
-                .execute()
-                .actionGet();
+                        .endObject());
     }
 
-    private void indexAccount(Account account) throws IOException {
-        if (isClientAvailable()) client.prepareIndex(ES_INDEX, ES_TYPE_USER, account.id.toString())
-                .setSource(jsonBuilder()
+    /**
+     * @param account Account
+     * @return IndexRequest
+     */
+    public IndexRequest accountRequest(Account account) throws IOException {
+        return new IndexRequest(ES_INDEX, ES_TYPE_USER, account.id.toString())
+                .source(jsonBuilder()
                         .startObject()
                         .field("name", account.name)
                         .field("studycourse", account.studycourse != null ? account.studycourse.title : "")
@@ -180,27 +403,44 @@ public class ElasticsearchService implements IElasticsearchService {
                         .field("initial", account.getInitials())
                         .field("avatar", account.avatar)
                         .field("public", true)
-                        .field("friends", friendshipManager.findFriendsId(account))
-                        .endObject())
-                .execute()
-                .actionGet();
+                        .endObject());
     }
 
-    private void indexMedium(Media medium) throws IOException {
-        if (isClientAvailable()) client.prepareIndex(ES_INDEX, ES_TYPE_MEDIUM, medium.id.toString())
-                .setSource(jsonBuilder()
+    /**
+     * Builds the index request of a medium, its scopes (see postRequest()) follow from the root folder:
+     * media of a group are seen by its members, media of an account by the account and its friends.
+     *
+     * @param medium     Medium
+     * @param rootFolder Root folder of the medium
+     * @return IndexRequest
+     */
+    public IndexRequest mediumRequest(Media medium, Folder rootFolder) throws IOException {
+        Set<Long> groups = new HashSet<>();
+        Set<Long> feeds = new HashSet<>();
+        Set<Long> viewers = new HashSet<>();
+
+        if (rootFolder.group != null) {
+            groups.add(rootFolder.group.id);
+        }
+        if (rootFolder.account != null) {
+            feeds.add(rootFolder.owner.id);
+            viewers.add(rootFolder.owner.id);
+        }
+
+        return new IndexRequest(ES_INDEX, ES_TYPE_MEDIUM, medium.id.toString())
+                .source(jsonBuilder()
                         .startObject()
                         .field("owner", medium.owner.id)
                         .field("filename", medium.fileName)
-                        .field("viewable", mediaManager.findAllowedToViewAccountIds(medium))
-                        .field("public", mediaManager.isPublic(medium))
+                        .field("public", rootFolder.group != null && rootFolder.group.groupType.equals(GroupType.open))
+                        .field("groups", groups)
+                        .field("feeds", feeds)
+                        .field("viewers", viewers)
                         .field("ownerName", medium.owner.name)
                         .field("folderName", medium.folder.name)
                         .field("createdAt", medium.createdAt)
                         .field("mimeType", medium.fileName.lastIndexOf(".") > 0 ? medium.fileName.substring(medium.fileName.lastIndexOf(".")) : "unbekannt")
-                        .endObject())
-                .execute()
-                .actionGet();
+                        .endObject());
     }
 
     /**
@@ -210,16 +450,44 @@ public class ElasticsearchService implements IElasticsearchService {
      * @param query            - Terms to search for (e.g. 'informatik')
      * @param filter           - Filter for searchfacets (e.g. user, group, comment)
      * @param page             - Which results should be shown (e.g. 1: 1-10 ; 2: 11-20 etc.)
-     * @param currentAccountId - AccountId from user who is logged in (for scoring)
+     * @param currentAccountId - AccountId from user who is logged in (for authorization and scoring)
+     * @param groupIds         - Ids of the groups the user is member of (for authorization and scoring)
+     * @param friendIds        - Ids of the friends of the user (for authorization and scoring)
      * @param mustFields       - All fields to search on
-     * @param scoringFields    - All fields which affect the scoring
-     * @return - JSON response from Elasticsearch
+     * @return - Hits of the page and facet counts of the whole search
      * @throws ExecutionException
      * @throws InterruptedException
      */
 
     @Override
-    public SearchResponse doSearch(String caller, String query, String filter, HashMap<String, String[]> facets, int page, String currentAccountId, List<String> mustFields, List<String> scoringFields) throws ExecutionException, InterruptedException {
+    public SearchPage doSearch(String caller, String query, String filter, HashMap<String, String[]> facets, int page, String currentAccountId, long[] groupIds, long[] friendIds, List<String> mustFields) throws ExecutionException, InterruptedException {
+        // the facet counts are the same on every page, only the first page of a search (or of changed facets) computes them
+        String facetKey = searchCache.key(caller, query, filter, facets, 0, currentAccountId, groupIds, friendIds);
+        long generation = searchCache.generation(filter);
+        Aggregations aggregations = searchCache.facets(facetKey, generation);
+        boolean aggregate = aggregations == null;
+
+        String key = searchCache.key(caller, query, filter, facets, page, currentAccountId, groupIds, friendIds);
+        SearchRequestBuilder searchRequest = pageRequest(caller, prepareSearch(query, filter, facets, currentAccountId, groupIds, friendIds, mustFields), filter, page, mustFields, aggregate);
+        SearchResponse response = searchCache.get(key, filter, () ->
+                call(() -> searchRequest.execute().actionGet(ES_SEARCH_TIMEOUT)));
+
+        if (aggregations == null) {
+            aggregations = response.getAggregations();
+            if (aggregations == null) {
+                // the page was cached without facets and they expired meanwhile
+                SearchRequestBuilder facetRequest = prepareSearch(query, filter, facets, currentAccountId, groupIds, friendIds, mustFields).setSize(0);
+                aggregations = call(() -> addAggregations(facetRequest, filter).execute().actionGet(ES_SEARCH_TIMEOUT)).getAggregations();
+            }
+            searchCache.putFacets(facetKey, generation, aggregations);
+        }
+        return new SearchPage(response, aggregations);
+    }
+
+    /**
+     * Builds the search request with the search query and the visibility and facet filters.
+     */
+    private SearchRequestBuilder prepareSearch(String query, String filter, HashMap<String, String[]> facets, String currentAccountId, long[] groupIds, long[] friendIds, List<String> mustFields) {
 
         QueryBuilder searchQuery;
 
@@ -231,14 +499,24 @@ public class ElasticsearchService implements IElasticsearchService {
             searchQuery = QueryBuilders.multiMatchQuery(query, mustFields.toArray(new String[mustFields.size()]));
         }
 
-        // Build scoringQuery by provided fields (shouldFields) to increase the scoring of a better matching hit
-        QueryBuilder scoringQuery = QueryBuilders.multiMatchQuery(currentAccountId, scoringFields.toArray(new String[scoringFields.size()]));
+        // Build scoringQuery to increase the scoring of own documents, friends, groups and their content
+        BoolQueryBuilder scoringQuery = QueryBuilders.boolQuery()
+                .should(QueryBuilders.termQuery("owner", currentAccountId))
+                .should(QueryBuilders.idsQuery(ES_TYPE_USER).addIds(toStrings(friendIds)))
+                .should(QueryBuilders.idsQuery(ES_TYPE_GROUP).addIds(toStrings(groupIds)))
+                .should(QueryBuilders.termsQuery("groups", groupIds))
+                .should(QueryBuilders.termsQuery("feeds", friendIds));
 
         // Build boolQuery to enable filter possibilities
         BoolQueryBuilder boolQuery = QueryBuilders.boolQuery();
 
-        // Add should filter to show authorized posts only
-        boolQuery.should(QueryBuilders.termQuery("viewable", currentAccountId)).should(QueryBuilders.termQuery("public", true));
+        // Add filter to show authorized documents only: public ones, those of the own groups and friends
+        // and those the user may see personally. The relations of the user are resolved here and not stored in the documents.
+        boolQuery.must(QueryBuilders.boolQuery()
+                .should(QueryBuilders.termQuery("public", true))
+                .should(QueryBuilders.termQuery("viewers", currentAccountId))
+                .should(QueryBuilders.termsQuery("groups", groupIds))
+                .should(QueryBuilders.termsQuery("feeds", friendIds)));
 
         // Add mode-filter to filter only for users/group or posts
         if (!filter.equals("all")) {
@@ -307,10 +585,18 @@ public class ElasticsearchService implements IElasticsearchService {
         // Build completeQuery with search- and scoringQuery
         QueryBuilder completeQuery = QueryBuilders.boolQuery().must(searchQuery).should(scoringQuery).filter(boolQuery);
 
-        // Build searchRequest which will be executed after fields to highlight are added.
-        SearchRequestBuilder searchRequest = client.prepareSearch(ES_INDEX)
-                .setQuery(completeQuery);
+        // Build searchRequest, paging and aggregations are added by the caller
+        return client.prepareSearch(ES_INDEX)
+                .setQuery(completeQuery)
+                .setTimeout(ES_SEARCH_TIMEOUT);
+    }
 
+    /**
+     * Adds highlighting, paging and, if requested, the facet aggregations to a search request.
+     * Hits of equal score are ordered by their uid, so a document never appears on two pages.
+     * Elasticsearch 2.4 has no search_after, pages are addressed by offset and limited to index.max_result_window hits.
+     */
+    private SearchRequestBuilder pageRequest(String caller, SearchRequestBuilder searchRequest, String filter, int page, List<String> mustFields, boolean aggregate) {
         // Add highlighting on all fields to search on
         for (String field : mustFields) {
             searchRequest.addHighlightedField(field);
@@ -319,9 +605,27 @@ public class ElasticsearchService implements IElasticsearchService {
         // Define html tags for highlighting
         searchRequest = searchRequest.setHighlighterPreTags("[startStrong]").setHighlighterPostTags("[endStrong]").setHighlighterNumOfFragments(0);
 
-        // Enable pagination
-        searchRequest = searchRequest.setFrom((page * ES_RESULT_SIZE) - ES_RESULT_SIZE);
+        // The search page renders hydrated entities (SearchResultAssembler), only the suggestions need the documents
+        if (caller.equals("search")) {
+            searchRequest = searchRequest.setFetchSource(false);
+        }
+
+        // Enable pagination with a stable order, pages behind the result window are empty
+        int from = (int) Math.min((Math.max(page, 1) - 1L) * ES_RESULT_SIZE, ES_MAX_RESULT_WINDOW);
+        searchRequest = searchRequest.setFrom(from).setSize(Math.min(ES_RESULT_SIZE, ES_MAX_RESULT_WINDOW - from))
+                .addSort(SortBuilders.scoreSort())
+                .addSort(SortBuilders.fieldSort("_uid").order(SortOrder.ASC));
+
+        if (aggregate) {
+            searchRequest = addAggregations(searchRequest, filter);
+        }
+
+        //logger.info(searchRequest.toString());
+
+        return searchRequest;
+    }
 
+    private SearchRequestBuilder addAggregations(SearchRequestBuilder searchRequest, String filter) {
         // Add term aggregation for facet count
         searchRequest = searchRequest.addAggregation(AggregationBuilders.terms("types").field("_type"));
 
@@ -346,45 +650,15 @@ public class ElasticsearchService implements IElasticsearchService {
             searchRequest = searchRequest.addAggregation(AggregationBuilders.dateHistogram("createdAt").field("createdAt").interval(DateHistogramInterval.YEAR).format("yyyy"));
         }
 
-        // Apply PostFilter if request mode is not 'all'
-        /**final BoolFilterBuilder boolFilterBuilder2 = boolFilter();
-
-         if(boolFilterBuilder2.hasClauses()) {
-         searchRequest.setPostFilter(boolFilterBuilder2);
-         }*/
-
-        //logger.info(searchRequest.toString());
-
-        // Execute searchRequest
-        SearchResponse response = searchRequest.execute().get();
-
-        //logger.info(response.toString());
-
-        return response;
+        return searchRequest;
     }
 
-    public void delete(Object model) {
-        if (model instanceof Post) deletePost(((Post) model));
-        if (model instanceof Group) deleteGroup(((Group) model));
-        if (model instanceof Account) deleteAccount(((Account) model));
-    }
-
-    private void deleteGroup(Group group) {
-        if (isClientAvailable()) client.prepareDelete(ES_INDEX, ES_TYPE_GROUP, group.id.toString())
-                .execute()
-                .actionGet();
-    }
-
-    private void deletePost(Post post) {
-        if (isClientAvailable()) client.prepareDelete(ES_INDEX, ES_TYPE_POST, post.id.toString())
-                .execute()
-                .actionGet();
-    }
-
-    private void deleteAccount(Account account) {
-        if (isClientAvailable()) client.prepareDelete(ES_INDEX, ES_TYPE_USER, account.id.toString())
-                .execute()
-                .actionGet();
+    private static String[] toStrings(long[] ids) {
+        String[] strings = new String[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            strings[i] = String.valueOf(ids[i]);
+        }
+        return strings;
     }
 
     private String loadFromFile(String filePath) {
@@ -0,0 +1,150 @@
+package models.services;
+
+import play.Configuration;
+import play.twirl.api.Html;
+import scala.Function0;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps rendered post and comment HTML, so stream pages do not render the same snippets for every viewer.
+ * Keys contain the post version and a viewer capability signature, see StreamPage.PostEntry.fragmentKey().
+ * The cache is bounded to htwplus.fragmentCache.size entries (least recently used are evicted first).
+ * Entries expire after htwplus.fragmentCache.ttl seconds, because the fragments contain colloquial dates ("vor 5 Minuten").
+ */
+@Singleton
+public class FragmentCache {
+
+    private final int maxEntries;
+    private final long ttl;
+
+    // guarded by this
+    private final LinkedHashMap<String, Fragment> fragments;
+    private final Map<Long, Set<String>> keysByPost = new HashMap<>();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+
+    @Inject
+    public FragmentCache(Configuration configuration) {
+        this.maxEntries = configuration.getInt("htwplus.fragmentCache.size", 5000);
+        this.ttl = TimeUnit.SECONDS.toMillis(configuration.getLong("htwplus.fragmentCache.ttl", 60L));
+        this.fragments = new LinkedHashMap<String, Fragment>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Fragment> eldest) {
+                if (size() <= maxEntries) {
+                    return false;
+                }
+                unregister(eldest.getValue().postId, eldest.getKey());
+                evictions.increment();
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Returns the cached fragment or renders and caches it. Called from templates.
+     *
+     * @param key      Fragment key (post version and viewer capabilities)
+     * @param postId   Post ID, the fragment is dropped when this post changes
+     * @param renderer Renders the fragment on a miss
+     * @return Rendered HTML
+     */
+    public Html render(String key, Long postId, Function0<Html> renderer) {
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            Fragment fragment = fragments.get(key);
+            if (fragment != null && now - fragment.renderedAt < ttl) {
+                hits.increment();
+                return fragment.html;
+            }
+        }
+
+        // render outside the lock, concurrent misses on the same key just render twice
+        misses.increment();
+        Html html = renderer.apply();
+
+        synchronized (this) {
+            fragments.put(key, new Fragment(html, postId, now));
+            keysByPost.computeIfAbsent(postId, id -> new HashSet<>()).add(key);
+        }
+        return html;
+    }
+
+    /**
+     * Drops all fragments of a post, e.g. after it was edited or deleted.
+     */
+    public synchronized void invalidatePost(Long postId) {
+        Set<String> keys = keysByPost.remove(postId);
+        if (keys != null) {
+            fragments.keySet().removeAll(keys);
+            invalidations.add(keys.size());
+        }
+    }
+
+    public synchronized void clear() {
+        fragments.clear();
+        keysByPost.clear();
+    }
+
+    public synchronized int size() {
+        return fragments.size();
+    }
+
+    public int maxSize() {
+        return maxEntries;
+    }
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    public long misses() {
+        return misses.sum();
+    }
+
+    public long evictions() {
+        return evictions.sum();
+    }
+
+    public long invalidations() {
+        return invalidations.sum();
+    }
+
+    /**
+     * @return Share of lookups answered from the cache (0..1)
+     */
+    public double hitRate() {
+        long hits = hits();
+        long total = hits + misses();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    private void unregister(Long postId, String key) {
+        Set<String> keys = keysByPost.get(postId);
+        if (keys != null) {
+            keys.remove(key);
+            if (keys.isEmpty()) {
+                keysByPost.remove(postId);
+            }
+        }
+    }
+
+    private static class Fragment {
+        final Html html;
+        final Long postId;
+        final long renderedAt;
+
+        Fragment(Html html, Long postId, long renderedAt) {
+            this.html = html;
+            this.postId = postId;
+            this.renderedAt = renderedAt;
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package models.services;
+
+import play.Configuration;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Keeps the post ids of the first htwplus.groupStream.cachedPages pages of each group stream,
+ * which every member of a group sees alike. Dropped on every write to the group (post, comment, edit, delete),
+ * entries also expire after htwplus.groupStream.ttl seconds to bound staleness of writes which rolled back or raced a load.
+ * Per viewer parts of a page are not cached here, they are assembled by the StreamPageAssembler.
+ */
+@Singleton
+public class GroupStreamCache {
+
+    private final Map<Long, CachedIds> groups = new ConcurrentHashMap<>();
+    private final Map<Long, Long> versions = new ConcurrentHashMap<>();
+    private final int window;
+    private final long ttl;
+
+    @Inject
+    public GroupStreamCache(Configuration configuration) {
+        this.window = configuration.getInt("htwplus.groupStream.cachedPages", 3) * configuration.getInt("htwplus.post.limit");
+        this.ttl = TimeUnit.SECONDS.toMillis(configuration.getLong("htwplus.groupStream.ttl", 60L));
+    }
+
+    /**
+     * @return Number of post ids loaded per group
+     */
+    public int window() {
+        return window;
+    }
+
+    /**
+     * Returns the ids of a group stream page, if it lies within the cached window.
+     *
+     * @param groupId Group ID
+     * @param offset  Offset of the page
+     * @param limit   Page size
+     * @param loader  Loads the ids of the first window() posts, ordered like the stream
+     * @return Post ids of the page or null, if the page is not cached
+     */
+    public List<Long> page(Long groupId, int offset, int limit, Supplier<List<Long>> loader) {
+        if (offset < 0 || limit <= 0 || offset + limit > window) {
+            return null;
+        }
+
+        long now = System.currentTimeMillis();
+        CachedIds cached = groups.get(groupId);
+        if (cached == null || now - cached.loadedAt >= ttl) {
+            Long version = versions.get(groupId);
+            cached = new CachedIds(Collections.unmodifiableList(loader.get()), now);
+            // an invalidation during the load wins, the next request loads again
+            if (Objects.equals(version, versions.get(groupId))) {
+                groups.put(groupId, cached);
+            }
+        }
+
+        List<Long> ids = cached.ids;
+        if (offset >= ids.size()) {
+            return Collections.emptyList();
+        }
+        return ids.subList(offset, Math.min(offset + limit, ids.size()));
+    }
+
+    /**
+     * Drops the cached ids of a group, e.g. after a new post or comment.
+     */
+    public void invalidate(Long groupId) {
+        versions.merge(groupId, 1L, Long::sum);
+        groups.remove(groupId);
+    }
+
+    private static class CachedIds {
+        final List<Long> ids;
+        final long loadedAt;
+
+        CachedIds(List<Long> ids, long loadedAt) {
+            this.ids = ids;
+            this.loadedAt = loadedAt;
+        }
+    }
+}
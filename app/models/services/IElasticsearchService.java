@@ -4,10 +4,8 @@ import com.google.inject.ImplementedBy;
 import models.Account;
 import models.Group;
 import models.Post;
-import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.client.Client;
 
-import java.io.IOException;
 import java.util.HashMap;
 import java.util.List;
 import java.util.concurrent.ExecutionException;
@@ -22,15 +20,11 @@ public interface IElasticsearchService {
 
     void closeClient();
 
-    void deleteIndex();
+    String createIndex(boolean bulkLoad);
 
-    void createAnalyzer() throws IOException;
+    void activateIndex(String name);
 
-    void createMapping() throws IOException;
-
-    void index(Object object) throws IOException;
-
-    void delete(Object model);
+    void deleteIndex(String name);
 
     /**
      * Build search query based on all provided fields
@@ -39,12 +33,13 @@ public interface IElasticsearchService {
      * @param query            - Terms to search for (e.g. 'informatik')
      * @param filter           - Filter for searchfacets (e.g. user, group, comment)
      * @param page             - Which results should be shown (e.g. 1: 1-10 ; 2: 11-20 etc.)
-     * @param currentAccountId - AccountId from user who is logged in (for scoring)
+     * @param currentAccountId - AccountId from user who is logged in (for authorization and scoring)
+     * @param groupIds         - Ids of the groups the user is member of (for authorization and scoring)
+     * @param friendIds        - Ids of the friends of the user (for authorization and scoring)
      * @param mustFields       - All fields to search on
-     * @param scoringFields    - All fields which affect the scoring
-     * @return - JSON response from Elasticsearch
+     * @return - Hits of the page and facet counts of the whole search
      * @throws ExecutionException
      * @throws InterruptedException
      */
-    SearchResponse doSearch(String caller, String query, String filter, HashMap<String, String[]> facets, int page, String currentAccountId, List<String> mustFields, List<String> scoringFields) throws ExecutionException, InterruptedException;
+    SearchPage doSearch(String caller, String query, String filter, HashMap<String, String[]> facets, int page, String currentAccountId, long[] groupIds, long[] friendIds, List<String> mustFields) throws ExecutionException, InterruptedException;
 }
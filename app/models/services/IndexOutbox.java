@@ -0,0 +1,375 @@
+package models.services;
+
+import models.base.BaseModel;
+import models.enums.IndexOperation;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import play.Configuration;
+import play.Logger;
+import play.db.jpa.JPAApi;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import javax.persistence.EntityManager;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Decouples the search index from user facing writes. Managers record index changes in the index_outbox table
+ * within their own transaction, the ScheduleService calls drain() which sends due entries to Elasticsearch in bulk requests.
+ * Failed entries are retried with exponential backoff and kept as dead letters after elasticsearch.outbox.maxAttempts attempts.
+ * Entries are claimed with SKIP LOCKED, so several application instances may drain the same outbox.
+ * Changes are debounced: a new entry becomes due after elasticsearch.outbox.debounce seconds and further changes
+ * of the same document are folded into it until then (at most elasticsearch.outbox.maxDelay seconds),
+ * so bursts like an account deletion or a course import end in one index request per document.
+ */
+@Singleton
+public class IndexOutbox {
+
+    private static final Logger.ALogger LOG = Logger.of(IndexOutbox.class);
+
+    private static final String CLAIM =
+            "SELECT id, document_type, document_id, operation, attempts FROM index_outbox" +
+            " WHERE dead = false AND next_attempt_at <= now() ORDER BY id LIMIT :limit FOR UPDATE SKIP LOCKED";
+
+    private static final String FAILED =
+            "UPDATE index_outbox SET attempts = attempts + 1, last_error = :error, dead = attempts + 1 >= :maxAttempts," +
+            " next_attempt_at = now() + LEAST(:backoff * power(2, attempts), :maxBackoff) * interval '1 second'" +
+            " WHERE id IN (:ids)";
+
+    // folds a change into the waiting entry of the same document, entries claimed by a running dispatch are skipped
+    private static final String ENQUEUE =
+            "WITH waiting AS (SELECT id FROM index_outbox WHERE document_type = :documentType AND document_id = :documentId" +
+            "   AND attempts = 0 AND dead = false FOR UPDATE SKIP LOCKED)," +
+            " coalesced AS (UPDATE index_outbox o SET operation = :operation," +
+            "   next_attempt_at = LEAST(now() + :debounce * interval '1 second', o.created_at + :maxDelay * interval '1 second')" +
+            "   FROM waiting w WHERE o.id = w.id RETURNING o.id)" +
+            " INSERT INTO index_outbox (document_type, document_id, operation, created_at, next_attempt_at, attempts, dead)" +
+            " SELECT :documentType, :documentId, :operation, now(), now() + :debounce * interval '1 second', 0, false" +
+            " WHERE NOT EXISTS (SELECT 1 FROM coalesced)";
+
+    private static final String BACKLOG =
+            "SELECT COUNT(*) FILTER (WHERE NOT dead), COUNT(*) FILTER (WHERE dead)," +
+            " EXTRACT(EPOCH FROM now() - MIN(created_at) FILTER (WHERE NOT dead)) FROM index_outbox";
+
+    private final JPAApi jpaApi;
+    private final ElasticsearchService elasticsearchService;
+    private final SearchCache searchCache;
+    private final SuggestionIndex suggestionIndex;
+    private final long interval;
+    private final int batchSize;
+    private final int maxAttempts;
+    private final long backoff;
+    private final long maxBackoff;
+    private final long debounce;
+    private final long maxDelay;
+
+    private final AtomicBoolean draining = new AtomicBoolean();
+    // documents sent while a rebuild loads a new index (type:id -> last operation), null if no rebuild runs
+    private volatile Map<String, IndexOperation> sentDuringRebuild;
+    private final LongAdder requested = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder dispatched = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder deadLettered = new LongAdder();
+
+    @Inject
+    public IndexOutbox(JPAApi jpaApi, ElasticsearchService elasticsearchService, SearchCache searchCache,
+                       SuggestionIndex suggestionIndex, Configuration configuration) {
+        this.jpaApi = jpaApi;
+        this.elasticsearchService = elasticsearchService;
+        this.searchCache = searchCache;
+        this.suggestionIndex = suggestionIndex;
+        this.interval = TimeUnit.SECONDS.toMillis(configuration.getLong("elasticsearch.outbox.interval", 2L));
+        this.batchSize = configuration.getInt("elasticsearch.outbox.batchSize", 200);
+        this.maxAttempts = configuration.getInt("elasticsearch.outbox.maxAttempts", 10);
+        this.backoff = configuration.getLong("elasticsearch.outbox.backoff", 5L);
+        this.maxBackoff = configuration.getLong("elasticsearch.outbox.maxBackoff", 3600L);
+        this.debounce = configuration.getLong("elasticsearch.outbox.debounce", 2L);
+        this.maxDelay = configuration.getLong("elasticsearch.outbox.maxDelay", 30L);
+    }
+
+    /**
+     * @return Milliseconds between two drain() calls
+     */
+    public long interval() {
+        return interval;
+    }
+
+    /**
+     * Records that a model has to be (re)indexed. Must be called within the transaction of the change.
+     *
+     * @param model Post, Group, Account or Media
+     */
+    public void index(Object model) {
+        add(model, IndexOperation.index);
+    }
+
+    /**
+     * Records that the document of a model has to be deleted. Must be called within the transaction of the change.
+     *
+     * @param model Post, Group, Account or Media
+     */
+    public void delete(Object model) {
+        add(model, IndexOperation.delete);
+    }
+
+    private void add(Object model, IndexOperation operation) {
+        String documentType = elasticsearchService.documentType(model);
+        if (documentType == null) {
+            return;
+        }
+        enqueue(documentType, ((BaseModel) model).id, operation);
+    }
+
+    private void enqueue(String documentType, Long documentId, IndexOperation operation) {
+        int inserted = jpaApi.em().createNativeQuery(ENQUEUE)
+                .setParameter("documentType", documentType)
+                .setParameter("documentId", documentId)
+                .setParameter("operation", operation.name())
+                .setParameter("debounce", debounce)
+                .setParameter("maxDelay", maxDelay)
+                .executeUpdate();
+        requested.increment();
+        if (inserted == 0) {
+            coalesced.increment();
+        }
+    }
+
+    /**
+     * Starts recording the documents this instance sends. A rebuild calls it before loading a new index,
+     * changes sent meanwhile only reach the old index.
+     */
+    public void recordSent() {
+        sentDuringRebuild = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Stops recording and queues the recorded documents again, after a rebuild pointed the alias to the new index.
+     * Waits for a running drain(), so no document sent to the old index is missed.
+     */
+    public void resendRecorded() throws InterruptedException {
+        while (!draining.compareAndSet(false, true)) {
+            Thread.sleep(100);
+        }
+        try {
+            Map<String, IndexOperation> recorded = sentDuringRebuild;
+            sentDuringRebuild = null;
+            if (recorded == null || recorded.isEmpty()) {
+                return;
+            }
+            jpaApi.withTransaction(() -> {
+                for (Map.Entry<String, IndexOperation> document : recorded.entrySet()) {
+                    String[] key = document.getKey().split(":");
+                    enqueue(key[0], Long.parseLong(key[1]), document.getValue());
+                }
+            });
+            LOG.info("Queued " + recorded.size() + " documents changed during the rebuild again");
+        } finally {
+            draining.set(false);
+        }
+    }
+
+    /**
+     * Stops recording without queueing anything, e.g. after a cancelled rebuild.
+     */
+    public void discardRecorded() {
+        sentDuringRebuild = null;
+    }
+
+    /**
+     * Sends due entries in batches of elasticsearch.outbox.batchSize, until the outbox is empty or a batch failed.
+     * Concurrent calls return immediately.
+     */
+    public void drain() {
+        if (!draining.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            if (!elasticsearchService.isClientAvailable()) {
+                return;
+            }
+            int sent;
+            do {
+                sent = jpaApi.withTransaction(this::dispatchBatch);
+            } while (sent == batchSize);
+        } catch (RuntimeException e) {
+            LOG.error("Could not drain index outbox", e);
+        } finally {
+            draining.set(false);
+        }
+    }
+
+    /**
+     * Sends one batch of due entries. Several entries of the same document are sent once,
+     * the newest entry decides whether it is indexed or deleted.
+     *
+     * @return Number of claimed entries, 0 if any of them failed
+     */
+    @SuppressWarnings("unchecked")
+    private int dispatchBatch() {
+        EntityManager em = jpaApi.em();
+        List<Object[]> rows = em.createNativeQuery(CLAIM).setParameter("limit", batchSize).getResultList();
+        if (rows.isEmpty()) {
+            return 0;
+        }
+
+        Map<String, List<Long>> entryIds = new HashMap<>();
+        Map<String, Object[]> newest = new LinkedHashMap<>();
+        for (Object[] row : rows) {
+            String key = row[1] + ":" + row[2];
+            entryIds.computeIfAbsent(key, k -> new ArrayList<>()).add(((Number) row[0]).longValue());
+            newest.put(key, row);
+        }
+        // entries of the same document written by concurrent transactions
+        coalesced.add(rows.size() - newest.size());
+
+        BulkRequest bulk = new BulkRequest().refresh(true);
+        List<String> sentKeys = new ArrayList<>();
+        // indexed models in the order of sentKeys, null for deletes
+        List<Object> sentModels = new ArrayList<>();
+        List<Long> done = new ArrayList<>();
+        Map<String, String> errors = new HashMap<>();
+        for (Map.Entry<String, Object[]> entry : newest.entrySet()) {
+            String documentType = (String) entry.getValue()[1];
+            Long documentId = ((Number) entry.getValue()[2]).longValue();
+            try {
+                Object model = null;
+                if (IndexOperation.delete.name().equals(entry.getValue()[3])) {
+                    bulk.add(elasticsearchService.deleteRequest(documentType, documentId));
+                } else {
+                    Class<?> modelClass = elasticsearchService.modelClass(documentType);
+                    if (modelClass == null) {
+                        throw new IllegalArgumentException("Unknown document type " + documentType);
+                    }
+                    model = em.find(modelClass, documentId);
+                    if (model == null) {
+                        // removed in the meantime, its delete entry follows
+                        done.addAll(entryIds.get(entry.getKey()));
+                        continue;
+                    }
+                    bulk.add(elasticsearchService.indexRequest(model));
+                }
+                sentKeys.add(entry.getKey());
+                sentModels.add(model);
+            } catch (Exception e) {
+                errors.put(entry.getKey(), e.toString());
+            }
+        }
+
+        if (bulk.numberOfActions() > 0) {
+            try {
+                BulkResponse response = elasticsearchService.call(() ->
+                        elasticsearchService.getClient().bulk(bulk).actionGet(elasticsearchService.writeTimeout()));
+                BulkItemResponse[] items = response.getItems();
+                Map<String, IndexOperation> recorded = sentDuringRebuild;
+                Set<String> types = new HashSet<>();
+                for (int i = 0; i < items.length; i++) {
+                    if (items[i].isFailed()) {
+                        errors.put(sentKeys.get(i), items[i].getFailureMessage());
+                    } else {
+                        done.addAll(entryIds.get(sentKeys.get(i)));
+                        types.add(items[i].getType());
+                        if (sentModels.get(i) != null) {
+                            suggestionIndex.index(sentModels.get(i));
+                        } else {
+                            suggestionIndex.remove(items[i].getType(), Long.parseLong(items[i].getId()));
+                        }
+                        if (recorded != null) {
+                            recorded.put(sentKeys.get(i), sentModels.get(i) != null ? IndexOperation.index : IndexOperation.delete);
+                        }
+                    }
+                }
+                // the bulk was sent with refresh, so the changes are searchable now and cached responses of these types are outdated
+                types.forEach(searchCache::invalidate);
+            } catch (ElasticsearchException e) {
+                for (String key : sentKeys) {
+                    errors.put(key, e.toString());
+                }
+            }
+        }
+
+        if (!done.isEmpty()) {
+            em.createNativeQuery("DELETE FROM index_outbox WHERE id IN (:ids)").setParameter("ids", done).executeUpdate();
+            dispatched.add(done.size());
+        }
+        for (Map.Entry<String, String> error : errors.entrySet()) {
+            List<Long> ids = entryIds.get(error.getKey());
+            em.createNativeQuery(FAILED)
+                    .setParameter("error", error.getValue())
+                    .setParameter("maxAttempts", maxAttempts)
+                    .setParameter("backoff", backoff)
+                    .setParameter("maxBackoff", maxBackoff)
+                    .setParameter("ids", ids)
+                    .executeUpdate();
+            failures.add(ids.size());
+
+            int attempts = ((Number) newest.get(error.getKey())[4]).intValue() + 1;
+            if (attempts >= maxAttempts) {
+                deadLettered.add(ids.size());
+                LOG.error("Gave up indexing " + error.getKey() + " after " + attempts + " attempts: " + error.getValue());
+            } else {
+                LOG.warn("Could not index " + error.getKey() + " (attempt " + attempts + "): " + error.getValue());
+            }
+        }
+
+        return errors.isEmpty() ? rows.size() : 0;
+    }
+
+    /**
+     * Current size and age of the outbox. Must be called within a transaction.
+     *
+     * @return Backlog
+     */
+    public Backlog backlog() {
+        Object[] row = (Object[]) jpaApi.em().createNativeQuery(BACKLOG).getSingleResult();
+        return new Backlog(((Number) row[0]).longValue(), ((Number) row[1]).longValue(),
+                row[2] == null ? 0 : ((Number) row[2]).longValue());
+    }
+
+    public long dispatched() {
+        return dispatched.sum();
+    }
+
+    public long failures() {
+        return failures.sum();
+    }
+
+    public long deadLettered() {
+        return deadLettered.sum();
+    }
+
+    public long requested() {
+        return requested.sum();
+    }
+
+    public long coalesced() {
+        return coalesced.sum();
+    }
+
+    /**
+     * @return Share of the requested changes which were folded into another one instead of being sent separately
+     */
+    public double coalescingRatio() {
+        long total = requested.sum();
+        return total == 0 ? 0 : Math.min(1.0, (double) coalesced.sum() / total);
+    }
+
+    public static class Backlog {
+        public final long pending;
+        public final long dead;
+        // age of the oldest pending entry, the time a change needs to become searchable
+        public final long lagSeconds;
+
+        Backlog(long pending, long dead, long lagSeconds) {
+            this.pending = pending;
+            this.dead = dead;
+            this.lagSeconds = lagSeconds;
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package models.services;
+
+import models.Notification;
+import play.Configuration;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Keeps the unread counter and the newest unread notifications of every account for the notification menu,
+ * which is part of every page. Entries are loaded from the database on first use and then kept up to date by
+ * the NotificationService (new notifications) and the NotificationManager (read and deleted notifications).
+ * Both apply their changes after commit. If an update can not be applied exactly, the entry is dropped and
+ * loaded again. Every entry also expires after htwplus.notification.menuTtl seconds, which bounds the effect
+ * of races with a concurrent load. At most htwplus.notification.menuSize accounts are kept, the least recently
+ * used are evicted first. Only detached copies of the notifications are cached, never managed entities.
+ */
+@Singleton
+public class NotificationMenuCache {
+
+    /**
+     * Number of unread notifications shown in the menu
+     */
+    public static final int SIZE = 10;
+
+    private final int maxEntries;
+    private final long ttl;
+
+    // guarded by this
+    private final LinkedHashMap<Long, Menu> menus;
+
+    @Inject
+    public NotificationMenuCache(Configuration configuration) {
+        this.maxEntries = configuration.getInt("htwplus.notification.menuSize", 5000);
+        this.ttl = TimeUnit.SECONDS.toMillis(configuration.getLong("htwplus.notification.menuTtl", 300L));
+        this.menus = new LinkedHashMap<Long, Menu>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Menu> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * @param accountId Account ID
+     * @param loader    Loads the menu from the database, if nothing (fresh) is cached
+     * @return Unread counter and newest unread notifications
+     */
+    public Menu get(Long accountId, Supplier<Menu> loader) {
+        long now = System.currentTimeMillis();
+        Menu menu;
+        synchronized (this) {
+            menu = menus.get(accountId);
+        }
+        if (menu != null && now - menu.loadedAt < ttl) {
+            return menu;
+        }
+
+        // the loader runs outside of the lock and returns managed entities, keep copies of them
+        Menu loaded = loader.get();
+        List<Notification> newest = new ArrayList<>(loaded.newest.size());
+        for (Notification notification : loaded.newest) {
+            newest.add(copy(notification));
+        }
+        menu = new Menu(loaded.unread, newest, loaded.loadedAt);
+        synchronized (this) {
+            menus.put(accountId, menu);
+        }
+        return menu;
+    }
+
+    /**
+     * Adds a new or updated (and therefore unread again) notification to the menu of its recipient.
+     *
+     * @param recipientId    Recipient ID
+     * @param notificationId ID of the written notification
+     * @param notification   Notification holding the rendered content and target URL
+     * @param created        True, if the notification is new, false if it might have existed before
+     */
+    public synchronized void notified(Long recipientId, Long notificationId, Notification notification, boolean created) {
+        menus.computeIfPresent(recipientId, (id, menu) -> {
+            boolean listed = menu.contains(notificationId);
+            // an unlisted existing notification is either read or unread beyond the list, unknown if not all are listed
+            if (!created && !listed && menu.unread > menu.newest.size()) {
+                return null;
+            }
+
+            Notification written = copy(notification);
+            written.id = notificationId;
+            written.isRead = false;
+            written.isSent = false;
+
+            List<Notification> newest = new ArrayList<>(SIZE);
+            newest.add(written);
+            for (Notification other : menu.newest) {
+                if (!other.id.equals(notificationId) && newest.size() < SIZE) {
+                    newest.add(other);
+                }
+            }
+            return new Menu(listed ? menu.unread : menu.unread + 1, newest, menu.loadedAt);
+        });
+    }
+
+    /**
+     * Removes a notification, which was just read, from the menu of its recipient.
+     *
+     * @param recipientId    Recipient ID
+     * @param notificationId Notification ID
+     */
+    public synchronized void read(Long recipientId, Long notificationId) {
+        menus.computeIfPresent(recipientId, (id, menu) -> {
+            List<Notification> newest = new ArrayList<>(menu.newest);
+            newest.removeIf(notification -> notification.id.equals(notificationId));
+            int unread = Math.max(0, menu.unread - 1);
+            // the next unread notification would move up into the list, it is not known here
+            if (newest.size() < menu.newest.size() && unread > newest.size()) {
+                return null;
+            }
+            return new Menu(unread, newest, menu.loadedAt);
+        });
+    }
+
+    /**
+     * Empties the menu of an account after all its notifications were marked as read.
+     */
+    public synchronized void readAll(Long accountId) {
+        menus.computeIfPresent(accountId, (id, menu) ->
+                new Menu(0, Collections.emptyList(), menu.loadedAt));
+    }
+
+    /**
+     * Drops the menu of an account, e.g. after some of its notifications were deleted.
+     */
+    public synchronized void invalidate(Long accountId) {
+        menus.remove(accountId);
+    }
+
+    /**
+     * Drops all menus, e.g. after the notifications about a reference were deleted for all their recipients.
+     */
+    public synchronized void clear() {
+        menus.clear();
+    }
+
+    /**
+     * Copies the fields shown in the menu, without sender and recipient.
+     */
+    private static Notification copy(Notification notification) {
+        Notification copy = new Notification();
+        copy.id = notification.id;
+        copy.createdAt = notification.createdAt;
+        copy.updatedAt = notification.updatedAt;
+        copy.rendered = notification.rendered;
+        copy.targetUrl = notification.targetUrl;
+        copy.referenceId = notification.referenceId;
+        copy.referenceType = notification.referenceType;
+        copy.isRead = notification.isRead;
+        copy.isSent = notification.isSent;
+        return copy;
+    }
+
+    /**
+     * Unread counter and newest unread notifications of an account.
+     */
+    public static class Menu {
+        public final int unread;
+        public final List<Notification> newest;
+        final long loadedAt;
+
+        public Menu(int unread, List<Notification> newest) {
+            this(unread, newest, System.currentTimeMillis());
+        }
+
+        Menu(int unread, List<Notification> newest, long loadedAt) {
+            this.unread = unread;
+            this.newest = Collections.unmodifiableList(newest);
+            this.loadedAt = loadedAt;
+        }
+
+        boolean contains(Long notificationId) {
+            for (Notification notification : newest) {
+                if (notification.id.equals(notificationId)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
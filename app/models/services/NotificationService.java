@@ -3,24 +3,50 @@ package models.services;
 import akka.actor.ActorRef;
 import akka.actor.ActorSystem;
 import com.fasterxml.jackson.databind.node.ObjectNode;
+import managers.AfterCommit;
 import managers.NotificationManager;
 import models.Account;
 import models.Notification;
 import models.base.BaseNotifiable;
 import models.base.INotifiable;
 import models.enums.EmailNotifications;
+import org.hibernate.Hibernate;
+import play.Configuration;
 import play.Logger;
+import play.api.inject.ApplicationLifecycle;
 import play.db.jpa.JPAApi;
 import play.libs.Json;
 import scala.concurrent.duration.Duration;
 
 import javax.inject.Inject;
 import javax.inject.Singleton;
+import javax.persistence.EntityManager;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * This class handles the notification system.
+ * Notifications are created by a fixed pool of htwplus.notification.workers threads, each holding one database
+ * connection while it works, so the pool is sized to a share of the connection pool (a quarter by default).
+ * Pending notifiables wait in a queue of htwplus.notification.queueSize entries. If it is full, the request
+ * waits up to htwplus.notification.offerTimeout seconds for a free slot, so busy groups slow down their writers.
+ * If the queue stays full, the notifiable is dropped and counted. The request never creates the notifications
+ * itself, as it already holds a connection and a second one would starve the connection pool.
+ * A notifiable created within a transaction is queued after its commit, so the workers never see uncommitted
+ * or rolled back changes and the wait for a free slot does not hold the connection of the request.
+ * On application stop the queue is drained for at most htwplus.notification.drainTimeout seconds.
+ * A notifiable is rendered once and written for its recipients in batches of htwplus.notification.batchSize.
  */
 @Singleton
 public class NotificationService {
@@ -30,31 +56,240 @@ public class NotificationService {
     WebSocketService webSocketService;
     EmailService email;
     NotificationManager notificationManager;
+    NotificationMenuCache notificationMenuCache;
     ActorSystem system;
     JPAApi jpaApi;
 
+    private final ThreadPoolExecutor executor;
+    private final int workers;
+    private final int queueSize;
+    private final long offerTimeout;
+    private final int batchSize;
+
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder throttled = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder waitNanos = new LongAdder();
+    private final LongAdder dispatchNanos = new LongAdder();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+    private final LongAdder notificationsWritten = new LongAdder();
+
     /**
      * Private constructor for singleton instance
      */
     @Inject
-    public NotificationService(EmailService email, NotificationManager notificationManager, JPAApi jpaApi) {
+    public NotificationService(EmailService email, NotificationManager notificationManager,
+                               NotificationMenuCache notificationMenuCache, JPAApi jpaApi,
+                               Configuration configuration, ApplicationLifecycle lifecycle) {
         this.email = email;
         this.webSocketService = webSocketService;
         this.notificationManager = notificationManager;
+        this.notificationMenuCache = notificationMenuCache;
         this.system = ActorSystem.create();
         this.jpaApi = jpaApi;
+
+        int poolSize = configuration.getInt("db.default.hikaricp.maximumPoolSize",
+                configuration.getInt("play.db.prototype.hikaricp.maximumPoolSize", 10));
+        this.workers = configuration.getInt("htwplus.notification.workers", Math.max(1, poolSize / 4));
+        this.queueSize = configuration.getInt("htwplus.notification.queueSize", 1000);
+        this.offerTimeout = TimeUnit.SECONDS.toMillis(configuration.getLong("htwplus.notification.offerTimeout", 2L));
+        long drainTimeout = configuration.getLong("htwplus.notification.drainTimeout", 30L);
+        this.batchSize = Math.max(1, configuration.getInt("htwplus.notification.batchSize", 500));
+
+        // resolve the notification and email templates before the first notification is rendered
+        LOG.info("Resolved " + TemplateService.getInstance().warmUp("views.html.Notification", "views.html.Emails")
+                + " notification and email templates");
+
+        AtomicInteger threads = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(workers, workers, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueSize),
+                runnable -> new Thread(runnable, "notification-" + threads.incrementAndGet()),
+                this::throttle);
+
+        // finish the queued notifications before the database is closed
+        lifecycle.addStopHook(() -> CompletableFuture.runAsync(() -> {
+            executor.shutdown();
+            try {
+                if (!executor.awaitTermination(drainTimeout, TimeUnit.SECONDS)) {
+                    LOG.warn("Dropped " + executor.shutdownNow().size() + " queued notifications on stop");
+                }
+            } catch (InterruptedException e) {
+                executor.shutdownNow();
+                Thread.currentThread().interrupt();
+            }
+        }));
     }
 
     /**
      * Creates one or more notifications by the notifiable instance.
-     * The creation is done asynchronized using the Akka subsystem to be non-blocking.
+     * The creation is queued and done by the notification workers to be non-blocking.
      *
      * @param notifiable Notifiable instance, to retrieve the required notification data
      */
     public void createNotification(final INotifiable notifiable) {
-        new Thread(() -> {
-            new NotificationRunnable(notifiable).run();
-        }).start();
+        EntityManager em = currentEntityManager();
+        if (em != null) {
+            AfterCommit.run(em, () -> submit(notifiable));
+        } else {
+            submit(notifiable);
+        }
+    }
+
+    private void submit(INotifiable notifiable) {
+        submitted.increment();
+        try {
+            executor.execute(new Dispatch(new NotificationRunnable(notifiable)));
+        } catch (RejectedExecutionException e) {
+            // stopping, the queue does not take new notifications anymore
+            failures.increment();
+            LOG.error("Notification rejected during shutdown: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return Entity manager bound to the calling thread or request, null if there is none
+     */
+    private EntityManager currentEntityManager() {
+        try {
+            return jpaApi.em();
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Called when the queue is full: waits for a free slot, drops the dispatch if there is none.
+     */
+    private void throttle(Runnable dispatch, ThreadPoolExecutor executor) {
+        if (executor.isShutdown()) {
+            throw new RejectedExecutionException("notification queue is stopped");
+        }
+        throttled.increment();
+        try {
+            if (executor.getQueue().offer(dispatch, offerTimeout, TimeUnit.MILLISECONDS)) {
+                return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        dropped.increment();
+        LOG.warn("Notification queue is full, dropped a notifiable");
+    }
+
+    /**
+     * @return Notifiables waiting for a worker
+     */
+    public int queueDepth() {
+        return executor.getQueue().size();
+    }
+
+    public int queueSize() {
+        return queueSize;
+    }
+
+    public int workers() {
+        return workers;
+    }
+
+    /**
+     * @return Workers creating notifications right now
+     */
+    public int activeWorkers() {
+        return executor.getActiveCount();
+    }
+
+    public long submitted() {
+        return submitted.sum();
+    }
+
+    public long completed() {
+        return completed.sum();
+    }
+
+    public long failures() {
+        return failures.sum();
+    }
+
+    /**
+     * @return Notifiables which found the queue full
+     */
+    public long throttled() {
+        return throttled.sum();
+    }
+
+    /**
+     * @return Notifiables dropped, because the queue stayed full
+     */
+    public long dropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * @return Average time a notifiable waited in the queue in milliseconds
+     */
+    public double averageWait() {
+        long done = completed() + failures();
+        return done == 0 ? 0 : waitNanos.sum() / (double) done / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    /**
+     * @return Longest time a notifiable waited in the queue in milliseconds
+     */
+    public long maxWait() {
+        return TimeUnit.NANOSECONDS.toMillis(maxWaitNanos.get());
+    }
+
+    /**
+     * @return Average time to create the notifications of a notifiable in milliseconds
+     */
+    public double averageDispatch() {
+        long done = completed() + failures();
+        return done == 0 ? 0 : dispatchNanos.sum() / (double) done / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    /**
+     * @return Notifications created or updated for recipients
+     */
+    public long notificationsWritten() {
+        return notificationsWritten.sum();
+    }
+
+    /**
+     * @return Notifications written per second of worker time
+     */
+    public double fanOutThroughput() {
+        long nanos = dispatchNanos.sum();
+        return nanos == 0 ? 0 : notificationsWritten() / (double) nanos * TimeUnit.SECONDS.toNanos(1);
+    }
+
+    /**
+     * A queued notifiable, measures its time in the queue and in the worker.
+     */
+    private class Dispatch implements Runnable {
+        private final Runnable notification;
+        private final long queuedAt = System.nanoTime();
+
+        Dispatch(Runnable notification) {
+            this.notification = notification;
+        }
+
+        @Override
+        public void run() {
+            long startedAt = System.nanoTime();
+            waitNanos.add(startedAt - queuedAt);
+            maxWaitNanos.accumulateAndGet(startedAt - queuedAt, Math::max);
+            try {
+                notification.run();
+                completed.increment();
+            } catch (RuntimeException e) {
+                failures.increment();
+                LOG.error("Could not create notifications", e);
+            } finally {
+                dispatchNanos.add(System.nanoTime() - startedAt);
+            }
+        }
     }
 
     /**
@@ -76,10 +311,11 @@ public class NotificationService {
 
     /**
      * Sub-Class to implement a Runnable interface for notification creation.
+     * The notification is rendered once for all recipients and written with one statement per
+     * htwplus.notification.batchSize recipients.
      */
     public class NotificationRunnable implements Runnable {
         private INotifiable notifiable;
-        private NotificationRunnable self;
 
         /**
          * Constructor.
@@ -88,11 +324,14 @@ public class NotificationService {
          */
         public NotificationRunnable(final INotifiable notifiable) {
             this.notifiable = notifiable;
-            this.self = this;
         }
 
         @Override
         public void run() {
+            // recipient ID by notification ID
+            Map<Long, Long> written = new HashMap<>();
+            Notification notification = new Notification();
+
             jpaApi.withTransaction(() -> {
                 List<Account> recipients = notifiable.getRecipients();
 
@@ -101,46 +340,52 @@ public class NotificationService {
                     return;
                 }
 
-                // run through all recipients
+                // if sender == recipient, it is not necessary to create a notification
+                Account sender = notifiable.getSender();
+                Map<Long, Account> recipientsById = new LinkedHashMap<>();
                 for (Account recipient : recipients) {
-                    // if sender == recipient, it is not necessary to create a notification -> continue
-                    if (recipient.equals(notifiable.getSender())) {
-                        continue;
+                    if (sender == null || !recipient.id.equals(sender.id)) {
+                        recipientsById.put(recipient.id, recipient);
                     }
+                }
+                if (recipientsById.isEmpty()) {
+                    return;
+                }
 
-                    // create new notification and persist in database
-                    Notification notification = notifiable.getNotification(recipient);
-                    notification.isRead = false;
-                    notification.isSent = false;
-                    notification.recipient = recipient;
-                    notification.sender = notifiable.getSender();
-                    notification.referenceId = notifiable.getReference().id;
-                    notification.referenceType = notifiable.getReference().getClass().getSimpleName();
-                    notification.targetUrl = notifiable.getTargetUrl();
-
-                    try {
-                        // render notification content
-                        notification.rendered = notifiable.render(notification);
-                        // if no ID is set already, persist new instance, otherwise update given instance
-                        if (notification.id == null) {
-                            notificationManager.create(notification);
-                            LOG.info("Created new notification for user: " + recipient.id.toString());
-                        } else {
-                            notificationManager.update(notification);
-                            LOG.info("Updated notification (ID: " + notification.id.toString()
-                                    + ") for user: " + recipient.id.toString()
-                            );
-                        }
-
-                        self.webSocketPush(notification);
-                        self.handleMail(notification);
-                    } catch (Exception e) {
-                        LOG.error("Could not render notification. Notification will not be stored in DB" +
-                                        " nor will the user be notified in any way." + e.getMessage()
-                        );
-                    }
+                notification.sender = sender;
+                notification.referenceId = notifiable.getReference().id;
+                notification.referenceType = Hibernate.getClass(notifiable.getReference()).getSimpleName();
+                notification.targetUrl = notifiable.getTargetUrl();
+
+                try {
+                    // render notification content
+                    notification.rendered = notifiable.render(notification);
+                } catch (Exception e) {
+                    LOG.error("Could not render notification. Notification will not be stored in DB" +
+                                    " nor will the user be notified in any way." + e.getMessage()
+                    );
+                    return;
+                }
+
+                List<Long> recipientIds = new ArrayList<>(recipientsById.keySet());
+                for (int from = 0; from < recipientIds.size(); from += batchSize) {
+                    List<Long> batch = recipientIds.subList(from, Math.min(from + batchSize, recipientIds.size()));
+                    written.putAll(notifiable.updatesNotification()
+                            ? notificationManager.upsertForRecipients(notification, batch)
+                            : notificationManager.createForRecipients(notification, batch));
                 }
+                notificationsWritten.add(written.size());
+                LOG.info("Wrote " + written.size() + " notifications about " + notification.referenceType
+                        + " " + notification.referenceId);
+
+                handleMail(written, recipientsById);
             });
+
+            // the notifications are committed, update the menus of the recipients
+            for (Map.Entry<Long, Long> entry : written.entrySet()) {
+                notificationMenuCache.notified(entry.getValue(), entry.getKey(), notification,
+                        !notifiable.updatesNotification());
+            }
         }
 
         /**
@@ -164,18 +409,25 @@ public class NotificationService {
         }
 
         /**
-         * Sends mail to recipient, if he wishes to be notified via mail immediately
-         * and notification is currently unsent/unread.
+         * Sends mail to the recipients, who wish to be notified via mail immediately.
          *
-         * @param notification Notification
+         * @param written    Recipient ID by notification ID of the written notifications
+         * @param recipients Recipients by ID
          */
-        public void handleMail(final Notification notification) {
-            if (notification.recipient.emailNotifications == EmailNotifications.IMMEDIATELY_ALL
-                    && !notification.isSent
-                    && !notification.isRead
-                    ) {
-                // since hibernate persist and update contradictions
-                // schedule another process for email handling in 1 second from now on
+        public void handleMail(final Map<Long, Long> written, final Map<Long, Account> recipients) {
+            List<Long> ids = new ArrayList<>();
+            for (Map.Entry<Long, Long> entry : written.entrySet()) {
+                if (recipients.get(entry.getValue()).emailNotifications == EmailNotifications.IMMEDIATELY_ALL) {
+                    ids.add(entry.getKey());
+                }
+            }
+            if (ids.isEmpty()) {
+                return;
+            }
+
+            for (Notification notification : notificationManager.findByIds(ids)) {
+                // schedule another process for email handling in 1 second from now on,
+                // when the notifications are committed
                 system.scheduler().scheduleOnce(
                     Duration.create(1, TimeUnit.SECONDS),
                     () -> { email.sendNotificationEmail(notification); },
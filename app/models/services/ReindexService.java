@@ -0,0 +1,557 @@
+package models.services;
+
+import models.Account;
+import models.Folder;
+import models.Group;
+import models.Media;
+import models.Post;
+import models.enums.AccountRole;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.action.bulk.BackoffPolicy;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkProcessor;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.Session;
+import org.hibernate.query.Query;
+import play.Configuration;
+import play.Logger;
+import play.db.jpa.JPAApi;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Rebuilds the search index without downtime. start() creates a new versioned index (see ElasticsearchService.createIndex())
+ * and loads all accounts, groups, posts and media into it in the background, searches and the IndexOutbox keep using
+ * the old index through the alias until the load is complete and the alias is swapped. A cancelled or failed rebuild
+ * drops the new index. Documents the IndexOutbox sent meanwhile are queued again after the swap.
+ * Every table is split into id ranges of elasticsearch.reindex.partitionSize rows, which are indexed by
+ * elasticsearch.reindex.workers threads, each range in its own read only transaction.
+ * A range is streamed with a scrollable cursor and the documents are sent through a shared BulkProcessor.
+ * Only one rebuild runs at a time.
+ */
+@Singleton
+public class ReindexService {
+
+    private static final Logger.ALogger LOG = Logger.of(ReindexService.class);
+
+    // rows between two session clears, keeps the persistence context of a range small
+    private static final int FETCH_SIZE = 500;
+
+    // root folder of every medium of a range
+    private static final String MEDIA_ROOTS =
+            "WITH RECURSIVE chain (media_id, folder_id, parent_id) AS (" +
+            "  SELECT m.id, f.id, f.parent_id FROM media m JOIN folder f ON f.id = m.folder_id WHERE m.id BETWEEN :from AND :to" +
+            "  UNION ALL SELECT c.media_id, f.id, f.parent_id FROM chain c JOIN folder f ON f.id = c.parent_id)" +
+            " SELECT c.media_id, c.folder_id FROM chain c WHERE c.parent_id IS NULL";
+
+    // posts of the admin account in the admin group (error reports) are not searchable
+    private static final String POSTS =
+            "SELECT p FROM Post p LEFT JOIN FETCH p.owner LEFT JOIN FETCH p.group LEFT JOIN FETCH p.account" +
+            " LEFT JOIN FETCH p.parent pp LEFT JOIN FETCH pp.group LEFT JOIN FETCH pp.account" +
+            " WHERE p.id BETWEEN :from AND :to AND (p.owner.id <> :adminId AND p.group.id <> :groupId OR p.group IS NULL)";
+    private static final String GROUPS =
+            "SELECT g FROM Group g LEFT JOIN FETCH g.owner WHERE g.id BETWEEN :from AND :to";
+    private static final String ACCOUNTS =
+            "SELECT a FROM Account a LEFT JOIN FETCH a.studycourse WHERE a.id BETWEEN :from AND :to AND (a.role IS NULL OR a.role <> :dummy)";
+    private static final String MEDIA =
+            "SELECT m FROM Media m LEFT JOIN FETCH m.owner LEFT JOIN FETCH m.folder WHERE m.id BETWEEN :from AND :to";
+
+    private final JPAApi jpaApi;
+    private final ElasticsearchService elasticsearchService;
+    private final IndexOutbox indexOutbox;
+    private final String adminGroup;
+    private final int workers;
+    private final int partitionSize;
+    private final int bulkActions;
+    private final int bulkSizeMb;
+    private final int concurrentRequests;
+
+    private final AtomicReference<Rebuild> running = new AtomicReference<>();
+    private volatile Rebuild last;
+
+    @Inject
+    public ReindexService(JPAApi jpaApi, ElasticsearchService elasticsearchService, IndexOutbox indexOutbox,
+                          Configuration configuration) {
+        this.jpaApi = jpaApi;
+        this.elasticsearchService = elasticsearchService;
+        this.indexOutbox = indexOutbox;
+        this.adminGroup = configuration.getString("htwplus.admin.group");
+        this.workers = configuration.getInt("elasticsearch.reindex.workers", 4);
+        this.partitionSize = configuration.getInt("elasticsearch.reindex.partitionSize", 5000);
+        this.bulkActions = configuration.getInt("elasticsearch.reindex.bulkActions", 1000);
+        this.bulkSizeMb = configuration.getInt("elasticsearch.reindex.bulkSizeMb", 5);
+        this.concurrentRequests = configuration.getInt("elasticsearch.reindex.concurrentRequests", 2);
+    }
+
+    /**
+     * @return Running rebuild or null
+     */
+    public Rebuild running() {
+        return running.get();
+    }
+
+    /**
+     * @return Last (or running) rebuild or null
+     */
+    public Rebuild last() {
+        return last;
+    }
+
+    /**
+     * @return Types of the last (or running) rebuild in the order they were indexed
+     */
+    public Collection<Progress> lastRuns() {
+        Rebuild rebuild = last;
+        return rebuild == null ? Collections.emptyList() : rebuild.getTypes();
+    }
+
+    /**
+     * Starts a rebuild in the background.
+     *
+     * @return Started rebuild or null, if another rebuild is running
+     */
+    public Rebuild start() {
+        Rebuild rebuild = new Rebuild();
+        if (!running.compareAndSet(null, rebuild)) {
+            return null;
+        }
+        last = rebuild;
+        CompletableFuture.runAsync(() -> rebuild(rebuild));
+        return rebuild;
+    }
+
+    /**
+     * Cancels the running rebuild, the alias keeps pointing to the current index.
+     *
+     * @return false, if no rebuild is running
+     */
+    public boolean cancel() {
+        Rebuild rebuild = running.get();
+        if (rebuild == null) {
+            return false;
+        }
+        rebuild.cancelled = true;
+        return true;
+    }
+
+    private void rebuild(Rebuild rebuild) {
+        try {
+            rebuild.index = elasticsearchService.createIndex(true);
+            indexOutbox.recordSent();
+            long[] admin = jpaApi.withTransaction(this::findAdminIds);
+
+            run(rebuild, "accounts", "Account", this::indexAccounts);
+            run(rebuild, "groups", "Group", this::indexGroups);
+            run(rebuild, "posts", "Post", (from, to, sink) -> indexPosts(admin, from, to, sink));
+            run(rebuild, "media", "Media", this::indexMedia);
+
+            if (rebuild.cancelled) {
+                throw new CancellationException();
+            }
+            // never replace the current index by an incomplete one
+            long failedRanges = rebuild.getTypes().stream().mapToLong(Progress::failedRanges).sum();
+            if (failedRanges > 0) {
+                throw new IllegalStateException(failedRanges + " Bereiche fehlgeschlagen");
+            }
+            long failures = rebuild.getTypes().stream().mapToLong(Progress::failures).sum();
+            if (failures > 0) {
+                throw new IllegalStateException(failures + " Dokumente nicht indexiert");
+            }
+            if (rebuild.getTypes().stream().anyMatch(progress -> !progress.isFlushed())) {
+                throw new IllegalStateException("Bulk-Requests nicht rechtzeitig abgeschlossen");
+            }
+
+            elasticsearchService.activateIndex(rebuild.index);
+            rebuild.state = State.activated;
+        } catch (CancellationException | InterruptedException e) {
+            rebuild.state = State.cancelled;
+            drop(rebuild);
+        } catch (RuntimeException e) {
+            LOG.error("Rebuild of the search index failed", e);
+            rebuild.state = State.failed;
+            rebuild.error = e.getMessage();
+            drop(rebuild);
+        } finally {
+            rebuild.finishedAt = System.currentTimeMillis();
+            running.set(null);
+        }
+
+        if (rebuild.state == State.activated) {
+            try {
+                indexOutbox.resendRecorded();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        LOG.info("Rebuild of " + rebuild.index + " " + rebuild.state + " after " + rebuild.seconds() + " seconds");
+    }
+
+    private void drop(Rebuild rebuild) {
+        indexOutbox.discardRecorded();
+        if (rebuild.index != null) {
+            try {
+                elasticsearchService.deleteIndex(rebuild.index);
+            } catch (ElasticsearchException e) {
+                LOG.error("Could not drop index " + rebuild.index, e);
+            }
+        }
+    }
+
+    /**
+     * Indexes all posts and comments, except the error posts of the admin group.
+     */
+    private void indexPosts(long[] admin, long from, long to, Consumer<IndexRequest> sink) throws IOException {
+        Query<Post> posts = session().createQuery(POSTS, Post.class)
+                .setParameter("adminId", admin[1])
+                .setParameter("groupId", admin[0]);
+        scroll(posts, from, to, post -> sink.accept(elasticsearchService.postRequest(post)));
+    }
+
+    private void indexGroups(long from, long to, Consumer<IndexRequest> sink) throws IOException {
+        scroll(session().createQuery(GROUPS, Group.class), from, to, group -> sink.accept(elasticsearchService.groupRequest(group)));
+    }
+
+    /**
+     * Indexes all accounts, except dummies.
+     */
+    private void indexAccounts(long from, long to, Consumer<IndexRequest> sink) throws IOException {
+        Query<Account> accounts = session().createQuery(ACCOUNTS, Account.class)
+                .setParameter("dummy", AccountRole.DUMMY);
+        scroll(accounts, from, to, account -> sink.accept(elasticsearchService.accountRequest(account)));
+    }
+
+    @SuppressWarnings("unchecked")
+    private void indexMedia(long from, long to, Consumer<IndexRequest> sink) throws IOException {
+        Map<Long, Long> rootIds = new HashMap<>();
+        for (Object[] row : nativeRows(jpaApi.em().createNativeQuery(MEDIA_ROOTS), from, to)) {
+            rootIds.put(((Number) row[0]).longValue(), ((Number) row[1]).longValue());
+        }
+        if (rootIds.isEmpty()) {
+            return;
+        }
+
+        Map<Long, Folder> roots = new HashMap<>();
+        List<Folder> folders = jpaApi.em()
+                .createQuery("SELECT f FROM Folder f LEFT JOIN FETCH f.group LEFT JOIN FETCH f.owner WHERE f.id IN :ids")
+                .setParameter("ids", new HashSet<>(rootIds.values()))
+                .getResultList();
+        for (Folder folder : folders) {
+            roots.put(folder.id, folder);
+        }
+
+        scroll(session().createQuery(MEDIA, Media.class), from, to, medium ->
+                sink.accept(elasticsearchService.mediumRequest(medium, roots.get(rootIds.get(medium.id)))));
+    }
+
+    /**
+     * Splits the table of an entity into id ranges and indexes them in parallel into the index of the rebuild.
+     */
+    private void run(Rebuild rebuild, String type, String entity, RangeIndexer indexer) throws InterruptedException {
+        if (rebuild.cancelled) {
+            return;
+        }
+        Progress progress = new Progress(type);
+        rebuild.types.add(progress);
+
+        AtomicInteger threads = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(workers, runnable -> {
+            Thread thread = new Thread(runnable, "reindex-" + type + "-" + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        BulkProcessor bulk = bulkProcessor(progress);
+        // a cancel stops every range at its next document
+        Consumer<IndexRequest> sink = request -> {
+            if (rebuild.cancelled) {
+                throw new CancellationException();
+            }
+            bulk.add(request.index(rebuild.index));
+        };
+
+        try {
+            Object[] bounds = jpaApi.withTransaction(() ->
+                    (Object[]) jpaApi.em().createQuery("SELECT MIN(x.id), MAX(x.id), COUNT(x) FROM " + entity + " x").getSingleResult());
+            progress.total = ((Number) bounds[2]).longValue();
+
+            List<Future<?>> ranges = new ArrayList<>();
+            if (bounds[0] != null) {
+                long max = ((Number) bounds[1]).longValue();
+                for (long from = ((Number) bounds[0]).longValue(); from <= max; from += partitionSize) {
+                    long start = from;
+                    long end = Math.min(from + partitionSize - 1, max);
+                    ranges.add(executor.submit(() -> jpaApi.withTransaction("default", true, () -> {
+                        try {
+                            indexer.index(start, end, sink);
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                        return null;
+                    })));
+                }
+            }
+            progress.ranges = ranges.size();
+
+            for (Future<?> range : ranges) {
+                try {
+                    range.get();
+                } catch (ExecutionException e) {
+                    if (!(e.getCause() instanceof CancellationException)) {
+                        progress.failedRanges.increment();
+                        LOG.error("Reindex of a " + type + " range failed", e.getCause());
+                    }
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+            progress.flushed = bulk.awaitClose(5, TimeUnit.MINUTES);
+            progress.finishedAt = System.currentTimeMillis();
+        }
+
+        LOG.info("Reindexed " + progress.documents() + " " + type + " in " + progress.seconds() + " seconds ("
+                + progress.failures() + " failed documents, " + progress.failedRanges() + " failed ranges)");
+    }
+
+    private BulkProcessor bulkProcessor(Progress progress) {
+        return BulkProcessor.builder(elasticsearchService.getClient(), new BulkProcessor.Listener() {
+            @Override
+            public void beforeBulk(long executionId, BulkRequest request) {
+            }
+
+            @Override
+            public void afterBulk(long executionId, BulkRequest request, BulkResponse response) {
+                progress.bulks.increment();
+                for (BulkItemResponse item : response.getItems()) {
+                    if (item.isFailed()) {
+                        progress.failures.increment();
+                        LOG.warn("Could not index " + item.getType() + " " + item.getId() + ": " + item.getFailureMessage());
+                    } else {
+                        progress.documents.increment();
+                    }
+                }
+            }
+
+            @Override
+            public void afterBulk(long executionId, BulkRequest request, Throwable failure) {
+                progress.bulks.increment();
+                progress.failures.add(request.numberOfActions());
+                LOG.error("Bulk request with " + request.numberOfActions() + " documents failed", failure);
+            }
+        })
+                .setBulkActions(bulkActions)
+                .setBulkSize(new ByteSizeValue(bulkSizeMb, ByteSizeUnit.MB))
+                .setConcurrentRequests(concurrentRequests)
+                .setFlushInterval(TimeValue.timeValueSeconds(5))
+                .setBackoffPolicy(BackoffPolicy.exponentialBackoff(TimeValue.timeValueMillis(100), 3))
+                .build();
+    }
+
+    /**
+     * Streams the entities of a range through the consumer. Rows are read with a forward only cursor
+     * and the persistence context is cleared regularly, so a range never holds more than FETCH_SIZE entities.
+     */
+    private <T> void scroll(Query<T> query, long from, long to, IndexAction<T> action) throws IOException {
+        ScrollableResults rows = query
+                .setParameter("from", from)
+                .setParameter("to", to)
+                .setReadOnly(true)
+                .setFetchSize(FETCH_SIZE)
+                .scroll(ScrollMode.FORWARD_ONLY);
+        try {
+            int count = 0;
+            while (rows.next()) {
+                @SuppressWarnings("unchecked")
+                T entity = (T) rows.get(0);
+                action.index(entity);
+                if (++count % FETCH_SIZE == 0) {
+                    session().clear();
+                }
+            }
+        } finally {
+            rows.close();
+        }
+    }
+
+    private Session session() {
+        return jpaApi.em().unwrap(Session.class);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Object[]> nativeRows(javax.persistence.Query query, long from, long to) {
+        return query.setParameter("from", from).setParameter("to", to).getResultList();
+    }
+
+    /**
+     * @return Ids of the admin group and its owner, -1 if there is no admin group
+     */
+    @SuppressWarnings("unchecked")
+    private long[] findAdminIds() {
+        List<Object[]> rows = jpaApi.em().createQuery("SELECT g.id, g.owner.id FROM Group g WHERE g.title = :title")
+                .setParameter("title", adminGroup)
+                .getResultList();
+        if (rows.isEmpty()) {
+            return new long[]{-1L, -1L};
+        }
+        return new long[]{(Long) rows.get(0)[0], (Long) rows.get(0)[1]};
+    }
+
+    @FunctionalInterface
+    private interface RangeIndexer {
+        void index(long from, long to, Consumer<IndexRequest> sink) throws IOException;
+    }
+
+    @FunctionalInterface
+    private interface IndexAction<T> {
+        void index(T entity) throws IOException;
+    }
+
+    public enum State {
+        running,
+        activated,
+        cancelled,
+        failed
+    }
+
+    /**
+     * A rebuild of the whole search index, shown on the admin indexing page.
+     */
+    public static class Rebuild {
+        private final long startedAt = System.currentTimeMillis();
+        private volatile long finishedAt;
+        private volatile String index;
+        private volatile State state = State.running;
+        private volatile String error;
+        private volatile boolean cancelled;
+        private final List<Progress> types = new CopyOnWriteArrayList<>();
+
+        /**
+         * @return Name of the new index, null until it is created
+         */
+        public String getIndex() {
+            return index;
+        }
+
+        public State getState() {
+            return state;
+        }
+
+        public String getError() {
+            return error;
+        }
+
+        /**
+         * @return true, if a cancel was requested
+         */
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        public boolean isFinished() {
+            return finishedAt > 0;
+        }
+
+        public List<Progress> getTypes() {
+            return types;
+        }
+
+        public long seconds() {
+            return ((isFinished() ? finishedAt : System.currentTimeMillis()) - startedAt) / 1000;
+        }
+    }
+
+    /**
+     * Counters of a type within a rebuild, shown on the admin indexing and metrics pages.
+     */
+    public static class Progress {
+        private final String type;
+        private final long startedAt = System.currentTimeMillis();
+        private volatile long finishedAt;
+        private volatile int ranges;
+        private volatile long total;
+        private volatile boolean flushed;
+        private final LongAdder documents = new LongAdder();
+        private final LongAdder failures = new LongAdder();
+        private final LongAdder bulks = new LongAdder();
+        private final LongAdder failedRanges = new LongAdder();
+
+        Progress(String type) {
+            this.type = type;
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        public boolean isFinished() {
+            return finishedAt > 0;
+        }
+
+        public int ranges() {
+            return ranges;
+        }
+
+        public long documents() {
+            return documents.sum();
+        }
+
+        /**
+         * @return Rows of the table, the documents of a finished type may be less (dummies, error posts)
+         */
+        public long total() {
+            return total;
+        }
+
+        /**
+         * @return Indexed documents in percent of the rows
+         */
+        public double percent() {
+            return total == 0 ? (isFinished() ? 100 : 0) : Math.min(100, documents() * 100.0 / total);
+        }
+
+        public long failures() {
+            return failures.sum();
+        }
+
+        public long bulks() {
+            return bulks.sum();
+        }
+
+        public long failedRanges() {
+            return failedRanges.sum();
+        }
+
+        /**
+         * @return True, if all bulk requests of the type completed before the timeout
+         */
+        public boolean isFlushed() {
+            return flushed;
+        }
+
+        public long seconds() {
+            return ((isFinished() ? finishedAt : System.currentTimeMillis()) - startedAt) / 1000;
+        }
+
+        /**
+         * @return Indexed documents per second
+         */
+        public double throughput() {
+            long millis = (isFinished() ? finishedAt : System.currentTimeMillis()) - startedAt;
+            return millis == 0 ? 0 : documents() * 1000.0 / millis;
+        }
+    }
+}
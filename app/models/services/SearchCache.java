@@ -0,0 +1,279 @@
+package models.services;
+
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.search.aggregations.Aggregations;
+import play.Configuration;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps recent search responses, so repeated searches, paging back and the back button do not query Elasticsearch again.
+ * Keys consist of the normalized search request and a digest of the visibility scope of the searcher
+ * (account, groups and friends), searchers with a different scope never share a response.
+ * Every document type has a generation which is incremented when documents of this type are written,
+ * responses of an older generation are dropped on access. Mode "all" depends on all types.
+ * The cache is bounded to elasticsearch.cache.size entries (least recently used are evicted first),
+ * entries expire after elasticsearch.cache.ttl seconds.
+ * The facet counts of a search are kept separately for all of its pages, following pages are searched without aggregations.
+ */
+@Singleton
+public class SearchCache {
+
+    private static final String ALL = "all";
+
+    private final int maxEntries;
+    private final long ttl;
+
+    // guarded by this
+    private final LinkedHashMap<String, Entry<SearchResponse>> responses;
+    // guarded by this, facet counts by the key of the first page
+    private final LinkedHashMap<String, Entry<Aggregations>> facets;
+    private final Map<String, AtomicLong> generations = new ConcurrentHashMap<>();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+    private final LongAdder facetHits = new LongAdder();
+
+    @Inject
+    public SearchCache(Configuration configuration) {
+        this.maxEntries = configuration.getInt("elasticsearch.cache.size", 500);
+        this.ttl = TimeUnit.SECONDS.toMillis(configuration.getLong("elasticsearch.cache.ttl", 30L));
+        this.responses = lruMap();
+        this.facets = lruMap();
+    }
+
+    private <T> LinkedHashMap<String, Entry<T>> lruMap() {
+        return new LinkedHashMap<String, Entry<T>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry<T>> eldest) {
+                if (size() <= maxEntries) {
+                    return false;
+                }
+                evictions.increment();
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Builds the cache key of a search request.
+     *
+     * @param caller    search or searchSuggestions
+     * @param query     Search term
+     * @param mode      Type filter (all, user, group, post or medium)
+     * @param facets    Facet filters or null
+     * @param page      Page
+     * @param accountId Searcher
+     * @param groupIds  Groups of the searcher
+     * @param friendIds Friends of the searcher
+     * @return Key
+     */
+    public String key(String caller, String query, String mode, Map<String, String[]> facets, int page,
+                      String accountId, long[] groupIds, long[] friendIds) {
+        StringBuilder key = new StringBuilder()
+                .append(caller).append('|')
+                .append(mode).append('|')
+                .append(page).append('|')
+                .append(query == null ? "" : query.trim().replaceAll("\\s+", " ")).append('|');
+
+        if (facets != null) {
+            for (String name : new TreeSet<>(facets.keySet())) {
+                String[] values = facets.get(name);
+                if (values != null && values.length > 0) {
+                    String[] sorted = values.clone();
+                    Arrays.sort(sorted);
+                    key.append(name).append('=').append(String.join(",", sorted)).append(';');
+                }
+            }
+        }
+
+        return key.append('|').append(scope(accountId, groupIds, friendIds)).toString();
+    }
+
+    /**
+     * Returns the cached response or executes the search and caches its response.
+     *
+     * @param key    Key, see key()
+     * @param mode   Type filter of the search, decides which writes invalidate the response
+     * @param search Executes the search on a miss
+     * @return SearchResponse
+     */
+    public SearchResponse get(String key, String mode, Search search) throws ExecutionException, InterruptedException {
+        long now = System.currentTimeMillis();
+        // read before searching, a write during the search makes the response stale
+        long generation = generation(mode);
+        synchronized (this) {
+            Entry<SearchResponse> entry = responses.get(key);
+            if (entry != null) {
+                if (entry.generation == generation && now - entry.cachedAt < ttl) {
+                    hits.increment();
+                    return entry.value;
+                }
+                responses.remove(key);
+                if (entry.generation != generation) {
+                    invalidations.increment();
+                }
+            }
+        }
+
+        // search outside the lock, concurrent misses on the same key just search twice
+        misses.increment();
+        SearchResponse response = search.execute();
+
+        synchronized (this) {
+            responses.put(key, new Entry<>(response, generation, now));
+        }
+        return response;
+    }
+
+    /**
+     * @param key        Key of the search, see key() (with page 0, facet counts are the same on every page)
+     * @param generation Generation of the type filter, read before searching
+     * @return Cached facet counts or null
+     */
+    public synchronized Aggregations facets(String key, long generation) {
+        Entry<Aggregations> entry = facets.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.generation != generation || System.currentTimeMillis() - entry.cachedAt >= ttl) {
+            facets.remove(key);
+            return null;
+        }
+        facetHits.increment();
+        return entry.value;
+    }
+
+    /**
+     * @param key          Key of the search, see facets()
+     * @param generation   Generation of the type filter, read before searching
+     * @param aggregations Facet counts
+     */
+    public synchronized void putFacets(String key, long generation, Aggregations aggregations) {
+        if (aggregations != null) {
+            facets.put(key, new Entry<>(aggregations, generation, System.currentTimeMillis()));
+        }
+    }
+
+    /**
+     * Marks the cached responses containing documents of the given type as stale, e.g. after documents were indexed or deleted.
+     *
+     * @param documentType user, group, post or medium
+     */
+    public void invalidate(String documentType) {
+        counter(documentType).incrementAndGet();
+    }
+
+    public synchronized void clear() {
+        responses.clear();
+        facets.clear();
+    }
+
+    public synchronized int size() {
+        return responses.size();
+    }
+
+    public int maxSize() {
+        return maxEntries;
+    }
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    public long misses() {
+        return misses.sum();
+    }
+
+    public long evictions() {
+        return evictions.sum();
+    }
+
+    public long invalidations() {
+        return invalidations.sum();
+    }
+
+    /**
+     * @return Pages searched without aggregations, because the facet counts were cached
+     */
+    public long facetHits() {
+        return facetHits.sum();
+    }
+
+    /**
+     * @return Share of searches answered from the cache (0..1)
+     */
+    public double hitRate() {
+        long hits = hits();
+        long total = hits + misses();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    /**
+     * @param mode Type filter of a search
+     * @return Generation of the documents a search with this filter depends on
+     */
+    public long generation(String mode) {
+        if (!ALL.equals(mode)) {
+            AtomicLong generation = generations.get(mode);
+            return generation == null ? 0 : generation.get();
+        }
+        // generations only grow, so the sum changes with every write of any type
+        long sum = 0;
+        for (AtomicLong generation : generations.values()) {
+            sum += generation.get();
+        }
+        return sum;
+    }
+
+    private AtomicLong counter(String documentType) {
+        return generations.computeIfAbsent(documentType, type -> new AtomicLong());
+    }
+
+    private static String scope(String accountId, long[] groupIds, long[] friendIds) {
+        long[] groups = groupIds.clone();
+        long[] friends = friendIds.clone();
+        Arrays.sort(groups);
+        Arrays.sort(friends);
+        String scope = accountId + "|" + Arrays.toString(groups) + "|" + Arrays.toString(friends);
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(scope.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            return scope;
+        }
+    }
+
+    @FunctionalInterface
+    public interface Search {
+        SearchResponse execute() throws ExecutionException, InterruptedException;
+    }
+
+    private static class Entry<T> {
+        final T value;
+        final long generation;
+        final long cachedAt;
+
+        Entry(T value, long generation, long cachedAt) {
+            this.value = value;
+            this.generation = generation;
+            this.cachedAt = cachedAt;
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package models.services;
+
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.search.aggregations.Aggregations;
+
+/**
+ * Hits of one page of a search and the facet counts of the whole search.
+ * The facet counts are computed with the first page and reused for the following ones, see ElasticsearchService.doSearch().
+ */
+public class SearchPage {
+
+    public final SearchResponse response;
+    public final Aggregations aggregations;
+
+    public SearchPage(SearchResponse response, Aggregations aggregations) {
+        this.response = response;
+        this.aggregations = aggregations;
+    }
+}
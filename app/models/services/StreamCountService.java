@@ -0,0 +1,135 @@
+package models.services;
+
+import play.Configuration;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Keeps the post counts which are needed to draw the stream pagination.
+ * The managers drop the counts of every account whose stream entries changed and of the group of a new or deleted
+ * post once their transaction has committed (see managers.AfterCommit). Counts loaded while an invalidation happened
+ * are not cached, so a reader can not put a count of the state before the commit back into the cache.
+ * Both maps keep the htwplus.stream.countSize most recently used accounts and groups, every counter also
+ * expires after htwplus.stream.countTtl seconds.
+ */
+@Singleton
+public class StreamCountService {
+
+    // guarded by this
+    private final LinkedHashMap<Long, Map<String, CachedCount>> accountCounts;
+    // guarded by this
+    private final LinkedHashMap<Long, CachedCount> groupCounts;
+    // guarded by this, incremented on every invalidation
+    private long invalidations;
+    private final long ttl;
+    private final int maxEntries;
+
+    @Inject
+    public StreamCountService(Configuration configuration) {
+        this.ttl = TimeUnit.SECONDS.toMillis(configuration.getLong("htwplus.stream.countTtl", 300L));
+        this.maxEntries = configuration.getInt("htwplus.stream.countSize", 10000);
+        this.accountCounts = lruMap();
+        this.groupCounts = lruMap();
+    }
+
+    private <V> LinkedHashMap<Long, V> lruMap() {
+        return new LinkedHashMap<Long, V>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, V> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * @param accountId Account ID
+     * @param filter    Stream filter (all, group, account, contact, bookmark, visitor)
+     * @param loader    Computes the exact count, if nothing (fresh) is cached
+     * @return Number of posts
+     */
+    public int countForAccount(Long accountId, String filter, Supplier<Integer> loader) {
+        long now = System.currentTimeMillis();
+        long generation;
+        synchronized (this) {
+            Map<String, CachedCount> counts = accountCounts.get(accountId);
+            CachedCount cached = counts != null ? counts.get(filter) : null;
+            if (cached != null && now - cached.loadedAt < ttl) {
+                return cached.count;
+            }
+            generation = invalidations;
+        }
+
+        int count = loader.get();
+        synchronized (this) {
+            if (generation == invalidations) {
+                accountCounts.computeIfAbsent(accountId, id -> new HashMap<>()).put(filter, new CachedCount(count, now));
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @param groupId Group ID
+     * @param loader  Computes the exact count, if nothing (fresh) is cached
+     * @return Number of posts
+     */
+    public int countForGroup(Long groupId, Supplier<Integer> loader) {
+        long now = System.currentTimeMillis();
+        long generation;
+        synchronized (this) {
+            CachedCount cached = groupCounts.get(groupId);
+            if (cached != null && now - cached.loadedAt < ttl) {
+                return cached.count;
+            }
+            generation = invalidations;
+        }
+
+        int count = loader.get();
+        synchronized (this) {
+            if (generation == invalidations) {
+                groupCounts.put(groupId, new CachedCount(count, now));
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Drops all cached stream counts of an account.
+     */
+    public synchronized void invalidateAccount(Long accountId) {
+        invalidations++;
+        accountCounts.remove(accountId);
+    }
+
+    /**
+     * Drops all cached stream counts of the given accounts, e.g. the readers of a new post.
+     */
+    public synchronized void invalidateAccounts(Collection<Long> accountIds) {
+        invalidations++;
+        for (Long accountId : accountIds) {
+            accountCounts.remove(accountId);
+        }
+    }
+
+    public synchronized void invalidateGroup(Long groupId) {
+        invalidations++;
+        groupCounts.remove(groupId);
+    }
+
+    private static class CachedCount {
+        final int count;
+        final long loadedAt;
+
+        CachedCount(int count, long loadedAt) {
+            this.count = count;
+            this.loadedAt = loadedAt;
+        }
+    }
+}
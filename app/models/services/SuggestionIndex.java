@@ -0,0 +1,406 @@
+package models.services;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import models.Account;
+import models.Folder;
+import models.Group;
+import models.Media;
+import models.enums.AccountRole;
+import models.enums.GroupType;
+import play.Configuration;
+import play.Logger;
+import play.db.jpa.JPAApi;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongPredicate;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * In memory typeahead index over account names, group titles and file names, answers the search suggestions without Elasticsearch.
+ * Every word of a name is kept lower cased in a sorted set next to the key of its suggestion, a prefix is looked up as a range of this set.
+ * The index is loaded by rebuild() (on start and every elasticsearch.suggestions.refresh seconds, which also picks up changes
+ * dispatched by other instances) and kept current by the IndexOutbox, which passes every document it sent to index() or remove().
+ * Media carry their visibility (public, group, feed), it is checked against the relations of the searcher like in doSearch().
+ */
+@Singleton
+public class SuggestionIndex {
+
+    private static final Logger.ALogger LOG = Logger.of(SuggestionIndex.class);
+
+    private static final Pattern WORD = Pattern.compile("[\\p{L}\\p{N}]+");
+    private static final char SEPARATOR = '\u0000';
+    // visible matches ranked per lookup and words scanned to find them, bound the lookup time of very short prefixes
+    private static final int MAX_CANDIDATES = 500;
+    private static final int MAX_SCANNED = 10000;
+
+    public static final String USER = "user";
+    public static final String GROUP = "group";
+    public static final String MEDIUM = "medium";
+
+    private final JPAApi jpaApi;
+    private final long refresh;
+    private final int limit;
+
+    // replaced as a whole by rebuild(), changed by index() and remove() under the lock of this
+    private volatile Entries entries = new Entries();
+
+    @Inject
+    public SuggestionIndex(JPAApi jpaApi, Configuration configuration) {
+        this.jpaApi = jpaApi;
+        this.refresh = TimeUnit.SECONDS.toMillis(configuration.getLong("elasticsearch.suggestions.refresh", 600L));
+        this.limit = configuration.getInt("elasticsearch.suggestions.limit", 10);
+    }
+
+    /**
+     * @return Milliseconds between two rebuild() calls
+     */
+    public long refresh() {
+        return refresh;
+    }
+
+    /**
+     * Finds the suggestions whose words start with all words of the query. Suggestions of friends,
+     * own groups and their files come first, then accounts, groups and files, shorter names first.
+     *
+     * @param query     Search term
+     * @param accountId Searcher
+     * @param isMember  True for the ids of the groups of the searcher
+     * @param isFriend  True for the ids of the friends of the searcher
+     * @return At most elasticsearch.suggestions.limit suggestions
+     */
+    public List<Suggestion> find(String query, long accountId, LongPredicate isMember, LongPredicate isFriend) {
+        List<String> words = words(query);
+        if (words.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        // the longest word selects the fewest candidates, invisible ones must not use up the candidates
+        String selective = Collections.max(words, Comparator.comparingInt(String::length));
+        String normalized = String.join(" ", words);
+        Entries current = entries;
+        Set<String> keys = new HashSet<>();
+        List<Ranked> matches = new ArrayList<>();
+        int scanned = 0;
+        for (String token : current.tokens.subSet(selective, selective + Character.MAX_VALUE)) {
+            if (matches.size() >= MAX_CANDIDATES || ++scanned > MAX_SCANNED) {
+                break;
+            }
+            String key = token.substring(token.indexOf(SEPARATOR) + 1);
+            if (!keys.add(key)) {
+                continue;
+            }
+            Suggestion suggestion = current.suggestions.get(key);
+            if (suggestion != null && suggestion.matches(words) && suggestion.isVisible(accountId, isMember, isFriend)) {
+                matches.add(new Ranked(suggestion, normalized, isMember, isFriend));
+            }
+        }
+        Collections.sort(matches);
+
+        List<Suggestion> result = new ArrayList<>();
+        for (int i = 0; i < matches.size() && i < limit; i++) {
+            result.add(matches.get(i).suggestion);
+        }
+        return result;
+    }
+
+    /**
+     * Adds or replaces the suggestion of an account, group or medium. Media need a transaction to find their root folder.
+     *
+     * @param model Account, Group or Media, other models are ignored
+     */
+    public void index(Object model) {
+        if (model instanceof Account) {
+            Account account = (Account) model;
+            if (account.role == AccountRole.DUMMY) {
+                remove(USER, account.id);
+            } else {
+                put(Suggestion.account(account.id, account.name, account.firstname, account.lastname, account.avatar));
+            }
+        } else if (model instanceof Group) {
+            Group group = (Group) model;
+            put(Suggestion.group(group.id, group.title, group.groupType, group.hasAvatar));
+            // the group type decides whether its files are public
+            synchronized (this) {
+                for (String key : new ArrayList<>(entries.mediaByGroup.getOrDefault(group.id, Collections.emptySet()))) {
+                    Suggestion suggestion = entries.suggestions.get(key);
+                    if (suggestion != null) {
+                        entries.put(suggestion.withPublic(group.groupType == GroupType.open));
+                    }
+                }
+            }
+        } else if (model instanceof Media) {
+            Media medium = (Media) model;
+            Folder root = medium.findRoot();
+            put(Suggestion.medium(medium.id, medium.fileName,
+                    root.group != null && root.group.groupType == GroupType.open,
+                    root.group != null ? root.group.id : null,
+                    root.account != null ? root.owner.id : null));
+        }
+    }
+
+    /**
+     * @param type user, group or medium
+     * @param id   Id of the account, group or medium
+     */
+    public synchronized void remove(String type, Long id) {
+        entries.remove(type + ":" + id);
+    }
+
+    private synchronized void put(Suggestion suggestion) {
+        entries.put(suggestion);
+    }
+
+    /**
+     * Loads all accounts, groups and media with four queries and replaces the index.
+     * Changes indexed while loading may get lost until the next rebuild.
+     */
+    @SuppressWarnings("unchecked")
+    public void rebuild() {
+        try {
+            long start = System.currentTimeMillis();
+            Entries loaded = jpaApi.withTransaction("default", true, () -> {
+                Entries fresh = new Entries();
+
+                List<Object[]> accounts = jpaApi.em()
+                        .createQuery("SELECT a.id, a.name, a.firstname, a.lastname, a.avatar FROM Account a WHERE a.role IS NULL OR a.role <> :dummy")
+                        .setParameter("dummy", AccountRole.DUMMY)
+                        .getResultList();
+                for (Object[] row : accounts) {
+                    fresh.put(Suggestion.account((Long) row[0], (String) row[1], (String) row[2], (String) row[3], (String) row[4]));
+                }
+
+                Map<Long, GroupType> groupTypes = new HashMap<>();
+                List<Object[]> groups = jpaApi.em()
+                        .createQuery("SELECT g.id, g.title, g.groupType, g.hasAvatar FROM Group g")
+                        .getResultList();
+                for (Object[] row : groups) {
+                    groupTypes.put((Long) row[0], (GroupType) row[2]);
+                    fresh.put(Suggestion.group((Long) row[0], (String) row[1], (GroupType) row[2], (Boolean) row[3]));
+                }
+
+                // root folders are resolved in memory, folders are few compared to media
+                Map<Long, Object[]> folders = new HashMap<>();
+                List<Object[]> folderRows = jpaApi.em()
+                        .createQuery("SELECT f.id, f.parent.id, f.group.id, f.account.id, f.owner.id FROM Folder f")
+                        .getResultList();
+                for (Object[] row : folderRows) {
+                    folders.put((Long) row[0], row);
+                }
+
+                List<Object[]> media = jpaApi.em()
+                        .createQuery("SELECT m.id, m.fileName, m.folder.id FROM Media m")
+                        .getResultList();
+                for (Object[] row : media) {
+                    Object[] root = root(folders, (Long) row[2]);
+                    if (root == null) {
+                        continue;
+                    }
+                    Long groupId = (Long) root[2];
+                    fresh.put(Suggestion.medium((Long) row[0], (String) row[1],
+                            groupId != null && groupTypes.get(groupId) == GroupType.open,
+                            groupId,
+                            root[3] != null ? (Long) root[4] : null));
+                }
+                return fresh;
+            });
+
+            synchronized (this) {
+                entries = loaded;
+            }
+            LOG.info("Loaded " + loaded.suggestions.size() + " search suggestions in " + (System.currentTimeMillis() - start) + " ms");
+        } catch (RuntimeException e) {
+            LOG.error("Could not load search suggestions", e);
+        }
+    }
+
+    public int size() {
+        return entries.suggestions.size();
+    }
+
+    private static Object[] root(Map<Long, Object[]> folders, Long folderId) {
+        Object[] folder = folders.get(folderId);
+        // bounded, a broken parent chain must not loop
+        for (int depth = 0; folder != null && folder[1] != null && depth < 100; depth++) {
+            folder = folders.get(folder[1]);
+        }
+        return folder;
+    }
+
+    static List<String> words(String text) {
+        List<String> words = new ArrayList<>();
+        if (text != null) {
+            Matcher matcher = WORD.matcher(text.toLowerCase());
+            while (matcher.find()) {
+                words.add(matcher.group());
+            }
+        }
+        return words;
+    }
+
+    /**
+     * Suggestions by key and their words, each word is stored as word + SEPARATOR + key.
+     * The keys of group media are also kept by group, a changed group type updates only these.
+     */
+    private static class Entries {
+        final ConcurrentHashMap<String, Suggestion> suggestions = new ConcurrentHashMap<>();
+        final ConcurrentSkipListSet<String> tokens = new ConcurrentSkipListSet<>();
+        // changed under the lock of the SuggestionIndex (or before the entries are published)
+        final Map<Long, Set<String>> mediaByGroup = new HashMap<>();
+
+        void put(Suggestion suggestion) {
+            String key = suggestion.key();
+            Suggestion previous = suggestions.put(key, suggestion);
+            if (previous != null) {
+                unlink(previous, key);
+            }
+            for (String word : suggestion.words) {
+                tokens.add(word + SEPARATOR + key);
+            }
+            if (MEDIUM.equals(suggestion.type) && suggestion.groupId != null) {
+                mediaByGroup.computeIfAbsent(suggestion.groupId, id -> new HashSet<>()).add(key);
+            }
+        }
+
+        void remove(String key) {
+            Suggestion previous = suggestions.remove(key);
+            if (previous != null) {
+                unlink(previous, key);
+            }
+        }
+
+        private void unlink(Suggestion previous, String key) {
+            for (String word : previous.words) {
+                tokens.remove(word + SEPARATOR + key);
+            }
+            if (MEDIUM.equals(previous.type) && previous.groupId != null) {
+                Set<String> media = mediaByGroup.get(previous.groupId);
+                if (media != null) {
+                    media.remove(key);
+                    if (media.isEmpty()) {
+                        mediaByGroup.remove(previous.groupId);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * A suggestion as sent to the browser, the visibility fields stay on the server.
+     */
+    public static class Suggestion {
+        public final String type;
+        public final Long id;
+        public final String label;
+        public final String initial;
+        public final String avatar;
+        public final GroupType groupType;
+        public final boolean customAvatar;
+
+        @JsonIgnore
+        public final boolean isPublic;
+        @JsonIgnore
+        public final Long groupId;
+        @JsonIgnore
+        public final Long feedId;
+        @JsonIgnore
+        public final List<String> words;
+
+        private Suggestion(String type, Long id, String label, String initial, String avatar, GroupType groupType,
+                           boolean customAvatar, boolean isPublic, Long groupId, Long feedId) {
+            this.type = type;
+            this.id = id;
+            this.label = label != null ? label : "";
+            this.initial = initial;
+            this.avatar = avatar;
+            this.groupType = groupType;
+            this.customAvatar = customAvatar;
+            this.isPublic = isPublic;
+            this.groupId = groupId;
+            this.feedId = feedId;
+            this.words = new ArrayList<>(new LinkedHashSet<>(words(this.label)));
+        }
+
+        static Suggestion account(Long id, String name, String firstname, String lastname, String avatar) {
+            String initial = (firstname != null && !firstname.isEmpty() ? firstname.substring(0, 1) : "")
+                    + (lastname != null && !lastname.isEmpty() ? lastname.substring(0, 1) : "");
+            return new Suggestion(USER, id, name, initial.toUpperCase(), avatar, null, "custom".equals(avatar), true, null, null);
+        }
+
+        static Suggestion group(Long id, String title, GroupType groupType, Boolean hasAvatar) {
+            return new Suggestion(GROUP, id, title, null, null, groupType, Boolean.TRUE.equals(hasAvatar), true, null, null);
+        }
+
+        static Suggestion medium(Long id, String fileName, boolean isPublic, Long groupId, Long feedId) {
+            return new Suggestion(MEDIUM, id, fileName, null, null, null, false, isPublic, groupId, feedId);
+        }
+
+        Suggestion withPublic(boolean isPublic) {
+            return new Suggestion(type, id, label, initial, avatar, groupType, customAvatar, isPublic, groupId, feedId);
+        }
+
+        String key() {
+            return type + ":" + id;
+        }
+
+        boolean matches(List<String> queryWords) {
+            for (String queryWord : queryWords) {
+                boolean found = false;
+                for (String word : words) {
+                    if (word.startsWith(queryWord)) {
+                        found = true;
+                        break;
+                    }
+                }
+                if (!found) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        boolean isVisible(long accountId, LongPredicate isMember, LongPredicate isFriend) {
+            return isPublic
+                    || (groupId != null && isMember.test(groupId))
+                    || (feedId != null && (feedId == accountId || isFriend.test(feedId)));
+        }
+
+        boolean isRelated(LongPredicate isMember, LongPredicate isFriend) {
+            switch (type) {
+                case USER:
+                    return isFriend.test(id);
+                case GROUP:
+                    return isMember.test(id);
+                default:
+                    return groupId != null && isMember.test(groupId) || feedId != null && isFriend.test(feedId);
+            }
+        }
+    }
+
+    private static class Ranked implements Comparable<Ranked> {
+        final Suggestion suggestion;
+        final int rank;
+
+        Ranked(Suggestion suggestion, String query, LongPredicate isMember, LongPredicate isFriend) {
+            this.suggestion = suggestion;
+            int typeRank = USER.equals(suggestion.type) ? 0 : GROUP.equals(suggestion.type) ? 1 : 2;
+            this.rank = (suggestion.isRelated(isMember, isFriend) ? 0 : 8)
+                    + (suggestion.label.toLowerCase().startsWith(query) ? 0 : 4)
+                    + typeRank;
+        }
+
+        @Override
+        public int compareTo(Ranked other) {
+            int result = Integer.compare(rank, other.rank);
+            if (result == 0) {
+                result = Integer.compare(suggestion.label.length(), other.suggestion.label.length());
+            }
+            return result != 0 ? result : suggestion.label.compareToIgnoreCase(other.suggestion.label);
+        }
+    }
+}
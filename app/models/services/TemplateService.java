@@ -4,20 +4,44 @@ import org.joda.time.DateTime;
 import org.joda.time.Days;
 import play.Logger;
 
-import java.lang.reflect.InvocationTargetException;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.net.JarURLConnection;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.Enumeration;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.jar.JarEntry;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
  * Helper service to render templates. This service also provides helper methods to use in templates.
+ * The render methods are resolved once per template path and parameter classes and kept as method handles.
  */
 public class TemplateService {
     /**
      * Singleton instance
      */
-    private static TemplateService instance = null;
+    private static final TemplateService instance = new TemplateService();
+
+    /**
+     * Render method handles of type (Object[])Object by template path and parameter classes
+     */
+    private final Map<String, MethodHandle> renderMethods = new ConcurrentHashMap<>();
 
     /**
      * Private constructor for singleton instance
@@ -30,10 +54,6 @@ public class TemplateService {
      * @return EmailHandler instance
      */
     public static TemplateService getInstance() {
-        if (TemplateService.instance == null) {
-            TemplateService.instance = new TemplateService();
-        }
-
         return TemplateService.instance;
     }
 
@@ -68,28 +88,129 @@ public class TemplateService {
      * @return Rendered content as String or empty String on exception
      */
     public String getRenderedTemplate(String templatePath, Object... templateParameters) {
+        MethodHandle renderMethod;
         try {
-            // determine class of template, retrieve render method of template and invoke render()
-            Class<?> templateClass = Class.forName(templatePath);
-            Method renderMethod = templateClass.getDeclaredMethod("render", this.getParameterClasses(templateParameters));
-
-            return renderMethod.invoke(null, templateParameters).toString().trim();
+            renderMethod = this.getRenderMethod(templatePath, this.getParameterClasses(templateParameters));
         } catch (ClassNotFoundException e) {
             Logger.error("Could not get template class for template path: " + templatePath + "(" + e.getMessage() + ")");
+            return "";
         } catch (NoSuchMethodException e) {
             Logger.error("Could not get render method for template path: " + templatePath + "(" + e.getMessage() + ")");
-        } catch (InvocationTargetException e) {
-            Logger.error("Invocation exception while render() template path: " + templatePath + "(" + e.getMessage() + ")");
+            return "";
         } catch (IllegalAccessException e) {
             Logger.error("IllegalAccessException exception while render() template path: " + templatePath + "(" + e.getMessage() + ")");
+            return "";
         } catch (Exception e) {
             Logger.error("Exception while trying to render template path: " + templatePath + "(" + e.getMessage() + ")");
+            return "";
+        }
+
+        try {
+            return ((Object) renderMethod.invokeExact(templateParameters)).toString().trim();
+        } catch (Throwable e) {
+            Logger.error("Invocation exception while render() template path: " + templatePath + "(" + e.getMessage() + ")");
         }
 
         // previous exception is logged, return empty String
         return "";
     }
 
+    /**
+     * Returns the render method of a template for the given parameter classes, resolves it on first use.
+     *
+     * @param templatePath Template path
+     * @param parameterClasses Classes of the template parameters
+     * @return Method handle of type (Object[])Object
+     */
+    protected MethodHandle getRenderMethod(String templatePath, Class[] parameterClasses)
+            throws ClassNotFoundException, NoSuchMethodException, IllegalAccessException {
+        String key = TemplateService.getKey(templatePath, parameterClasses);
+        MethodHandle renderMethod = this.renderMethods.get(key);
+        if (renderMethod == null) {
+            // determine class of template and retrieve render method of template
+            Class<?> templateClass = Class.forName(templatePath);
+            renderMethod = TemplateService.toHandle(templateClass.getDeclaredMethod("render", parameterClasses));
+            this.renderMethods.put(key, renderMethod);
+        }
+
+        return renderMethod;
+    }
+
+    /**
+     * Resolves the render methods of all templates in the given packages and their sub packages,
+     * so the first notifications and emails do not pay for the reflection.
+     *
+     * @param templatePackages Template packages (e.g. views.html.Notification)
+     * @return Number of resolved render methods
+     */
+    public int warmUp(String... templatePackages) {
+        int resolved = 0;
+        ClassLoader classLoader = TemplateService.class.getClassLoader();
+        for (String templatePackage : templatePackages) {
+            String path = templatePackage.replace('.', '/');
+            try {
+                for (URL url : Collections.list(classLoader.getResources(path))) {
+                    for (String className : TemplateService.findClassNames(url, path)) {
+                        for (Method method : Class.forName(className, true, classLoader).getDeclaredMethods()) {
+                            if (method.getName().equals("render") && Modifier.isStatic(method.getModifiers())) {
+                                this.renderMethods.putIfAbsent(
+                                        TemplateService.getKey(className, method.getParameterTypes()),
+                                        TemplateService.toHandle(method)
+                                );
+                                resolved++;
+                            }
+                        }
+                    }
+                }
+            } catch (IOException | URISyntaxException | ClassNotFoundException | IllegalAccessException e) {
+                Logger.warn("Could not resolve templates of package: " + templatePackage + "(" + e.getMessage() + ")");
+            }
+        }
+
+        return resolved;
+    }
+
+    private static String getKey(String templatePath, Class[] parameterClasses) {
+        StringBuilder key = new StringBuilder(templatePath).append('(');
+        for (Class parameterClass : parameterClasses) {
+            key.append(parameterClass.getName()).append(',');
+        }
+
+        return key.append(')').toString();
+    }
+
+    private static MethodHandle toHandle(Method renderMethod) throws IllegalAccessException {
+        return MethodHandles.publicLookup().unreflect(renderMethod)
+                .asSpreader(Object[].class, renderMethod.getParameterCount())
+                .asType(MethodType.methodType(Object.class, Object[].class));
+    }
+
+    /**
+     * Returns the names of the top level classes below a package, either from a directory or a jar.
+     */
+    private static List<String> findClassNames(URL url, String path) throws IOException, URISyntaxException {
+        List<String> classNames = new ArrayList<>();
+        if (url.getProtocol().equals("jar")) {
+            Enumeration<JarEntry> entries = ((JarURLConnection) url.openConnection()).getJarFile().entries();
+            for (JarEntry entry : Collections.list(entries)) {
+                if (entry.getName().startsWith(path + "/")) {
+                    classNames.add(entry.getName());
+                }
+            }
+        } else if (url.getProtocol().equals("file")) {
+            Path directory = Paths.get(url.toURI());
+            try (Stream<Path> files = Files.walk(directory)) {
+                classNames.addAll(files.map(file -> path + "/" + directory.relativize(file).toString().replace('\\', '/'))
+                        .collect(Collectors.toList()));
+            }
+        }
+
+        return classNames.stream()
+                .filter(name -> name.endsWith(".class") && !name.contains("$"))
+                .map(name -> name.substring(0, name.length() - ".class".length()).replace('/', '.'))
+                .collect(Collectors.toList());
+    }
+
     /**
      * Get a (correct) difference between two dates using Joda-Time API.
      * See: http://stackoverflow.com/a/1555307
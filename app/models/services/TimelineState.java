@@ -0,0 +1,38 @@
+package models.services;
+
+import javax.inject.Singleton;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Shared state of the materialized newsstream (see TimelineManager). Until the backfill after a deployment
+ * has filled the timeline, streams are read with the PostManager queries. Only one rebuild of all
+ * timelines runs at a time.
+ */
+@Singleton
+public class TimelineState {
+
+    private volatile boolean ready;
+    private final AtomicBoolean rebuilding = new AtomicBoolean();
+
+    /**
+     * @return True, if the timeline is complete and may serve the streams
+     */
+    public boolean isReady() {
+        return ready;
+    }
+
+    public void setReady() {
+        ready = true;
+    }
+
+    /**
+     * @return True, if the caller may rebuild all timelines, false if a rebuild is already running
+     */
+    public boolean startRebuild() {
+        return rebuilding.compareAndSet(false, true);
+    }
+
+    public void finishRebuild() {
+        rebuilding.set(false);
+    }
+}
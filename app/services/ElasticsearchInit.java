@@ -38,8 +38,7 @@ public class ElasticsearchInit implements DatabaseService {
             LOG.info("... success");
             LOG.info("trying to create HTWPlus index and mapping");
             if (!elasticsearchService.isIndexExists()) {
-                elasticsearchService.createAnalyzer();
-                elasticsearchService.createMapping();
+                elasticsearchService.activateIndex(elasticsearchService.createIndex(false));
                 LOG.info("... success");
             } else {
                 LOG.info("... failed (it already exists?)");
@@ -3,7 +3,10 @@ package services;
 import akka.actor.ActorSystem;
 import akka.actor.Cancellable;
 import managers.MediaManager;
+import managers.TimelineManager;
 import models.services.EmailService;
+import models.services.IndexOutbox;
+import models.services.SuggestionIndex;
 import org.joda.time.DateTime;
 import org.joda.time.Seconds;
 import play.api.inject.ApplicationLifecycle;
@@ -23,14 +26,20 @@ public class ScheduleService {
 
     private EmailService emailService;
     private MediaManager mediaManager;
+    private TimelineManager timelineManager;
+    private IndexOutbox indexOutbox;
+    private SuggestionIndex suggestionIndex;
     private ActorSystem system;
     private ApplicationLifecycle lifecycle;
 
     @Inject
-    public ScheduleService(EmailService emailService, MediaManager mediaManager, ApplicationLifecycle lifecycle) {
+    public ScheduleService(EmailService emailService, MediaManager mediaManager, TimelineManager timelineManager, IndexOutbox indexOutbox, SuggestionIndex suggestionIndex, ApplicationLifecycle lifecycle) {
         system = ActorSystem.create();
         this.emailService = emailService;
         this.mediaManager = mediaManager;
+        this.timelineManager = timelineManager;
+        this.indexOutbox = indexOutbox;
+        this.suggestionIndex = suggestionIndex;
         this.lifecycle = lifecycle;
         schedule();
     }
@@ -68,6 +77,54 @@ public class ScheduleService {
             cleanUpScheudler.cancel();
             return CompletableFuture.completedFuture(null);
         });
+
+        // fill the stream timeline once, if it is still empty. Runs at once, the fan-out of new posts
+        // must not make the timeline look filled before the check. Streams use the PostManager queries until then.
+        Cancellable timelineBackfill = system.scheduler().scheduleOnce(
+                Duration.create(0, TimeUnit.MILLISECONDS),
+                () -> {
+                    timelineManager.backfill();
+                },
+                system.dispatcher()
+        );
+
+        // cancel it on application stop
+        lifecycle.addStopHook(() -> {
+            timelineBackfill.cancel();
+            return CompletableFuture.completedFuture(null);
+        });
+
+        // send pending search index changes to Elasticsearch
+        Cancellable indexOutboxDispatcher = system.scheduler().schedule(
+                Duration.create(10, TimeUnit.SECONDS),
+                Duration.create(indexOutbox.interval(), TimeUnit.MILLISECONDS),
+                () -> {
+                    indexOutbox.drain();
+                },
+                system.dispatcher()
+        );
+
+        // cancel it on application stop
+        lifecycle.addStopHook(() -> {
+            indexOutboxDispatcher.cancel();
+            return CompletableFuture.completedFuture(null);
+        });
+
+        // load the search suggestions and reload them regularly
+        Cancellable suggestionRefresh = system.scheduler().schedule(
+                Duration.create(10, TimeUnit.SECONDS),
+                Duration.create(suggestionIndex.refresh(), TimeUnit.MILLISECONDS),
+                () -> {
+                    suggestionIndex.rebuild();
+                },
+                system.dispatcher()
+        );
+
+        // cancel it on application stop
+        lifecycle.addStopHook(() -> {
+            suggestionRefresh.cancel();
+            return CompletableFuture.completedFuture(null);
+        });
     }
 
     /**
@@ -0,0 +1,57 @@
+package benchmarks;
+
+import models.services.TemplateService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.lang.reflect.Method;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per render overhead of TemplateService.getRenderedTemplate():
+ * - reflective: the former lookup on every call (Class.forName, getDeclaredMethod, Method.invoke)
+ * - cached: the current method handle cache
+ * - direct: the compiled render method without dispatch, the lower bound
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class TemplateServiceBenchmark {
+
+    private static final String TEMPLATE = "views.html.Test.template_test";
+
+    private Date date;
+    private Integer random;
+
+    @Setup
+    public void setup() {
+        date = new Date();
+        random = 42;
+        TemplateService.getInstance().getRenderedTemplate(TEMPLATE, date, random);
+    }
+
+    @Benchmark
+    public String reflective() throws Exception {
+        Object[] templateParameters = {date, random};
+        Class<?> templateClass = Class.forName(TEMPLATE);
+        Method renderMethod = templateClass.getDeclaredMethod("render", Date.class, Integer.class);
+
+        return renderMethod.invoke(null, templateParameters).toString().trim();
+    }
+
+    @Benchmark
+    public String cached() {
+        return TemplateService.getInstance().getRenderedTemplate(TEMPLATE, date, random);
+    }
+
+    @Benchmark
+    public String direct() {
+        return views.html.Test.template_test.render(date, random).toString().trim();
+    }
+}
@@ -0,0 +1,13 @@
+# --- !Ups
+
+ALTER TABLE post ADD COLUMN IF NOT EXISTS comment_count integer NOT NULL DEFAULT 0;
+ALTER TABLE post ADD COLUMN IF NOT EXISTS last_comment_at timestamp;
+
+UPDATE post p SET comment_count = c.comment_count, last_comment_at = c.last_comment_at
+FROM (SELECT parent_id, COUNT(id) AS comment_count, MAX(created_at) AS last_comment_at FROM post WHERE parent_id IS NOT NULL GROUP BY parent_id) c
+WHERE p.id = c.parent_id;
+
+# --- !Downs
+
+ALTER TABLE post DROP COLUMN IF EXISTS last_comment_at;
+ALTER TABLE post DROP COLUMN IF EXISTS comment_count;
@@ -0,0 +1,11 @@
+# --- !Ups
+
+DELETE FROM notification n USING notification newer
+WHERE n.reference_type = 'Post' AND newer.reference_type = 'Post'
+AND n.reference_id = newer.reference_id AND n.recipient_id = newer.recipient_id AND n.id < newer.id;
+
+CREATE UNIQUE INDEX IF NOT EXISTS notification_post_recipient_idx ON notification (reference_id, reference_type, recipient_id) WHERE reference_type = 'Post';
+
+# --- !Downs
+
+DROP INDEX IF EXISTS notification_post_recipient_idx;
@@ -0,0 +1,107 @@
+import base.FakeApplicationTest;
+import controllers.AuthorizationContext;
+import models.Account;
+import models.Group;
+import models.Post;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
+import org.junit.Test;
+import play.db.jpa.JPAApi;
+import play.mvc.Result;
+import play.test.Helpers;
+
+import java.util.Arrays;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+/**
+ * Tests, if rendering a stream page runs each relation query of the AuthorizationContext once per request,
+ * no matter how many posts and comments ask the Secured checks.
+ */
+public class AuthorizationContextTest extends FakeApplicationTest {
+
+    /**
+     * Tests the group stream, which checks the memberships for every post and comment.
+     */
+    @Test
+    public void testGroupStreamLoadsRelationsOnce() {
+        Account viewer = this.getTestAccount(61);
+        Account friend = this.getTestAccount(62);
+        testAccounts.addAll(Arrays.asList(viewer, friend));
+        Group group = this.getTestGroup(61, friend);
+        testGroups.add(group);
+        this.establishGroupMembership(viewer, group);
+        this.establishFriendshipTestAccounts(viewer, friend);
+        createPostsWithComments(viewer, friend, null, group);
+
+        Statistics statistics = statistics(() -> route(viewer, "/group/" + group.id + "/stream"));
+
+        assertThat(executions(statistics, AuthorizationContext.GROUPS_QUERY)).isEqualTo(1);
+        assertThat(executions(statistics, AuthorizationContext.BOOKMARKS_QUERY)).isEqualTo(1);
+        assertThat(executions(statistics, AuthorizationContext.FRIENDS_QUERY)).isLessThanOrEqualTo(1);
+    }
+
+    /**
+     * Tests the profile stream of a friend, which checks the friendships for every post and comment.
+     */
+    @Test
+    public void testProfileStreamLoadsRelationsOnce() {
+        Account viewer = this.getTestAccount(63);
+        Account friend = this.getTestAccount(64);
+        testAccounts.addAll(Arrays.asList(viewer, friend));
+        this.establishFriendshipTestAccounts(viewer, friend);
+        createPostsWithComments(viewer, friend, friend, null);
+
+        Statistics statistics = statistics(() -> route(viewer, "/user/" + friend.id + "/stream"));
+
+        assertThat(executions(statistics, AuthorizationContext.FRIENDS_QUERY)).isEqualTo(1);
+        assertThat(executions(statistics, AuthorizationContext.BOOKMARKS_QUERY)).isEqualTo(1);
+        assertThat(executions(statistics, AuthorizationContext.GROUPS_QUERY)).isLessThanOrEqualTo(1);
+    }
+
+    /**
+     * Writes a few posts of both accounts to the given profile or group, each commented by the other account.
+     */
+    private static void createPostsWithComments(Account a, Account b, Account account, Group group) {
+        jpaApi().withTransaction(() -> {
+            for (int i = 0; i < 4; i++) {
+                Account owner = i % 2 == 0 ? a : b;
+                Post post = createTestPost(owner, account, group, null);
+                createTestPost(owner == a ? b : a, null, null, post);
+            }
+        });
+    }
+
+    /**
+     * Requests the given page as the given account.
+     */
+    private static void route(Account account, String uri) {
+        Result result = Helpers.route(app, Helpers.fakeRequest(Helpers.GET, uri).session("id", account.id.toString()));
+        assertThat(result.status()).as(uri).isEqualTo(Helpers.OK);
+    }
+
+    /**
+     * Runs the request with Hibernate statistics enabled.
+     *
+     * @return Statistics of the request
+     */
+    private static Statistics statistics(Runnable request) {
+        JPAApi jpaApi = jpaApi();
+        SessionFactory sessionFactory = jpaApi.withTransaction(() -> jpaApi.em().getEntityManagerFactory().unwrap(SessionFactory.class));
+        Statistics statistics = sessionFactory.getStatistics();
+
+        boolean enabled = statistics.isStatisticsEnabled();
+        statistics.clear();
+        statistics.setStatisticsEnabled(true);
+        try {
+            request.run();
+        } finally {
+            statistics.setStatisticsEnabled(enabled);
+        }
+        return statistics;
+    }
+
+    private static long executions(Statistics statistics, String jpql) {
+        return statistics.getQueryStatistics(jpql).getExecutionCount();
+    }
+}
@@ -0,0 +1,204 @@
+import base.FakeApplicationTest;
+import managers.*;
+import models.*;
+import models.enums.GroupType;
+import models.enums.LinkType;
+import org.junit.Before;
+import org.junit.Test;
+import play.db.jpa.JPAApi;
+
+import javax.persistence.Query;
+import java.util.*;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+/**
+ * Tests, if the set based stream queries of PostManager return the same posts
+ * as the former implementation, which bound groups, contacts and bookmarks as IN lists.
+ */
+public class StreamQueryTest extends FakeApplicationTest {
+
+    private static final String[] FILTERS = {"all", "group", "account", "contact", "visitor", "bookmark"};
+
+    private static JPAApi jpaApi;
+    private static PostManager postManager;
+    private static FriendshipManager friendshipManager;
+    private static GroupAccountManager groupAccountManager;
+    private static PostBookmarkManager postBookmarkManager;
+
+    @Before
+    public void createFixtures() {
+        if (!testAccounts.isEmpty()) {
+            return;
+        }
+
+        jpaApi = jpaApi();
+        postManager = instanceOf(PostManager.class);
+        friendshipManager = instanceOf(FriendshipManager.class);
+        groupAccountManager = instanceOf(GroupAccountManager.class);
+        postBookmarkManager = instanceOf(PostBookmarkManager.class);
+
+        // a and b are contacts, c only sent a request to a
+        Account a = this.getTestAccount(41);
+        Account b = this.getTestAccount(42);
+        Account c = this.getTestAccount(43);
+        testAccounts.addAll(Arrays.asList(a, b, c));
+        this.establishFriendshipTestAccounts(a, b);
+
+        // a closed group of a with b as member and c as requester, an open group of a and one of c
+        Group closed = this.getTestGroup(41, a);
+        Group open = this.getTestGroup(42, a);
+        Group foreign = this.getTestGroup(43, c);
+        testGroups.addAll(Arrays.asList(closed, open, foreign));
+        this.establishGroupMembership(b, closed);
+
+        jpaApi.withTransaction(() -> {
+            friendshipManager.create(new Friendship(c, a, LinkType.request));
+            groupAccountManager.create(new GroupAccount(closed, c, LinkType.request));
+            openGroup(open);
+            openGroup(foreign);
+
+            // posts on every kind of stream
+            Post ownA = createTestPost(a, a, null, null);
+            createTestPost(b, b, null, null);
+            createTestPost(b, a, null, null);
+            createTestPost(a, b, null, null);
+            createTestPost(c, c, null, null);
+            createTestPost(c, a, null, null);
+            createTestPost(a, null, closed, null);
+            Post groupB = createTestPost(b, null, closed, null);
+            createTestPost(a, null, open, null);
+            Post foreignC = createTestPost(c, null, foreign, null);
+            createTestPost(b, null, null, ownA);
+
+            postBookmarkManager.create(new PostBookmark(a, groupB));
+            postBookmarkManager.create(new PostBookmark(a, foreignC));
+        });
+    }
+
+    private static void openGroup(Group group) {
+        Group storedGroup = jpaApi.em().find(Group.class, group.id);
+        storedGroup.groupType = GroupType.open;
+    }
+
+    /**
+     * Tests, if every filter returns the same posts in the same order and the same count.
+     */
+    @Test
+    public void testStreamQueriesMatchFormerImplementation() {
+        jpaApi.withTransaction(() -> {
+            for (Account fixture : testAccounts) {
+                Account account = jpaApi.em().find(Account.class, fixture.id);
+                for (String filter : FILTERS) {
+                    List<Long> expected = ids(formerStream(account, filter));
+
+                    assertThat(ids(postManager.findStreamForAccount(account, filter, 0, 0))).as(filter).isEqualTo(expected);
+                    assertThat(postManager.countStreamForAccount(account, filter)).as(filter).isEqualTo(expected.size());
+                }
+            }
+        });
+    }
+
+    /**
+     * Tests, if walking a stream with cursors returns the same posts as reading it at once.
+     */
+    @Test
+    public void testCursorPagesMatchFullStream() {
+        jpaApi.withTransaction(() -> {
+            for (Account fixture : testAccounts) {
+                Account account = jpaApi.em().find(Account.class, fixture.id);
+                for (String filter : FILTERS) {
+                    List<Long> expected = ids(postManager.findStreamForAccount(account, filter, 0, 0));
+                    List<Long> paged = new ArrayList<>();
+
+                    List<Post> page = postManager.findStreamForAccount(account, filter, 2, 0);
+                    while (!page.isEmpty()) {
+                        paged.addAll(ids(page));
+                        page = postManager.findStreamForAccount(account, filter, StreamCursor.of(page.get(page.size() - 1)), 2);
+                    }
+
+                    assertThat(paged).as(filter).isEqualTo(expected);
+                }
+            }
+        });
+    }
+
+    /**
+     * The former PostManager.streamForAccount(), kept as reference.
+     */
+    @SuppressWarnings("unchecked")
+    private static List<Post> formerStream(Account account, String filter) {
+        List<Group> groupList = filter.equals("visitor")
+                ? groupAccountManager.findPublicEstablished(account)
+                : groupAccountManager.findEstablished(account);
+        List<Account> accountList = friendshipManager.findFriends(account);
+        List<Post> bookmarkList = postBookmarkManager.findByAccount(account);
+
+        Map<String, String> streamClausesMap = new HashMap<>();
+        List<String> streamClausesList = new ArrayList<>();
+
+        streamClausesMap.put("accountPosts", " (p.owner = (:account) AND p.account = (:account)) ");
+        if (!groupList.isEmpty()) {
+            streamClausesMap.put("accountGroupPosts", " (p.owner = (:account) AND p.group IN (:groupList)) ");
+            streamClausesMap.put("allGroupPosts", " (p.group IN (:groupList)) ");
+        }
+        if (!accountList.isEmpty()) {
+            streamClausesMap.put("accountContactPosts", " (p.owner = (:account) AND p.account IN (:accountList)) ");
+            streamClausesMap.put("contactToAccountPosts", " (p.owner IN (:accountList) AND p.account = (:account)) ");
+            streamClausesMap.put("contactPosts", " (p.owner IN (:accountList) AND p.account = p.owner) ");
+        }
+        if (!bookmarkList.isEmpty()) {
+            streamClausesMap.put("bookmarkPosts", " (p IN (:bookmarkList)) ");
+        }
+
+        switch (filter) {
+            case "group":
+                streamClausesList.add(streamClausesMap.get("allGroupPosts"));
+                break;
+            case "account":
+                streamClausesList.add(streamClausesMap.get("accountPosts"));
+                streamClausesList.add(streamClausesMap.get("accountContactPosts"));
+                streamClausesList.add(streamClausesMap.get("accountGroupPosts"));
+                break;
+            case "contact":
+                streamClausesList.add(streamClausesMap.get("contactToAccountPosts"));
+                streamClausesList.add(streamClausesMap.get("contactPosts"));
+                break;
+            case "visitor":
+                streamClausesList.add(streamClausesMap.get("accountGroupPosts"));
+                streamClausesList.add(streamClausesMap.get("contactToAccountPosts"));
+                streamClausesList.add(streamClausesMap.get("accountPosts"));
+                break;
+            case "bookmark":
+                streamClausesList.add(streamClausesMap.get("bookmarkPosts"));
+                break;
+            default:
+                streamClausesList.add(streamClausesMap.get("accountPosts"));
+                streamClausesList.add(streamClausesMap.get("accountGroupPosts"));
+                streamClausesList.add(streamClausesMap.get("allGroupPosts"));
+                streamClausesList.add(streamClausesMap.get("accountContactPosts"));
+                streamClausesList.add(streamClausesMap.get("contactToAccountPosts"));
+                streamClausesList.add(streamClausesMap.get("contactPosts"));
+                break;
+        }
+        streamClausesList.removeAll(Collections.singleton(null));
+
+        String completeQuery = "SELECT DISTINCT p FROM Post p WHERE 1=2 ";
+        for (String clause : streamClausesList) {
+            completeQuery += " OR " + clause;
+        }
+        completeQuery += " ORDER BY p.updatedAt DESC, p.id DESC";
+
+        Query query = jpaApi.em().createQuery(completeQuery);
+        if (completeQuery.contains("(:account)"))
+            query.setParameter("account", account);
+        if (completeQuery.contains("(:groupList)"))
+            query.setParameter("groupList", groupList);
+        if (completeQuery.contains("(:accountList)"))
+            query.setParameter("accountList", accountList);
+        if (completeQuery.contains("(:bookmarkList)"))
+            query.setParameter("bookmarkList", bookmarkList);
+
+        return query.getResultList();
+    }
+}
@@ -32,4 +32,16 @@ public class TemplateTest {
         assertThat(renderedTest).contains(String.valueOf(date.getTime()));
         assertThat(renderedTest).contains(String.valueOf(random));
     }
+
+    /**
+     * Tests, if the warm-up resolves the templates of a package and rendering still works afterwards.
+     */
+    @Test
+    public void testWarmUp() {
+        assertThat(TemplateService.getInstance().warmUp("views.html.Test")).isGreaterThan(0);
+
+        String renderedTest = TemplateService.getInstance()
+                .getRenderedTemplate("views.html.Test.template_test", new Date(), 1);
+        assertThat(renderedTest).contains("TEMPLATE TEST");
+    }
 }
@@ -0,0 +1,162 @@
+import base.FakeApplicationTest;
+import managers.PostManager;
+import managers.StreamCursor;
+import models.Account;
+import models.Group;
+import models.Post;
+import models.services.TimelineState;
+import org.junit.Before;
+import org.junit.Test;
+import play.db.jpa.JPAApi;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+/**
+ * Tests, if the streams and counts served by the TimelineManager stay equal to the PostManager queries
+ * while posts, comments, memberships and friendships change.
+ */
+public class TimelineTest extends FakeApplicationTest {
+
+    private static final String[] FILTERS = {"all", "group", "account", "contact"};
+
+    /**
+     * The fixtures are fanned out when they are created, the timeline serves them without waiting for the backfill.
+     */
+    @Before
+    public void timelineReady() {
+        instanceOf(TimelineState.class).setReady();
+    }
+
+    /**
+     * Tests, if every change is reflected in the timeline of all affected accounts.
+     */
+    @Test
+    public void testTimelineMatchesStreamQueries() {
+        JPAApi jpaApi = jpaApi();
+        PostManager postManager = instanceOf(PostManager.class);
+
+        Account a = this.getTestAccount(51);
+        Account b = this.getTestAccount(52);
+        Account c = this.getTestAccount(53);
+        testAccounts.addAll(Arrays.asList(a, b, c));
+        Group group = this.getTestGroup(51, a);
+        testGroups.add(group);
+        this.establishFriendshipTestAccounts(a, b);
+
+        // posts
+        Post groupPost = jpaApi.withTransaction(() -> {
+            createTestPost(a, a, null, null);
+            createTestPost(b, b, null, null);
+            createTestPost(c, c, null, null);
+            createTestPost(b, a, null, null);
+            return createTestPost(a, null, group, null);
+        });
+        assertTimelineMatches();
+
+        Post removed = jpaApi.withTransaction(() -> createTestPost(b, null, group, null));
+        assertTimelineMatches();
+
+        jpaApi.withTransaction(() -> {
+            Post post = postManager.findById(groupPost.id);
+            post.content = "timeline test (edited)";
+            postManager.update(post);
+            postManager.delete(postManager.findById(removed.id));
+        });
+        assertTimelineMatches();
+
+        // comments
+        Post comment = jpaApi.withTransaction(() -> createTestPost(b, null, null, postManager.findById(groupPost.id)));
+        assertTimelineMatches();
+
+        jpaApi.withTransaction(() -> postManager.delete(postManager.findById(comment.id)));
+        assertTimelineMatches();
+
+        // memberships
+        this.establishGroupMembership(b, group);
+        this.establishGroupMembership(c, group);
+        assertTimelineMatches();
+
+        jpaApi.withTransaction(() -> createTestPost(c, null, group, null));
+        this.removeGroupMembership(b, group);
+        assertTimelineMatches();
+
+        // friendships
+        this.establishFriendshipTestAccounts(a, c);
+        assertTimelineMatches();
+
+        this.removeFriendshipTestAccounts(a, b);
+        assertTimelineMatches();
+    }
+
+    /**
+     * Tests, if walking the timeline with cursors returns every post exactly once after a post was commented,
+     * which moves it to the top of the streams.
+     */
+    @Test
+    public void testCursorPagesAcrossCommentedPost() {
+        JPAApi jpaApi = jpaApi();
+        PostManager postManager = instanceOf(PostManager.class);
+
+        Account a = this.getTestAccount(54);
+        Account b = this.getTestAccount(55);
+        testAccounts.addAll(Arrays.asList(a, b));
+        this.establishFriendshipTestAccounts(a, b);
+
+        List<Post> posts = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            Account owner = i % 2 == 0 ? a : b;
+            posts.add(jpaApi.withTransaction(() -> createTestPost(owner, owner, null, null)));
+        }
+
+        // like PostController.addComment()
+        jpaApi.withTransaction(() -> {
+            Post parent = postManager.findById(posts.get(2).id);
+            createTestPost(b, null, null, parent);
+            postManager.update(parent);
+        });
+
+        jpaApi.withTransaction(() -> {
+            for (Account fixture : Arrays.asList(a, b)) {
+                Account account = jpaApi.em().find(Account.class, fixture.id);
+                for (String filter : FILTERS) {
+                    List<Long> expected = ids(postManager.findStreamForAccount(account, filter, 0, 0));
+                    List<Long> paged = new ArrayList<>();
+
+                    List<Post> page = postManager.getFilteredStream(account, 2, 1, filter);
+                    while (!page.isEmpty()) {
+                        paged.addAll(ids(page));
+                        page = postManager.getFilteredStream(account, 2, StreamCursor.of(page.get(page.size() - 1)), filter);
+                    }
+
+                    assertThat(paged).as(filter).isEqualTo(expected);
+                    if (expected.contains(posts.get(2).id)) {
+                        assertThat(paged.get(0)).as(filter).isEqualTo(posts.get(2).id);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Compares the timeline stream and the (cached) count of every test account with the PostManager queries.
+     */
+    private void assertTimelineMatches() {
+        PostManager postManager = instanceOf(PostManager.class);
+        jpaApi().withTransaction(() -> {
+            for (Account fixture : testAccounts) {
+                Account account = jpaApi().em().find(Account.class, fixture.id);
+                for (String filter : FILTERS) {
+                    List<Long> expected = ids(postManager.findStreamForAccount(account, filter, 0, 0));
+
+                    assertThat(ids(postManager.getFilteredStream(account, 100, 1, filter))).as(filter).isEqualTo(expected);
+                    assertThat(postManager.countStream(account, filter)).as(filter).isEqualTo(postManager.countStreamForAccount(account, filter));
+                    assertThat(postManager.countStream(account, filter)).as(filter).isEqualTo(expected.size());
+                }
+            }
+        });
+    }
+}
@@ -3,24 +3,23 @@ package base;
 import com.typesafe.config.Config;
 import com.typesafe.config.ConfigFactory;
 import controllers.Component;
-import models.Account;
-import models.Friendship;
-import models.Group;
-import models.GroupAccount;
+import managers.*;
+import models.*;
 import models.enums.AccountRole;
 import models.enums.GroupType;
 import models.enums.LinkType;
+import models.services.IndexOutbox;
 import org.junit.AfterClass;
 import org.junit.Before;
 import org.junit.BeforeClass;
-import play.db.jpa.JPA;
-import play.libs.F;
+import play.Application;
+import play.db.jpa.JPAApi;
 import play.mvc.Http;
-import play.test.FakeApplication;
 import play.test.Helpers;
 
-import javax.inject.Inject;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 
 import static org.mockito.Mockito.*;
@@ -30,9 +29,6 @@ import static org.mockito.Mockito.*;
  */
 public abstract class FakeApplicationTest {
 
-    @Inject
-    GroupAccount groupAccount;
-
     /**
      * Mocks a HTTP request instance.
      */
@@ -41,13 +37,19 @@ public abstract class FakeApplicationTest {
     /**
      * Hols the FakeApplication instance.
      */
-    public static FakeApplication app;
+    public static Application app;
 
     /**
      * The default password for test accounts.
      */
     public static final String TEST_ACCOUNT_PASSWORD = "123456";
 
+    /**
+     * Test accounts and groups of the current test class, deleted with everything created on them when the class is done.
+     */
+    protected static final List<Account> testAccounts = new ArrayList<>();
+    protected static final List<Group> testGroups = new ArrayList<>();
+
     /**
      * Holds the singleton Config instance for the current context.
      */
@@ -85,9 +87,37 @@ public abstract class FakeApplicationTest {
 
     @AfterClass
     public static void stopApp() {
+        for (Group group : testGroups) {
+            deleteTestGroup(group);
+        }
+        for (Account account : testAccounts) {
+            deleteTestAccount(account);
+        }
+        testGroups.clear();
+        testAccounts.clear();
+
         Helpers.stop(app);
     }
 
+    /**
+     * Returns an instance of a manager or service of the fake application.
+     *
+     * @param type Class to inject
+     * @return Instance
+     */
+    protected static <T> T instanceOf(Class<T> type) {
+        return app.injector().instanceOf(type);
+    }
+
+    /**
+     * Returns the JPA API of the fake application, e.g. to run a block in a transaction.
+     *
+     * @return JPAApi instance
+     */
+    protected static JPAApi jpaApi() {
+        return instanceOf(JPAApi.class);
+    }
+
     /**
      * Returns an account by email.
      *
@@ -95,17 +125,7 @@ public abstract class FakeApplicationTest {
      * @return Account instance
      */
     public Account getAccountByEmail(final String email) {
-        try {
-            return JPA.withTransaction(new F.Function0<Account>() {
-                @Override
-                public Account apply() throws Throwable {
-                    return Account.findByEmail(email);
-                }
-            });
-        } catch (Throwable throwable) {
-            throwable.printStackTrace();
-            return null;
-        }
+        return jpaApi().withTransaction(() -> instanceOf(AccountManager.class).findByEmail(email));
     }
 
     /**
@@ -124,26 +144,18 @@ public abstract class FakeApplicationTest {
         }
 
         // there is no test account with that number right now, create a persistent one
-        try {
-            return JPA.withTransaction(new F.Function0<Account>() {
-                @Override
-                public Account apply() throws Throwable {
-                    Account testAccount = new Account();
-                    testAccount.firstname = "Test";
-                    testAccount.lastname = "User " + String.valueOf(number);
-                    testAccount.email = testAccountEmail;
-                    testAccount.avatar = "a1";
-                    testAccount.role = AccountRole.STUDENT;
-                    testAccount.password = Component.md5(FakeApplicationTest.TEST_ACCOUNT_PASSWORD);
-                    testAccount.create();
-
-                    return testAccount;
-                }
-            });
-        } catch (Throwable throwable) {
-            throwable.printStackTrace();
-            return null;
-        }
+        return jpaApi().withTransaction(() -> {
+            Account testAccount = new Account();
+            testAccount.firstname = "Test";
+            testAccount.lastname = "User " + String.valueOf(number);
+            testAccount.email = testAccountEmail;
+            testAccount.avatar = "a1";
+            testAccount.role = AccountRole.STUDENT;
+            testAccount.password = Component.md5(FakeApplicationTest.TEST_ACCOUNT_PASSWORD);
+            instanceOf(AccountManager.class).create(testAccount);
+
+            return testAccount;
+        });
     }
 
     /**
@@ -163,17 +175,13 @@ public abstract class FakeApplicationTest {
      * @param testAccountB Second test account
      */
     public void establishFriendshipTestAccounts(final Account testAccountA, final Account testAccountB) {
-        JPA.withTransaction(new F.Callback0() {
-            @Override
-            public void invoke() throws Throwable {
-                if (!Friendship.alreadyFriendly(testAccountA, testAccountB)) {
-                    Friendship testFriendship = new Friendship(testAccountA, testAccountB, LinkType.establish);
-                    testFriendship.create();
-                }
-                if (!Friendship.alreadyFriendly(testAccountB, testAccountA)) {
-                    Friendship testFriendship = new Friendship(testAccountB, testAccountA, LinkType.establish);
-                    testFriendship.create();
-                }
+        jpaApi().withTransaction(() -> {
+            FriendshipManager friendshipManager = instanceOf(FriendshipManager.class);
+            if (!friendshipManager.alreadyFriendly(testAccountA, testAccountB)) {
+                friendshipManager.create(new Friendship(testAccountA, testAccountB, LinkType.establish));
+            }
+            if (!friendshipManager.alreadyFriendly(testAccountB, testAccountA)) {
+                friendshipManager.create(new Friendship(testAccountB, testAccountA, LinkType.establish));
             }
         });
     }
@@ -185,15 +193,13 @@ public abstract class FakeApplicationTest {
      * @param testAccountB Second test account
      */
     public void removeFriendshipTestAccounts(final Account testAccountA, final Account testAccountB) {
-        JPA.withTransaction(new F.Callback0() {
-            @Override
-            public void invoke() throws Throwable {
-                if (Friendship.alreadyFriendly(testAccountA, testAccountB)) {
-                    Friendship.findFriendLink(testAccountA, testAccountB).delete();
-                }
-                if (Friendship.alreadyFriendly(testAccountB, testAccountA)) {
-                    Friendship.findFriendLink(testAccountB, testAccountA).delete();
-                }
+        jpaApi().withTransaction(() -> {
+            FriendshipManager friendshipManager = instanceOf(FriendshipManager.class);
+            if (friendshipManager.alreadyFriendly(testAccountA, testAccountB)) {
+                friendshipManager.delete(friendshipManager.findFriendLink(testAccountA, testAccountB));
+            }
+            if (friendshipManager.alreadyFriendly(testAccountB, testAccountA)) {
+                friendshipManager.delete(friendshipManager.findFriendLink(testAccountB, testAccountA));
             }
         });
     }
@@ -206,17 +212,7 @@ public abstract class FakeApplicationTest {
      * @return Group instance
      */
     public Group getGroupByTitle(final String title) {
-        try {
-            return JPA.withTransaction(new F.Function0<Group>() {
-                @Override
-                public Group apply() throws Throwable {
-                    return Group.findByTitle(title);
-                }
-            });
-        } catch (Throwable throwable) {
-            throwable.printStackTrace();
-            return null;
-        }
+        return jpaApi().withTransaction(() -> instanceOf(GroupManager.class).findByTitle(title));
     }
 
     /**
@@ -236,27 +232,20 @@ public abstract class FakeApplicationTest {
         }
 
         // there is no test account with that number right now, create a persistent one
-        try {
-            return JPA.withTransaction(new F.Function0<Group>() {
-                @Override
-                public Group apply() throws Throwable {
-                    Group testGroup = new Group();
-                    testGroup.groupType = GroupType.close;
-                    testGroup.setTitle(testGroupTitle);
-
-                    if (groupOwner != null) {
-                        testGroup.createWithGroupAccount(groupOwner);
-                    } else {
-                        testGroup.create();
-                    }
-
-                    return testGroup;
-                }
-            });
-        } catch (Throwable throwable) {
-            throwable.printStackTrace();
-            return null;
-        }
+        return jpaApi().withTransaction(() -> {
+            GroupManager groupManager = instanceOf(GroupManager.class);
+            Group testGroup = new Group();
+            testGroup.groupType = GroupType.close;
+            testGroup.setTitle(testGroupTitle);
+
+            if (groupOwner != null) {
+                groupManager.createWithGroupAccount(testGroup, groupOwner);
+            } else {
+                groupManager.create(testGroup);
+            }
+
+            return testGroup;
+        });
     }
 
     /**
@@ -267,17 +256,7 @@ public abstract class FakeApplicationTest {
      * @return GroupAccount instance if found, otherwise null
      */
     public GroupAccount getGroupAccount(final Account account, final Group group) {
-        try {
-            return JPA.withTransaction(new F.Function0<GroupAccount>() {
-                @Override
-                public GroupAccount apply() throws Throwable {
-                    return GroupAccount.find(account, group);
-                }
-            });
-        } catch (Throwable throwable) {
-            throwable.printStackTrace();
-            return null;
-        }
+        return jpaApi().withTransaction(() -> instanceOf(GroupAccountManager.class).find(account, group));
     }
 
     /**
@@ -287,16 +266,14 @@ public abstract class FakeApplicationTest {
      * @param group Group
      */
     public void establishGroupMembership(final Account account, final Group group) {
-        JPA.withTransaction(new F.Callback0() {
-            @Override
-            public void invoke() throws Throwable {
-                if (!Group.isMember(group, account)) {
-                    groupAccount.account = account;
-                    groupAccount.group = group;
-                    groupAccount.linkType = LinkType.establish;
-                    testGroupAccount.create();
-                    group.update();
-                }
+        jpaApi().withTransaction(() -> {
+            GroupAccountManager groupAccountManager = instanceOf(GroupAccountManager.class);
+            GroupAccount groupAccount = groupAccountManager.find(account, group);
+            if (groupAccount == null) {
+                groupAccountManager.create(new GroupAccount(group, account, LinkType.establish));
+            } else if (groupAccount.linkType != LinkType.establish) {
+                groupAccount.linkType = LinkType.establish;
+                groupAccountManager.update(groupAccount);
             }
         });
     }
@@ -308,17 +285,144 @@ public abstract class FakeApplicationTest {
      * @param group Group
      */
     public void removeGroupMembership(final Account account, final Group group) {
-        JPA.withTransaction(new F.Callback0() {
-            @Override
-            public void invoke() throws Throwable {
-                if (Group.isMember(group, account)) {
-                    GroupAccount groupAccount = GroupAccount.find(account, group);
-                    groupAccount.delete();
+        jpaApi().withTransaction(() -> {
+            GroupAccountManager groupAccountManager = instanceOf(GroupAccountManager.class);
+            GroupAccount groupAccount = groupAccountManager.find(account, group);
+            if (groupAccount != null) {
+                groupAccountManager.delete(groupAccount);
+            }
+        });
+    }
+
+    /**
+     * Creates a post without indexing it.
+     *
+     * @param owner   Author
+     * @param account Account whose feed the post is written to, or null
+     * @param group   Group the post is written to, or null
+     * @param parent  Commented post, or null
+     * @return Post instance
+     */
+    protected static Post createTestPost(Account owner, Account account, Group group, Post parent) {
+        Post post = new Post();
+        post.content = "test post";
+        post.owner = owner;
+        post.account = account;
+        post.group = group;
+        post.parent = parent;
+        instanceOf(PostManager.class).createWithoutIndex(post);
+        return post;
+    }
+
+    /**
+     * @param posts List of posts
+     * @return IDs of the posts in the same order
+     */
+    protected static List<Long> ids(List<Post> posts) {
+        List<Long> ids = new ArrayList<>();
+        for (Post post : posts) {
+            ids.add(post.id);
+        }
+        return ids;
+    }
+
+    /**
+     * Deletes a test group including its posts, memberships and root folder, see testGroups.
+     *
+     * @param group Test group
+     */
+    protected static void deleteTestGroup(final Group group) {
+        jpaApi().withTransaction(() -> {
+            Group storedGroup = instanceOf(GroupManager.class).findById(group.id);
+            if (storedGroup == null) {
+                return;
+            }
+
+            PostManager postManager = instanceOf(PostManager.class);
+            for (Post post : postManager.getPostsForGroup(storedGroup, 0, 0)) {
+                postManager.delete(post);
+            }
+            GroupAccountManager groupAccountManager = instanceOf(GroupAccountManager.class);
+            for (GroupAccount groupAccount : new ArrayList<>(storedGroup.groupAccounts)) {
+                storedGroup.groupAccounts.remove(groupAccount);
+                groupAccountManager.delete(groupAccount);
+            }
+            instanceOf(NotificationManager.class).deleteReferences(storedGroup);
+
+            deleteRootFolder(storedGroup.rootFolder, () -> storedGroup.rootFolder = null);
+            instanceOf(IndexOutbox.class).delete(storedGroup);
+            jpaApi().em().remove(storedGroup);
+        });
+    }
+
+    /**
+     * Deletes a test account including its posts, bookmarks, friendships, memberships,
+     * notifications, stream and root folder. Groups of the account have to be deleted before.
+     *
+     * @param account Test account
+     */
+    protected static void deleteTestAccount(final Account account) {
+        jpaApi().withTransaction(() -> {
+            Account storedAccount = instanceOf(AccountManager.class).findById(account.id);
+            if (storedAccount == null) {
+                return;
+            }
+
+            // comments first, deleting a post deletes its remaining comments
+            PostManager postManager = instanceOf(PostManager.class);
+            List<Post> posts = new ArrayList<>(postManager.listAllPostsOwnedBy(account.id));
+            posts.addAll(postManager.listAllPostsPostedOnAccount(account.id));
+            posts.sort((a, b) -> Boolean.compare(a.parent == null, b.parent == null));
+            for (Post post : posts) {
+                Post storedPost = postManager.findById(post.id);
+                if (storedPost != null) {
+                    postManager.delete(storedPost);
                 }
             }
+
+            jpaApi().em().createQuery("DELETE FROM PostBookmark pb WHERE pb.owner.id = :accountId")
+                    .setParameter("accountId", account.id)
+                    .executeUpdate();
+
+            FriendshipManager friendshipManager = instanceOf(FriendshipManager.class);
+            for (Friendship friendship : friendshipManager.listAllFriendships(account.id)) {
+                friendshipManager.delete(friendship);
+            }
+
+            GroupAccountManager groupAccountManager = instanceOf(GroupAccountManager.class);
+            for (GroupAccount groupAccount : jpaApi().em()
+                    .createQuery("FROM GroupAccount ga WHERE ga.account.id = :accountId", GroupAccount.class)
+                    .setParameter("accountId", account.id)
+                    .getResultList()) {
+                groupAccountManager.delete(groupAccount);
+            }
+
+            NotificationManager notificationManager = instanceOf(NotificationManager.class);
+            notificationManager.deleteNotificationsForAccount(account.id);
+            for (Notification notification : notificationManager.findBySenderId(account.id)) {
+                notificationManager.delete(notification);
+            }
+
+            instanceOf(TimelineManager.class).removeAccount(storedAccount);
+            deleteRootFolder(storedAccount.rootFolder, () -> storedAccount.rootFolder = null);
+            instanceOf(IndexOutbox.class).delete(storedAccount);
+            jpaApi().em().remove(storedAccount);
         });
     }
 
+    /**
+     * Detaches a root folder from its account or group first, both reference each other.
+     */
+    private static void deleteRootFolder(Folder rootFolder, Runnable detach) {
+        if (rootFolder == null) {
+            return;
+        }
+        detach.run();
+        jpaApi().em().flush();
+        instanceOf(FolderManager.class).delete(rootFolder);
+        jpaApi().em().flush();
+    }
+
     /**
      * Logs in an account into the test HTTP context.
      *
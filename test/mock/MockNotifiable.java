@@ -42,7 +42,7 @@ public class MockNotifiable implements INotifiable {
     }
 
     @Override
-    public Notification getNotification(Account recipient) {
-        return new Notification();
+    public boolean updatesNotification() {
+        return false;
     }
 }